@@ -0,0 +1,180 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoLatencyHistogram;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by yukiishikawa on 2017/12/17.
+ * 保存や取り込みが続く間の、一覧の読み込みにかかる時間の計測
+ *
+ * 書き込み用のスレッドがメモをまとめて追加し、途中でチェックポイントも行う間に、
+ * 複数のスレッドから一覧の1ページ目を読み込む。
+ * WALモード(MemoDBHelperの既定)と、以前のロールバックジャーナルでの時間を比べる。
+ * 読み込んだ件数は、コミットされたトランザクションの単位で増えていることも確かめる。
+ * 結果はlogcatに出力する。
+ */
+@RunWith(AndroidJUnit4.class)
+public class MemoDatabaseConcurrencyTest {
+    private static final String TAG = "MemoDatabaseConcurrency";
+
+    private static final String DB_NAME = "memo.db";
+    // 最初に登録しておくメモの数
+    private static final int INITIAL_MEMOS = 500;
+    // 書き込みのトランザクションの数と、1回で追加するメモの数
+    private static final int WRITE_TRANSACTIONS = 200;
+    private static final int MEMOS_PER_TRANSACTION = 20;
+    // この回数のトランザクションごとにチェックポイントを行う
+    private static final int CHECKPOINT_INTERVAL = 25;
+    private static final int READER_THREADS = 2;
+    // 一覧の1ページの件数
+    private static final int PAGE_SIZE = 50;
+
+    private static final String LIST_QUERY = "SELECT " + MemoDBHelper._ID + ", " + MemoDBHelper.TITLE
+            + ", " + MemoDBHelper.PREVIEW + " FROM " + MemoDBHelper.TABLE_NAME
+            + " ORDER BY " + MemoDBHelper.DATE_MODIFIED + " DESC, " + MemoDBHelper._ID + " DESC"
+            + " LIMIT " + PAGE_SIZE;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = new MemoProviderStartupTest.TestContext(InstrumentationRegistry.getTargetContext());
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void readsDoNotWaitForWrites() throws Exception {
+        MemoLatencyHistogram.Snapshot wal = report("read during writes (WAL)", measure(true));
+        MemoLatencyHistogram.Snapshot rollback = report("read during writes (rollback journal)", measure(false));
+        assertTrue("WAL p90 " + wal.percentile(90) + "ns is not below rollback journal p90 "
+                        + rollback.percentile(90) + "ns",
+                wal.percentile(90) < rollback.percentile(90));
+    }
+
+    // 書き込みを続けながら一覧を読み込み、読み込みの時間を返す
+    private MemoLatencyHistogram measure(boolean writeAheadLogging) throws Exception {
+        mContext.deleteDatabase(DB_NAME);
+        MemoDBHelper helper = new MemoDBHelper(mContext);
+        helper.setWriteAheadLoggingEnabled(writeAheadLogging);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        // WALでない場合のモード(deleteやtruncate)は端末の設定による
+        assertEquals(writeAheadLogging,
+                "wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null)));
+
+        insertMemos(db, 0, INITIAL_MEMOS);
+
+        final MemoLatencyHistogram histogram = new MemoLatencyHistogram();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch started = new CountDownLatch(READER_THREADS);
+
+        Thread[] readers = new Thread[READER_THREADS];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        while (writing.get()) {
+                            long start = System.nanoTime();
+                            Cursor cursor = db.rawQuery(LIST_QUERY, null);
+                            try {
+                                assertEquals(PAGE_SIZE, cursor.getCount());
+                            } finally {
+                                cursor.close();
+                            }
+                            histogram.record(System.nanoTime() - start);
+
+                            // 書き込み中のトランザクションの行は見えない
+                            long count = DatabaseUtils.queryNumEntries(db, MemoDBHelper.TABLE_NAME);
+                            assertEquals("count " + count, 0, (count - INITIAL_MEMOS) % MEMOS_PER_TRANSACTION);
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            readers[i].start();
+        }
+
+        started.await();
+        try {
+            for (int i = 0; i < WRITE_TRANSACTIONS; i++) {
+                insertMemos(db, INITIAL_MEMOS + i * MEMOS_PER_TRANSACTION, MEMOS_PER_TRANSACTION);
+                if (writeAheadLogging && (i + 1) % CHECKPOINT_INTERVAL == 0) {
+                    // 自動のチェックポイントを待たずに、WALをデータベースに書き戻す
+                    DatabaseUtils.longForQuery(db, "PRAGMA wal_checkpoint(PASSIVE)", null);
+                }
+            }
+        } finally {
+            writing.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        helper.close();
+
+        assertNull(String.valueOf(error.get()), error.get());
+        return histogram;
+    }
+
+    // 1つのトランザクションでcount件のメモを追加する
+    private static void insertMemos(SQLiteDatabase db, int first, int count) {
+        char[] body = new char[1024];
+        Arrays.fill(body, 'あ');
+        String preview = new String(body, 0, 100);
+
+        ContentValues values = new ContentValues();
+        db.beginTransaction();
+        try {
+            for (int i = first; i < first + count; i++) {
+                values.put(MemoDBHelper.TITLE, "memo" + i);
+                values.put(MemoDBHelper.BODY, new String(body));
+                values.put(MemoDBHelper.PREVIEW, preview);
+                values.put(MemoDBHelper.DATE_ADDED, System.currentTimeMillis());
+                db.insertOrThrow(MemoDBHelper.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static MemoLatencyHistogram.Snapshot report(String name, MemoLatencyHistogram histogram) {
+        MemoLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Log.i(TAG, name + ": count=" + snapshot.count
+                + " mean=" + snapshot.mean() + "ns"
+                + " p50=" + snapshot.percentile(50) + "ns"
+                + " p90=" + snapshot.percentile(90) + "ns"
+                + " p99=" + snapshot.percentile(99) + "ns"
+                + " max=" + snapshot.max + "ns");
+        return snapshot;
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.DashPathEffect;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.ContextThemeWrapper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.EditText;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoLatencyHistogram;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by yukiishikawa on 2017/12/17.
+ * MemoEditTextをスクロールしながら描画したときの、1フレームの描画時間の計測
+ *
+ * 画面と同じ大きさのBitmapのCanvasに描くので、ソフトウェア描画の時間になる。
+ * GPUでの描画時間とは異なるが、罫線の作り方による差は比べられる。
+ * 結果はlogcatに出力する。
+ */
+@RunWith(AndroidJUnit4.class)
+public class MemoEditTextDrawTest {
+    private static final String TAG = "MemoEditTextDrawTest";
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    // メモの行数
+    private static final int LINES = 2000;
+    // 計測前に捨てるフレーム数
+    private static final int WARMUP_FRAMES = 60;
+    private static final int FRAMES = 600;
+    // 1フレームでスクロールする量 (px)
+    private static final int SCROLL_STEP = 37;
+    // 60fpsの1フレームの時間
+    private static final long FRAME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+
+    private MemoEditText mView;
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+
+    @Before
+    public void setUp() {
+        final Context context = new ContextThemeWrapper(InstrumentationRegistry.getTargetContext(), R.style.AppTheme);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // アプリと同じレイアウトを使い、破線の罫線で描かせる
+                mView = (MemoEditText) LayoutInflater.from(context).inflate(R.layout.fragment_memo, null);
+                StringBuilder text = new StringBuilder();
+                for (int i = 0; i < LINES; i++) {
+                    text.append("line ").append(i).append(" 罫線の描画時間を計測するメモ\n");
+                }
+                mView.setText(text);
+                mView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+                mView.layout(0, 0, WIDTH, HEIGHT);
+            }
+        });
+        mBitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mBitmap);
+    }
+
+    @After
+    public void tearDown() {
+        mBitmap.recycle();
+    }
+
+    @Test
+    public void scrollFrameTime() {
+        MemoLatencyHistogram histogram = new MemoLatencyHistogram();
+        drawFrames(mView, mView.getLayout().getHeight() - HEIGHT, histogram);
+
+        MemoLatencyHistogram.Snapshot snapshot = report("MemoEditText.draw", histogram);
+        assertTrue("p50 " + snapshot.percentile(50) + "ns exceeds frame budget",
+                snapshot.percentile(50) < FRAME_BUDGET_NANOS);
+    }
+
+    @Test
+    public void cachedLinesAgainstPathEffect() {
+        // 罫線だけを、以前の描き方(毎フレームPathを作ってDashPathEffectで描く)と比べる
+        int lineHeight = mView.getLineHeight();
+        int paddingTop = mView.getExtendedPaddingTop();
+        int lineCount = HEIGHT / lineHeight + 1;
+        float interval = mView.getResources().getDimension(R.dimen.text_rule_interval_on);
+
+        Paint pathPaint = new Paint();
+        pathPaint.setStyle(Paint.Style.STROKE);
+        pathPaint.setColor(Color.GRAY);
+        pathPaint.setPathEffect(new DashPathEffect(new float[]{interval, interval}, 0f));
+        Path path = new Path();
+
+        MemoLatencyHistogram pathHistogram = new MemoLatencyHistogram();
+        for (int frame = 0; frame < WARMUP_FRAMES + FRAMES; frame++) {
+            mCanvas.drawColor(Color.WHITE);
+            long start = System.nanoTime();
+            path.reset();
+            for (int i = 0; i <= lineCount; i++) {
+                path.moveTo(0, i * lineHeight + paddingTop);
+                path.lineTo(WIDTH, i * lineHeight + paddingTop);
+            }
+            mCanvas.drawPath(path, pathPaint);
+            if (frame >= WARMUP_FRAMES) {
+                pathHistogram.record(System.nanoTime() - start);
+            }
+        }
+
+        // MemoEditTextの描画時間から、罫線の無いEditTextの描画時間を引いたものが罫線の分になる
+        EditText plain = createPlainEditText();
+        int maxScroll = mView.getLayout().getHeight() - HEIGHT;
+        MemoLatencyHistogram textHistogram = new MemoLatencyHistogram();
+        MemoLatencyHistogram viewHistogram = new MemoLatencyHistogram();
+        drawFrames(plain, maxScroll, textHistogram);
+        drawFrames(mView, maxScroll, viewHistogram);
+
+        report("rules with Path and DashPathEffect", pathHistogram);
+        MemoLatencyHistogram.Snapshot text = report("EditText without rules", textHistogram);
+        MemoLatencyHistogram.Snapshot view = report("MemoEditText with cached rules", viewHistogram);
+        Log.i(TAG, "cached rules overhead p50=" + (view.percentile(50) - text.percentile(50)) + "ns");
+    }
+
+    // アプリと同じ見た目と本文で、罫線だけが無いEditTextを作る
+    private EditText createPlainEditText() {
+        final EditText[] result = new EditText[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                EditText editText = new EditText(mView.getContext());
+                editText.setTextSize(TypedValue.COMPLEX_UNIT_PX, mView.getTextSize());
+                editText.setPadding(mView.getPaddingLeft(), mView.getPaddingTop(),
+                        mView.getPaddingRight(), mView.getPaddingBottom());
+                editText.setGravity(mView.getGravity());
+                editText.setBackground(null);
+                editText.setText(mView.getText().toString());
+                editText.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+                editText.layout(0, 0, WIDTH, HEIGHT);
+                result[0] = editText;
+            }
+        });
+        return result[0];
+    }
+
+    // スクロールしながら描画し、1フレームの描画時間を記録する
+    private void drawFrames(final View view, final int maxScroll, final MemoLatencyHistogram histogram) {
+        // メインスレッドで失敗するとプロセスごと落ちるので、ここで確かめておく
+        assertTrue(maxScroll > 0);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int frame = 0; frame < WARMUP_FRAMES + FRAMES; frame++) {
+                    view.scrollTo(0, frame * SCROLL_STEP % maxScroll);
+                    mCanvas.drawColor(Color.WHITE);
+                    long start = System.nanoTime();
+                    view.draw(mCanvas);
+                    if (frame >= WARMUP_FRAMES) {
+                        histogram.record(System.nanoTime() - start);
+                    }
+                }
+            }
+        });
+    }
+
+    private static MemoLatencyHistogram.Snapshot report(String name, MemoLatencyHistogram histogram) {
+        MemoLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Log.i(TAG, name + ": frames=" + snapshot.count
+                + " mean=" + snapshot.mean() + "ns"
+                + " p50=" + snapshot.percentile(50) + "ns"
+                + " p90=" + snapshot.percentile(90) + "ns"
+                + " p99=" + snapshot.percentile(99) + "ns"
+                + " max=" + snapshot.max + "ns");
+        return snapshot;
+    }
+}
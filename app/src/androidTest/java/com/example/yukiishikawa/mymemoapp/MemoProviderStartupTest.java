@@ -0,0 +1,149 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.database.DatabaseErrorHandler;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoLatencyHistogram;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by yukiishikawa on 2017/12/17.
+ * MemoProviderの起動時(onCreate)にかかる時間の計測
+ *
+ * onCreateはアプリの起動時にメインスレッドで呼ばれるので、データベースを開く時間を含めない。
+ * 以前のようにonCreateでデータベースを開いた場合の時間(データベースを開く時間)と比べる。
+ * プロセスの起動から最初の描画までは、計測中のプロセスからは測れないので、
+ * adb shell am start -W で確認する。
+ * 結果はlogcatに出力する。
+ */
+@RunWith(AndroidJUnit4.class)
+public class MemoProviderStartupTest {
+    private static final String TAG = "MemoProviderStartupTest";
+
+    // アプリのデータベースと分けるため、データベースのファイル名に付ける
+    private static final String DB_PREFIX = "startup_test_";
+    private static final String DB_NAME = "memo.db";
+    private static final int ITERATIONS = 20;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = new TestContext(InstrumentationRegistry.getTargetContext());
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void onCreateDoesNotOpenDatabase() {
+        MemoLatencyHistogram onCreate = new MemoLatencyHistogram();
+        MemoLatencyHistogram firstQuery = new MemoLatencyHistogram();
+        MemoLatencyHistogram eagerOpen = new MemoLatencyHistogram();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            // データベースが無い状態 (インストール直後) から始める
+            mContext.deleteDatabase(DB_NAME);
+            final MemoProvider[] provider = new MemoProvider[1];
+            final long[] elapsed = new long[1];
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    // attachInfoの中でonCreateが呼ばれる
+                    provider[0] = new MemoProvider();
+                    ProviderInfo info = new ProviderInfo();
+                    info.authority = MemoProvider.CONTENT_URI.getAuthority();
+                    long start = System.nanoTime();
+                    provider[0].attachInfo(mContext, info);
+                    elapsed[0] = System.nanoTime() - start;
+                }
+            });
+            onCreate.record(elapsed[0]);
+
+            // 最初の一覧の読み込みでは、バックグラウンドで開き終わっていなければ待つ
+            long start = System.nanoTime();
+            Cursor cursor = provider[0].query(MemoProvider.CONTENT_URI, null, null, null, null);
+            assertNotNull(cursor);
+            cursor.close();
+            firstQuery.record(System.nanoTime() - start);
+            provider[0].shutdown();
+
+            // 以前のonCreateで行っていた、データベースを開く処理
+            mContext.deleteDatabase(DB_NAME);
+            start = System.nanoTime();
+            MemoDBHelper helper = new MemoDBHelper(mContext);
+            helper.getWritableDatabase();
+            eagerOpen.record(System.nanoTime() - start);
+            helper.close();
+        }
+
+        MemoLatencyHistogram.Snapshot lazy = report("onCreate (lazy)", onCreate);
+        report("first query after onCreate", firstQuery);
+        MemoLatencyHistogram.Snapshot eager = report("open database (eager onCreate)", eagerOpen);
+        assertTrue("onCreate p50 " + lazy.percentile(50) + "ns is not below eager open p50 "
+                        + eager.percentile(50) + "ns",
+                lazy.percentile(50) < eager.percentile(50));
+    }
+
+    private static MemoLatencyHistogram.Snapshot report(String name, MemoLatencyHistogram histogram) {
+        MemoLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Log.i(TAG, name + ": count=" + snapshot.count
+                + " mean=" + snapshot.mean() + "ns"
+                + " p50=" + snapshot.percentile(50) + "ns"
+                + " p90=" + snapshot.percentile(90) + "ns"
+                + " max=" + snapshot.max + "ns");
+        return snapshot;
+    }
+
+    // データベースのファイル名だけを変えるContext
+    static class TestContext extends ContextWrapper {
+        TestContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public File getDatabasePath(String name) {
+            return super.getDatabasePath(DB_PREFIX + name);
+        }
+
+        @Override
+        public SQLiteDatabase openOrCreateDatabase(String name, int mode, SQLiteDatabase.CursorFactory factory) {
+            return super.openOrCreateDatabase(DB_PREFIX + name, mode, factory);
+        }
+
+        @Override
+        public SQLiteDatabase openOrCreateDatabase(String name, int mode, SQLiteDatabase.CursorFactory factory,
+                                                   DatabaseErrorHandler errorHandler) {
+            return super.openOrCreateDatabase(DB_PREFIX + name, mode, factory, errorHandler);
+        }
+
+        @Override
+        public boolean deleteDatabase(String name) {
+            return super.deleteDatabase(DB_PREFIX + name);
+        }
+    }
+}
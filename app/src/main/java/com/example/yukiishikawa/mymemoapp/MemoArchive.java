@@ -0,0 +1,409 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoFileCodec;
+import com.example.yukiishikawa.mymemoapp.core.MemoFiles;
+import com.example.yukiishikawa.mymemoapp.core.MemoJournal;
+import com.example.yukiishikawa.mymemoapp.core.MemoMetadata;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Created by yukiishikawa on 2017/12/03.
+ * すべてのメモを1つのzipに書き出す・zipから取り込む
+ *
+ * zipの中身は次のとおり。メモごとに、情報(json)を本文(txt)より先に置く。
+ *   manifest.json         形式のバージョン
+ *   memos/<id>.json       タイトル、作成日時、更新日時
+ *   memos/<id>.txt        本文 (UTF-8)
+ * 書き出しも取り込みもストリームで行い、メモの件数によらず使うメモリは一定にする。
+ */
+
+public class MemoArchive {
+    // zipの形式のバージョン
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String MANIFEST_ENTRY = "manifest.json";
+    private static final String MEMO_ENTRY_PREFIX = "memos/";
+    private static final String METADATA_SUFFIX = ".json";
+    private static final String BODY_SUFFIX = ".txt";
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_TITLE = "title";
+    private static final String KEY_DATE_ADDED = "date_added";
+    private static final String KEY_DATE_MODIFIED = "date_modified";
+
+    // 本文の文字コード
+    // メモファイルはデフォルトの文字コード(AndroidではUTF-8)なので、そのまま書き出せる
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    // 書き出すときに、1回のクエリで読むメモの数
+    private static final int EXPORT_PAGE_SIZE = 100;
+    // 取り込むときに、1回のトランザクションで登録するメモの数
+    // 解析中のメモもこの数までに抑える
+    private static final int IMPORT_BATCH_SIZE = 100;
+    // これより大きな本文は、メモリに読まずにファイルに書き出してから解析する
+    // (INLINE_MAX_LENGTH文字がUTF-8で取りうる最大のバイト数)
+    private static final int IMPORT_SPILL_BYTES = MemoRepository.INLINE_MAX_LENGTH * 4;
+    // 解析に使うスレッドの数
+    private static final int IMPORT_THREAD_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // 取り込みを中断したときに、解析中のスレッドが終わるのを待つ最大の秒数
+    private static final long IMPORT_SHUTDOWN_TIMEOUT_SECONDS = 10L;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // インスタンスを作らせない
+    private MemoArchive() {}
+
+    // すべてのメモをzipで書き出す
+    // メモは_idの順にページ単位で読み、1件ずつ書き出す
+    static void exportTo(SQLiteDatabase db, OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        JSONObject manifest = new JSONObject();
+        try {
+            manifest.put(KEY_VERSION, FORMAT_VERSION);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        zip.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+        zip.write(manifest.toString().getBytes(CHARSET));
+        zip.closeEntry();
+
+        String[] columns = {
+                MemoDBHelper._ID, MemoDBHelper.TITLE, MemoDBHelper.DATA, MemoDBHelper.BODY,
+                MemoDBHelper.ENCODING, MemoDBHelper.DATE_ADDED, MemoDBHelper.DATE_MODIFIED
+        };
+        long lastId = 0;
+        while (true) {
+            Cursor cursor = db.query(MemoDBHelper.TABLE_NAME, columns, MemoDBHelper._ID + " > ?",
+                    new String[]{String.valueOf(lastId)}, null, null, MemoDBHelper._ID + " ASC",
+                    String.valueOf(EXPORT_PAGE_SIZE));
+            int count;
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    exportMemo(zip, cursor, buffer);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (count < EXPORT_PAGE_SIZE) {
+                break;
+            }
+        }
+
+        zip.finish();
+        zip.flush();
+    }
+
+    // 1件のメモを書き出す
+    private static void exportMemo(ZipOutputStream zip, Cursor cursor, byte[] buffer) throws IOException {
+        String name = MEMO_ENTRY_PREFIX + cursor.getLong(0);
+        String path = cursor.getString(2);
+
+        // 本文が読めないメモは、情報だけ書き出しても取り込めないので飛ばす
+        InputStream body;
+        if (TextUtils.isEmpty(path)) {
+            String text = cursor.getString(3);
+            body = new ByteArrayInputStream((text == null ? "" : text).getBytes(CHARSET));
+        } else {
+            File file = new File(path);
+            int encoding = cursor.getInt(4);
+            try {
+                if (MemoJournal.hasJournal(file)) {
+                    // ジャーナルを適用した本文は、1件分だけメモリに載せる
+                    body = new ByteArrayInputStream(MemoJournal.read(file, encoding).getBytes(CHARSET));
+                } else {
+                    body = MemoFileCodec.decode(new FileInputStream(file), encoding);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+
+        try {
+            JSONObject metadata = new JSONObject();
+            try {
+                metadata.put(KEY_TITLE, cursor.getString(1));
+                metadata.put(KEY_DATE_ADDED, cursor.getLong(5));
+                metadata.put(KEY_DATE_MODIFIED, cursor.getString(6));
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+            zip.putNextEntry(new ZipEntry(name + METADATA_SUFFIX));
+            zip.write(metadata.toString().getBytes(CHARSET));
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry(name + BODY_SUFFIX));
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                zip.write(buffer, 0, read);
+            }
+            zip.closeEntry();
+        } finally {
+            body.close();
+        }
+    }
+
+    // 取り込み中の1件のメモ
+    private static class ImportEntry {
+        // 情報 (無い場合はnull)
+        JSONObject metadata;
+        // メモリに読み込んだ本文 (ファイルに書き出した場合はnull)
+        byte[] bytes;
+        // 書き出したファイル
+        // 登録する前に取り込みに失敗した場合は、どの行からも参照されないので削除する
+        volatile File file;
+    }
+
+    // zipからメモを取り込み、登録した件数を返す
+    // 本文の解析は複数のスレッドで行い、IMPORT_BATCH_SIZE件ずつ1回のbulkInsertで登録する
+    public static int importFrom(Context context, InputStream in) throws IOException {
+        final Context appContext = context.getApplicationContext();
+        ExecutorService executor = Executors.newFixedThreadPool(IMPORT_THREAD_COUNT);
+        List<Future<ContentValues>> pending = new ArrayList<>(IMPORT_BATCH_SIZE);
+        // pendingと同じ順の、まだ登録していないメモ
+        List<ImportEntry> entries = new ArrayList<>(IMPORT_BATCH_SIZE);
+        // 本文より先に読んだ情報
+        Map<String, JSONObject> metadataByName = new HashMap<>();
+        int imported = 0;
+
+        ZipInputStream zip = new ZipInputStream(in);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String entryName = entry.getName();
+                if (entryName.equals(MANIFEST_ENTRY)) {
+                    checkManifest(readJson(zip, buffer));
+                } else if (entryName.startsWith(MEMO_ENTRY_PREFIX) && entryName.endsWith(METADATA_SUFFIX)) {
+                    String name = entryName.substring(0, entryName.length() - METADATA_SUFFIX.length());
+                    metadataByName.put(name, readJson(zip, buffer));
+                } else if (entryName.startsWith(MEMO_ENTRY_PREFIX) && entryName.endsWith(BODY_SUFFIX)) {
+                    String name = entryName.substring(0, entryName.length() - BODY_SUFFIX.length());
+                    final ImportEntry memo = readBody(appContext, zip, buffer);
+                    memo.metadata = metadataByName.remove(name);
+
+                    entries.add(memo);
+                    pending.add(executor.submit(new Callable<ContentValues>() {
+                        @Override
+                        public ContentValues call() throws Exception {
+                            return parse(appContext, memo);
+                        }
+                    }));
+                    if (pending.size() >= IMPORT_BATCH_SIZE) {
+                        imported += commit(appContext, pending, entries);
+                    }
+                }
+                zip.closeEntry();
+            }
+            imported += commit(appContext, pending, entries);
+        } finally {
+            executor.shutdownNow();
+            if (!entries.isEmpty()) {
+                // 登録できなかったメモのファイルを削除する
+                // 解析中のスレッドがファイルを書き出し終わってから消す
+                try {
+                    executor.awaitTermination(IMPORT_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                deleteFiles(entries);
+            }
+            zip.close();
+        }
+        return imported;
+    }
+
+    // 取り込んだメモのファイルを削除する
+    private static void deleteFiles(List<ImportEntry> entries) {
+        for (ImportEntry memo : entries) {
+            File file = memo.file;
+            if (file != null) {
+                file.delete();
+            }
+        }
+        entries.clear();
+    }
+
+    // 形式のバージョンを確認する
+    private static void checkManifest(JSONObject manifest) throws IOException {
+        int version = manifest.optInt(KEY_VERSION, -1);
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IOException("unsupported archive version: " + version);
+        }
+    }
+
+    // エントリの内容をjsonとして読み込む
+    private static JSONObject readJson(InputStream in, byte[] buffer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        try {
+            return new JSONObject(new String(bytes.toByteArray(), CHARSET));
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // 本文のエントリを読み込む
+    // 小さな本文はメモリに、大きな本文は新しいメモファイルに書き出す
+    private static ImportEntry readBody(Context context, InputStream in, byte[] buffer) throws IOException {
+        ImportEntry memo = new ImportEntry();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+            if (bytes.size() > IMPORT_SPILL_BYTES) {
+                memo.file = spillToFile(context, bytes, in, buffer);
+                return memo;
+            }
+        }
+        memo.bytes = bytes.toByteArray();
+        return memo;
+    }
+
+    // 読み込んだ分と残りを、圧縮しない新しいメモファイルに書き出す
+    private static File spillToFile(Context context, ByteArrayOutputStream head, InputStream in, byte[] buffer)
+            throws IOException {
+        File file = MemoRepository.newMemoFile(context);
+        if (file == null) {
+            throw new IOException("no output directory");
+        }
+
+        FileOutputStream out = new FileOutputStream(file);
+        boolean written = false;
+        try {
+            head.writeTo(out);
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            // データベースに登録する前に、内容を確定させておく
+            out.getFD().sync();
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                file.delete();
+            }
+        }
+        return file;
+    }
+
+    // 1件のメモを解析して、登録する値を作る
+    private static ContentValues parse(Context context, ImportEntry memo) throws IOException {
+        ContentValues values = new ContentValues();
+        MemoMetadata metadata;
+
+        if (memo.file != null) {
+            try {
+                metadata = MemoFiles.readMetadata(memo.file, MemoFileCodec.ENCODING_PLAIN);
+            } catch (IOException e) {
+                // 登録しないファイルは残さない
+                memo.file.delete();
+                throw e;
+            }
+            values.put(MemoDBHelper.DATA, memo.file.getAbsolutePath());
+            values.put(MemoDBHelper.ENCODING, MemoFileCodec.ENCODING_PLAIN);
+        } else {
+            String text = new String(memo.bytes, CHARSET);
+            metadata = MemoMetadata.of(text);
+            if (text.length() <= MemoRepository.INLINE_MAX_LENGTH) {
+                values.put(MemoDBHelper.BODY, text);
+            } else {
+                File file = MemoRepository.newMemoFile(context);
+                memo.file = file;
+                if (file == null || !MemoRepository.writeToFile(file, text, MemoFileCodec.ENCODING_PLAIN)) {
+                    throw new IOException("failed to write memo file");
+                }
+                values.put(MemoDBHelper.DATA, file.getAbsolutePath());
+                values.put(MemoDBHelper.ENCODING, MemoFileCodec.ENCODING_PLAIN);
+            }
+        }
+
+        // タイトルと日時は、書き出したときの値を使う
+        JSONObject json = memo.metadata;
+        values.put(MemoDBHelper.TITLE, json != null && json.has(KEY_TITLE)
+                ? json.optString(KEY_TITLE) : metadata.title);
+        values.put(MemoDBHelper.DATE_ADDED, json != null && json.has(KEY_DATE_ADDED)
+                ? json.optLong(KEY_DATE_ADDED) : System.currentTimeMillis());
+        if (json != null && json.has(KEY_DATE_MODIFIED)) {
+            values.put(MemoDBHelper.DATE_MODIFIED, json.optString(KEY_DATE_MODIFIED));
+        }
+        MemoDBHelper.putMetadata(values, metadata);
+        return values;
+    }
+
+    // 解析が終わるのを順に待ち、1回のbulkInsertで登録する
+    // 解析に失敗したメモは登録せず、ファイルを削除する
+    // 登録できた場合はentriesを空にする (失敗した場合は、呼び出し元でentriesのファイルを削除する)
+    private static int commit(Context context, List<Future<ContentValues>> pending, List<ImportEntry> entries)
+            throws IOException {
+        List<ContentValues> batch = new ArrayList<>(pending.size());
+        try {
+            for (int i = 0; i < pending.size(); i++) {
+                try {
+                    batch.add(pending.get(i).get());
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    File file = entries.get(i).file;
+                    if (file != null) {
+                        file.delete();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("import interrupted");
+        } finally {
+            pending.clear();
+        }
+
+        int inserted = 0;
+        if (!batch.isEmpty()) {
+            inserted = context.getContentResolver().bulkInsert(MemoProvider.CONTENT_URI,
+                    batch.toArray(new ContentValues[batch.size()]));
+        }
+        // 登録したメモのファイルは、データベースの行から参照される
+        entries.clear();
+        return inserted;
+    }
+}
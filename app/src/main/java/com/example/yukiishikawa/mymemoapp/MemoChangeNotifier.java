@@ -0,0 +1,133 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Created by yukiishikawa on 2017/10/29.
+ * MemoProviderの変更通知をまとめて送る
+ *
+ * 変更のたびに通知すると、1000件の取り込みで1000回の再クエリが走ってしまう。
+ * 変更されたURIを集めておき、重複を除いて送る。
+ * - バッチ(beginBatch〜endBatch)の中の変更は、バッチの終わりにまとめて送る
+ * - バッチの外の変更は、短い時間だけ待ってから、その間の変更をまとめて送る
+ * 件数が多い場合は、個々のURIではなく一覧のURIに1回だけ通知する。
+ */
+
+public class MemoChangeNotifier {
+    // バッチの外の変更を集める時間
+    private static final long WINDOW_MILLIS = 50L;
+    // これより多くのメモが変更された場合は、一覧のURIに1回だけ通知する
+    private static final int MAX_ITEM_NOTIFICATIONS = 16;
+
+    private final ContentResolver mResolver;
+    private final Uri mListUri;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // 送信待ちのURI
+    private final Set<Uri> mPending = new LinkedHashSet<>();
+
+    // スレッドごとのバッチ
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+
+    private static class Batch {
+        // 入れ子の深さ
+        int depth;
+        final Set<Uri> uris = new LinkedHashSet<>();
+    }
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public MemoChangeNotifier(ContentResolver resolver, Uri listUri) {
+        mResolver = resolver;
+        mListUri = listUri;
+    }
+
+    // 通知に使うHandler (メインスレッド)
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    // バッチを開始する
+    // 入れ子にしてもよく、一番外側のendBatch()で通知する
+    public void beginBatch() {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+        batch.depth++;
+    }
+
+    // バッチを終了する
+    // successfulがfalseの場合(ロールバックした場合)、そのバッチの変更は通知しない
+    public void endBatch(boolean successful) {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            throw new IllegalStateException("endBatch without beginBatch");
+        }
+        if (--batch.depth > 0) {
+            return;
+        }
+        mBatch.remove();
+
+        if (successful && !batch.uris.isEmpty()) {
+            // 送信待ちの変更もあわせて、すぐに送る
+            synchronized (mPending) {
+                mPending.addAll(batch.uris);
+            }
+            flush();
+        }
+    }
+
+    // 変更されたURIを登録する
+    public void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.uris.add(uri);
+            return;
+        }
+
+        synchronized (mPending) {
+            boolean scheduled = !mPending.isEmpty();
+            mPending.add(uri);
+            if (!scheduled) {
+                mHandler.postDelayed(mFlushTask, WINDOW_MILLIS);
+            }
+        }
+    }
+
+    // 送信待ちの変更を送る
+    private void flush() {
+        List<Uri> uris;
+        synchronized (mPending) {
+            mHandler.removeCallbacks(mFlushTask);
+            if (mPending.isEmpty()) {
+                return;
+            }
+            uris = new ArrayList<>(mPending);
+            mPending.clear();
+        }
+
+        if (uris.size() > MAX_ITEM_NOTIFICATIONS || uris.contains(mListUri)) {
+            // 一覧のURIへの通知は、個々のメモを監視しているObserverにも届く
+            mResolver.notifyChange(mListUri, null);
+        } else {
+            for (Uri uri : uris) {
+                mResolver.notifyChange(uri, null);
+            }
+        }
+    }
+}
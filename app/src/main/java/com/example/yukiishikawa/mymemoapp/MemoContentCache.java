@@ -0,0 +1,219 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by yukiishikawa on 2017/09/17.
+ * 読み込んだメモの内容を保持するLRUキャッシュ
+ *
+ * 容量はエントリ数ではなく文字数で管理する。
+ * MemoProviderの変更通知を監視して、変更されたメモを破棄する。
+ * MemoRepositoryで保存した内容は、そのままキャッシュに書き込む。
+ *
+ * 自分の保存による変更通知かどうかは、通知の有無ではなく内容のハッシュ値で判断する。
+ * MemoProviderは通知をまとめるので、自分の保存の通知に他からの変更が含まれている場合がある。
+ * 通知が来たら現在のハッシュ値を問い合わせ、保存したものと異なれば破棄する。
+ */
+
+public class MemoContentCache {
+    // アプリのメモリクラスのうち、キャッシュに使う割合
+    private static final int MEMORY_CLASS_DIVISOR = 16;
+    // 1件のメモが容量のこの割合を超える場合はキャッシュしない
+    private static final int MAX_ENTRY_DIVISOR = 4;
+
+    private static MemoContentCache sInstance;
+
+    private final LruCache<Uri, String> mCache;
+
+    // 変更のたびに進める番号
+    // 読み込み中に変更された場合、古い内容をキャッシュに入れないために使う
+    private final AtomicLong mModCount = new AtomicLong();
+
+    // 自分の保存による変更通知を待っているURIと、保存した内容のハッシュ値
+    // 書き込んだ内容が、自分の変更通知で破棄されないようにする
+    private final ConcurrentHashMap<Uri, Long> mExpectedNotifications = new ConcurrentHashMap<>();
+
+    private final ContentResolver mResolver;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri == null || MemoProvider.CONTENT_URI.equals(uri)) {
+                // メモ一覧の変更は、どのメモが変わったか分からないのですべて破棄する
+                invalidateAll();
+            } else if (!isExpectedContent(uri)) {
+                invalidate(uri);
+            }
+        }
+    };
+
+    private MemoContentCache(ContentResolver resolver, int maxChars) {
+        mResolver = resolver;
+        mCache = new LruCache<Uri, String>(maxChars) {
+            @Override
+            protected int sizeOf(Uri key, String value) {
+                return value.length();
+            }
+        };
+    }
+
+    // インスタンスを取得する
+    public static synchronized MemoContentCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+
+            // 端末のメモリクラス(MB)に合わせて容量を決める (1文字2バイト)
+            ActivityManager activityManager = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+            int maxChars = activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR / 2;
+
+            sInstance = new MemoContentCache(appContext.getContentResolver(), maxChars);
+            appContext.getContentResolver().registerContentObserver(MemoProvider.CONTENT_URI, true, sInstance.mObserver);
+        }
+        return sInstance;
+    }
+
+    // キャッシュからメモを取得する
+    // キャッシュに無い場合はnullを返す
+    public String get(Uri uri) {
+        return mCache.get(uri);
+    }
+
+    // 現在の変更番号を取得する
+    // 読み込みを始める前に取得し、putIfUnchanged()に渡す
+    public long getModCount() {
+        return mModCount.get();
+    }
+
+    // 読み込んだメモをキャッシュに入れる
+    // 読み込み中に変更があった場合は、古い可能性があるので入れない
+    public void putIfUnchanged(Uri uri, String memo, long modCount) {
+        if (!isCacheable(memo)) {
+            return;
+        }
+        synchronized (this) {
+            if (mModCount.get() == modCount) {
+                mCache.put(uri, memo);
+            }
+        }
+    }
+
+    // 保存したメモをキャッシュに書き込む
+    public void put(Uri uri, String memo) {
+        synchronized (this) {
+            mModCount.incrementAndGet();
+            if (isCacheable(memo)) {
+                mCache.put(uri, memo);
+            } else {
+                mCache.remove(uri);
+            }
+        }
+    }
+
+    // これから自分で変更するメモの、次の変更通知で破棄しないようにする
+    // 通知が来たときのメモの内容のハッシュ値がcontentHashと一致する場合だけ、キャッシュを残す
+    public void expectNotification(Uri uri, long contentHash) {
+        mExpectedNotifications.put(uri, contentHash);
+    }
+
+    // 変更に失敗した場合など、変更通知が来ないことが分かった場合に呼ぶ
+    public void cancelExpectedNotification(Uri uri) {
+        mExpectedNotifications.remove(uri);
+    }
+
+    // 変更通知が来たメモが、自分で保存した内容のままかどうか
+    // 変更通知はバインダーのスレッドで届くので、ここでMemoProviderに問い合わせてよい
+    private boolean isExpectedContent(Uri uri) {
+        Long expected = mExpectedNotifications.remove(uri);
+        if (expected == null) {
+            return false;
+        }
+        Cursor cursor;
+        try {
+            cursor = mResolver.query(uri, new String[]{MemoDBHelper.CONTENT_HASH}, null, null, null);
+        } catch (RuntimeException e) {
+            // 確かめられない場合は破棄しておく
+            e.printStackTrace();
+            return false;
+        }
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) && cursor.getLong(0) == expected;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // メモをキャッシュから破棄する
+    public void invalidate(Uri uri) {
+        synchronized (this) {
+            mModCount.incrementAndGet();
+            mCache.remove(uri);
+        }
+    }
+
+    // すべてのメモをキャッシュから破棄する
+    public void invalidateAll() {
+        synchronized (this) {
+            mModCount.incrementAndGet();
+            mCache.evictAll();
+            mExpectedNotifications.clear();
+        }
+    }
+
+    // キャッシュの容量(文字数)を変更する
+    public void resize(int maxChars) {
+        mCache.resize(maxChars);
+    }
+
+    private boolean isCacheable(String memo) {
+        return memo != null && memo.length() <= mCache.maxSize() / MAX_ENTRY_DIVISOR;
+    }
+
+    // ヒット数
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    // ミス数
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    // 容量を超えたために破棄された数
+    public int evictionCount() {
+        return mCache.evictionCount();
+    }
+
+    // 現在の文字数
+    public int size() {
+        return mCache.size();
+    }
+
+    // 最大の文字数
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    @Override
+    public String toString() {
+        return "MemoContentCache[size=" + size() + "/" + maxSize()
+                + ", hits=" + hitCount() + ", misses=" + missCount()
+                + ", evictions=" + evictionCount() + "]";
+    }
+}
@@ -1,8 +1,22 @@
 package com.example.yukiishikawa.mymemoapp;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoFileCodec;
+import com.example.yukiishikawa.mymemoapp.core.MemoFileLayout;
+import com.example.yukiishikawa.mymemoapp.core.MemoFiles;
+import com.example.yukiishikawa.mymemoapp.core.MemoMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by yukiishikawa on 2017/07/30.
@@ -13,7 +27,9 @@ public class MemoDBHelper extends SQLiteOpenHelper {
     // データベース名
     private static final String DB_NAME = "memo.db";
     // データベースバージョン
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 8;
+    // 最初のバージョン (onCreateで作成するテーブルのバージョン)
+    private static final int DB_VERSION_INITIAL = 1;
     // テーブル名
     public static final String TABLE_NAME = "memo";
     // IDカラム
@@ -27,8 +43,66 @@ public class MemoDBHelper extends SQLiteOpenHelper {
     // 更新日時
     public static final String DATE_MODIFIED = "date_modified";
 
+    // ファイルの圧縮形式 (MemoFileCodec.ENCODING_*)
+    public static final String ENCODING = "encoding";
+
+    // 一覧表示用の抜粋 (MemoMetadata)
+    // 検索結果の抜粋(SNIPPET)とは別のカラム
+    public static final String PREVIEW = "preview";
+    // 文字数
+    public static final String CHAR_COUNT = "char_count";
+    // 行数
+    public static final String LINE_COUNT = "line_count";
+    // 単語数
+    public static final String WORD_COUNT = "word_count";
+    // 内容のハッシュ値
+    public static final String CONTENT_HASH = "content_hash";
+
+    // 全文検索用のテーブル名
+    public static final String FTS_TABLE_NAME = "memo_fts";
+    // 全文検索用テーブルのIDカラム (memoテーブルの_idと一致させる)
+    public static final String FTS_DOCID = "docid";
+    // 本文カラム
+    // memoテーブルでは、小さなメモの本文をファイルではなくここに保存する
+    public static final String BODY = "body";
+    // 検索結果の抜粋カラム
+    public static final String SNIPPET = "snippet";
+    // 全文検索用テーブルに登録する本文の最大文字数
+    // 大きなメモの全文をもう1つ持たないよう、索引には先頭だけを登録する (それより後ろは検索できない)
+    static final int FTS_MAX_BODY_LENGTH = 64 * 1024;
+
+    // 一覧の並び順(更新日時の降順)用のインデックス
+    private static final String INDEX_DATE_MODIFIED = "memo_date_modified_idx";
+    // タイトルの前方一致検索用のインデックス
+    // LIKEは大文字小文字を区別しないので、NOCASEで作成する
+    private static final String INDEX_TITLE = "memo_title_idx";
+    // 更新日時を更新するトリガー
+    private static final String TRIGGER_DATE_MODIFIED = "memo_date_modified_trigger";
+
+    // WALをデータベースに書き戻す(チェックポイント)間隔のページ数
+    // 保存や取り込みが続く間のチェックポイントを減らすため、Androidの既定(100ページ)より大きくする
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+    // チェックポイントの後に残しておくWALファイルの大きさの上限
+    private static final long WAL_SIZE_LIMIT_BYTES = 4 * 1024 * 1024;
+
+    private final Context mContext;
+
     public MemoDBHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        mContext = context;
+        // 保存や取り込みの間も一覧の読み込みを待たせないよう、WALモードにする
+        // 読み込みは、書き込み用とは別の接続(コネクションプール)で並行して行われる
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // WALモードでは、コミットのたびにfsyncしなくてもデータベースは壊れない
+        // 電源断で直前のコミットが失われることはあるが、本文のファイルは保存時に同期している
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        // 結果の行を返すPRAGMAは、execSQLでは実行できない
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+        DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT_BYTES, null);
     }
 
     @Override
@@ -41,10 +115,245 @@ public class MemoDBHelper extends SQLiteOpenHelper {
                 + " INTEGER NOT NULL, " + DATE_MODIFIED
                 + " TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL " + ")";
         db.execSQL(createTable);
+
+        // 以降の変更は、既存のデータベースと同じマイグレーションで適用する
+        onUpgrade(db, DB_VERSION_INITIAL, DB_VERSION);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // バージョン管理をここで行う
+        // 1つずつバージョンを上げていくので、どのバージョンからでも最新にできる
+        // onUpgradeはトランザクションの中で呼ばれるので、途中で失敗した場合は元に戻る
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            migrateTo(db, version);
+        }
+    }
+
+    // 1つ前のバージョンから、指定したバージョンに移行する
+    private void migrateTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 2:
+                // 全文検索用テーブルを追加し、既存のメモを登録する
+                createFtsTable(db);
+                rebuildFtsTable(db, version);
+                break;
+            case 3:
+                // 一覧の並び順とタイトル検索用のインデックスを追加する
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_DATE_MODIFIED + " ON " + TABLE_NAME
+                        + " (" + DATE_MODIFIED + " DESC, " + _ID + " DESC)");
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_TITLE + " ON " + TABLE_NAME
+                        + " (" + TITLE + " COLLATE NOCASE)");
+
+                // 更新日時を自動で更新するトリガーを追加する
+                // (このバージョンのトリガーは、バージョン7で作り直す)
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TRIGGER_DATE_MODIFIED
+                        + " AFTER UPDATE ON " + TABLE_NAME
+                        + " FOR EACH ROW WHEN NEW." + DATE_MODIFIED + " = OLD." + DATE_MODIFIED
+                        + " BEGIN UPDATE " + TABLE_NAME + " SET " + DATE_MODIFIED + " = CURRENT_TIMESTAMP"
+                        + " WHERE " + _ID + " = NEW." + _ID + "; END");
+                break;
+            case 4:
+                // 小さなメモの本文を保存するカラムを追加する
+                // 既存のメモは、次に保存したときに移される
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + BODY + " TEXT");
+                break;
+            case 5:
+                // ファイルの圧縮形式を記録するカラムを追加する
+                // 既存のファイルは圧縮されていない
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + ENCODING
+                        + " INTEGER NOT NULL DEFAULT " + MemoFileCodec.ENCODING_PLAIN);
+                break;
+            case 6:
+                // 一覧表示用の情報のカラムを追加し、既存のメモの値を求めておく
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + PREVIEW + " TEXT");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + CHAR_COUNT + " INTEGER");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + LINE_COUNT + " INTEGER");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + WORD_COUNT + " INTEGER");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + CONTENT_HASH + " INTEGER");
+                fillMetadata(db);
+                break;
+            case 7:
+                // 保存先の切り替え(本文をファイルに移すなど)で、更新日時が変わらないようにする
+                db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_DATE_MODIFIED);
+                createDateModifiedTrigger(db);
+                break;
+            case 8:
+                // 出力先ディレクトリの直下にあるメモファイルを、サブディレクトリに移す
+                migrateFileLayout(db, MemoRepository.getFileLayout(mContext));
+                break;
+            default:
+                throw new IllegalStateException("no migration to version " + version);
+        }
+    }
+
+    // 全文検索用の仮想テーブルを作成する
+    // 日本語は空白で区切られないため、ICUのトークナイザで分割する
+    private static void createFtsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + FTS_TABLE_NAME
+                + " USING fts4(" + TITLE + ", " + BODY + ", tokenize=icu)");
+    }
+
+    // 全文検索用テーブルを、memoテーブルの内容で作り直す
+    // マイグレーションの途中でも使えるよう、schemaVersionにはその時点のバージョンを渡す
+    static void rebuildFtsTable(SQLiteDatabase db, int schemaVersion) {
+        db.execSQL("DELETE FROM " + FTS_TABLE_NAME);
+
+        // バージョン4より前は本文カラムが、バージョン5より前は圧縮形式カラムが無い
+        String[] columns = {
+                _ID, TITLE, DATA,
+                schemaVersion >= 4 ? BODY : "NULL",
+                schemaVersion >= 5 ? ENCODING : String.valueOf(MemoFileCodec.ENCODING_PLAIN)
+        };
+        Cursor cursor = db.query(TABLE_NAME, columns, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                indexMemo(db, cursor.getLong(0), cursor.getString(1),
+                        readIndexBody(cursor.getString(2), cursor.getString(3), cursor.getInt(4)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // 全文検索用テーブルに登録する本文を求める
+    // 本文がデータベースに保存されていない場合は、ファイルの先頭から読み込む
+    // 読み込みに時間がかかるので、できるだけ書き込みのトランザクションの外で呼ぶ
+    static String readIndexBody(String path, String body, int encoding) {
+        if (body != null) {
+            return MemoFiles.prefix(body, FTS_MAX_BODY_LENGTH);
+        }
+        if (TextUtils.isEmpty(path)) {
+            return null;
+        }
+        try {
+            return MemoFiles.readPrefix(new File(path), encoding, FTS_MAX_BODY_LENGTH);
+        } catch (IOException e) {
+            // 本文が読めない場合は、タイトルだけを登録しておく
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // 1件のメモを全文検索用テーブルに登録する
+    // 既に登録済みの場合は置き換える
+    // 本文はreadIndexBody()で求めたものを渡す
+    static void indexMemo(SQLiteDatabase db, long id, String title, String body) {
+        String docId = String.valueOf(id);
+        db.execSQL("DELETE FROM " + FTS_TABLE_NAME + " WHERE " + FTS_DOCID + " = ?", new Object[]{docId});
+        db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (" + FTS_DOCID + ", " + TITLE + ", " + BODY
+                + ") VALUES (?, ?, ?)", new Object[]{docId, title, body});
+    }
+
+    // 全文検索用テーブルに、同じ内容で登録済みかどうか
+    // 大きなメモの索引の範囲より後ろだけを編集した場合などに、登録し直さずに済ませる
+    static boolean isIndexed(SQLiteDatabase db, long id, String title, String body) {
+        Cursor cursor = db.query(FTS_TABLE_NAME, new String[]{TITLE, BODY}, FTS_DOCID + " = ?",
+                new String[]{String.valueOf(id)}, null, null, null);
+        try {
+            return cursor.moveToFirst()
+                    && TextUtils.equals(title, cursor.getString(0))
+                    && TextUtils.equals(body, cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // 一覧表示用の情報が無いメモについて、本文から求めて保存する
+    static void fillMetadata(SQLiteDatabase db) {
+        String[] columns = {_ID, DATA, BODY, ENCODING};
+        Cursor cursor = db.query(TABLE_NAME, columns, CONTENT_HASH + " IS NULL", null, null, null, null);
+        try {
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                String body = cursor.getString(2);
+                String path = cursor.getString(1);
+                if (body == null && !TextUtils.isEmpty(path)) {
+                    try {
+                        body = MemoFiles.read(new File(path), cursor.getInt(3));
+                    } catch (IOException e) {
+                        // 読めないメモは、次に保存したときに求める
+                        e.printStackTrace();
+                        continue;
+                    }
+                }
+
+                values.clear();
+                putMetadata(values, MemoMetadata.of(body != null ? body : ""));
+                db.update(TABLE_NAME, values, _ID + " = ?", new String[]{String.valueOf(cursor.getLong(0))});
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // 内容が変わる更新で、更新日時が明示的に指定されていなければ現在時刻にするトリガーを作成する
+    // 内容が変わったかどうかは、ハッシュ値・タイトル・本文で判断する
+    // 保存先だけを変える更新(_data, encoding, 本文をファイルに移してNULLにする)では、更新日時は変えない
+    static void createDateModifiedTrigger(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TRIGGER_DATE_MODIFIED
+                + " AFTER UPDATE ON " + TABLE_NAME
+                + " FOR EACH ROW WHEN NEW." + DATE_MODIFIED + " = OLD." + DATE_MODIFIED
+                + " AND (NEW." + CONTENT_HASH + " IS NOT OLD." + CONTENT_HASH
+                + " OR NEW." + TITLE + " IS NOT OLD." + TITLE
+                + " OR (NEW." + BODY + " IS NOT OLD." + BODY + " AND NEW." + BODY + " IS NOT NULL))"
+                + " BEGIN UPDATE " + TABLE_NAME + " SET " + DATE_MODIFIED + " = CURRENT_TIMESTAMP"
+                + " WHERE " + _ID + " = NEW." + _ID + "; END");
+    }
+
+    // 出力先ディレクトリの直下にあるメモファイルをサブディレクトリに移し、_dataを書き換える
+    // データベースを開く前(onUpgrade)に1回だけ行うので、古いパスを読んで保存する処理とは重ならない
+    // 途中で失敗してトランザクションが戻った場合も、次に開いたときにMemoFileLayout.migrate()が
+    // 移した先を見つけて書き換え直す
+    // 出力先ディレクトリが無い場合や移せなかったメモは、元のパスのまま使う
+    private static void migrateFileLayout(SQLiteDatabase db, MemoFileLayout layout) {
+        if (layout == null) {
+            return;
+        }
+
+        // 書き換えながら読まないよう、先に一覧にしておく
+        List<Long> ids = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        Cursor cursor = db.query(TABLE_NAME, new String[]{_ID, DATA}, DATA + " IS NOT NULL",
+                null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(1);
+                File parent = new File(path).getAbsoluteFile().getParentFile();
+                if (layout.getRoot().equals(parent)) {
+                    ids.add(cursor.getLong(0));
+                    paths.add(path);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // パスだけの更新では、更新日時のトリガーは動かない
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < ids.size(); i++) {
+            try {
+                File target = layout.migrate(new File(paths.get(i)));
+                values.put(DATA, target.getAbsolutePath());
+                db.update(TABLE_NAME, values, _ID + " = ?", new String[]{String.valueOf(ids.get(i))});
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // 一覧表示用の情報を、保存する値に詰める
+    static void putMetadata(ContentValues values, MemoMetadata metadata) {
+        values.put(PREVIEW, metadata.preview);
+        values.put(CHAR_COUNT, metadata.charCount);
+        values.put(LINE_COUNT, metadata.lineCount);
+        values.put(WORD_COUNT, metadata.wordCount);
+        values.put(CONTENT_HASH, metadata.contentHash);
+    }
+
+    // memoテーブルに存在しないメモを、全文検索用テーブルから削除する
+    static void pruneFtsTable(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + FTS_TABLE_NAME + " WHERE " + FTS_DOCID
+                + " NOT IN (SELECT " + _ID + " FROM " + TABLE_NAME + ")");
     }
 }
@@ -3,11 +3,13 @@ package com.example.yukiishikawa.mymemoapp;
 import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.DashPathEffect;
 import android.graphics.Paint;
-import android.graphics.Path;
+import android.graphics.Shader;
+import android.text.Layout;
 import android.util.AttributeSet;
 import android.widget.EditText;
 
@@ -27,9 +29,25 @@ public class MemoEditText extends android.support.v7.widget.AppCompatEditText {
     private int mLineHeight;
     private int mDisplayLineCount;
 
-    private Path mPath;
+    // 罫線の座標 (drawLines用に x0, y0, x1, y1 を並べたもの)
+    // 表示範囲の先頭行を0行目とした位置で作っておき、描画時に先頭行の位置まで平行移動する
+    // スクロールしても作り直さずに済む
+    private float[] mLines;
+    // mLinesを作ったときの値 (変わったら作り直す)
+    private int mLinesWidth;
+    private int mLinesLineHeight;
+    private int mLinesPaddingTop;
+    private int mLinesCount;
+
     private Paint mPaint;
 
+    private OnScrollChangedListener mOnScrollChangedListener;
+
+    // スクロール位置の変更を受け取るリスナー
+    public interface OnScrollChangedListener {
+        void onScrollChanged(MemoEditText view, int scrollY, int oldScrollY);
+    }
+
     public MemoEditText(Context context) {
         this(context, null);
     }
@@ -45,7 +63,12 @@ public class MemoEditText extends android.support.v7.widget.AppCompatEditText {
     }
 
     private void init(Context context, AttributeSet attrs) {
-        mPath = new Path();
+        // 大きなメモでも途中の編集が遅くならないよう、ピーステーブルのEditableを使う
+        setEditableFactory(MemoEditable.Factory.getInstance());
+        if (!(getText() instanceof MemoEditable)) {
+            setText(getText());
+        }
+
         mPaint = new Paint();
 
         mPaint.setStyle(Paint.Style.STROKE);
@@ -64,12 +87,12 @@ public class MemoEditText extends android.support.v7.widget.AppCompatEditText {
             }
 
             // 罫線のエフェクタを設定
+            // DashPathEffectはパスの分割が重いので、破線の模様を横に繰り返すシェーダで描く
             if ((lineEffectBit & DASH) == DASH) {
-                DashPathEffect effect = new DashPathEffect(new float[]{
+                mPaint.setShader(createDashShader(
                         resources.getDimension(R.dimen.text_rule_interval_on),
-                        resources.getDimension(R.dimen.text_rule_interval_off)
-                }, 0f);
-                mPaint.setPathEffect(effect);
+                        resources.getDimension(R.dimen.text_rule_interval_off),
+                        lineColor));
             }
 
             float strokeWidth;
@@ -84,6 +107,30 @@ public class MemoEditText extends android.support.v7.widget.AppCompatEditText {
         }
     }
 
+    // 破線の1周期分(実線部分と空白部分)の模様を、横方向に繰り返すシェーダを作る
+    private static Shader createDashShader(float intervalOn, float intervalOff, int color) {
+        int on = Math.max(1, Math.round(intervalOn));
+        int off = Math.max(0, Math.round(intervalOff));
+        Bitmap bitmap = Bitmap.createBitmap(on + off, 1, Bitmap.Config.ARGB_8888);
+        for (int x = 0; x < on; x++) {
+            bitmap.setPixel(x, 0, color);
+        }
+        // 縦方向は線の太さに合わせて引き伸ばす
+        return new BitmapShader(bitmap, Shader.TileMode.REPEAT, Shader.TileMode.CLAMP);
+    }
+
+    public void setOnScrollChangedListener(OnScrollChangedListener listener) {
+        mOnScrollChangedListener = listener;
+    }
+
+    @Override
+    protected void onScrollChanged(int horiz, int vert, int oldHoriz, int oldVert) {
+        super.onScrollChanged(horiz, vert, oldHoriz, oldVert);
+        if (mOnScrollChangedListener != null && vert != oldVert) {
+            mOnScrollChangedListener.onScrollChanged(this, vert, oldVert);
+        }
+    }
+
     @Override
     public void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
@@ -92,23 +139,60 @@ public class MemoEditText extends android.support.v7.widget.AppCompatEditText {
         int measuredHeight = getMeasuredHeight();
         mLineHeight = getLineHeight();
 
-        mDisplayLineCount = measuredHeight / mLineHeight;
+        mDisplayLineCount = mLineHeight > 0 ? measuredHeight / mLineHeight : 0;
     }
 
     @Override
     public void onDraw(Canvas canvas) {
-        int paddingTop = getExtendedPaddingTop();
-        int scrollY = getScrollY();
-        int firstVisibleLine = getLayout().getLineForVertical(scrollY);
-        int lastVisibleLine = firstVisibleLine + mDisplayLineCount;
-
-        mPath.reset();
-        for ( int i = firstVisibleLine; i <= lastVisibleLine; i++) {
-            mPath.moveTo(0, i * mLineHeight + paddingTop);
-            mPath.lineTo(mMeasuredWidth, i * mLineHeight + paddingTop);
+        // 文字サイズや行間が変わった場合は、次のonMeasureを待たずに行の高さを合わせる
+        int lineHeight = getLineHeight();
+        if (lineHeight != mLineHeight && lineHeight > 0) {
+            mLineHeight = lineHeight;
+            mDisplayLineCount = getMeasuredHeight() / lineHeight;
+        }
+
+        if (mLineHeight > 0) {
+            int paddingTop = getExtendedPaddingTop();
+            int scrollY = getScrollY();
+
+            // レイアウトがまだ無い場合は、行の高さから先頭行を求める
+            Layout layout = getLayout();
+            int firstVisibleLine = layout != null
+                    ? layout.getLineForVertical(scrollY)
+                    : Math.max(0, scrollY / mLineHeight);
+
+            // 表示範囲の行数(+1)の罫線を描く
+            int lineCount = mDisplayLineCount + 1;
+            if (mLines == null || mLinesWidth != mMeasuredWidth || mLinesLineHeight != mLineHeight
+                    || mLinesPaddingTop != paddingTop || mLinesCount != lineCount) {
+                buildLines(mMeasuredWidth, mLineHeight, paddingTop, lineCount);
+            }
+
+            int save = canvas.save();
+            canvas.translate(0, firstVisibleLine * mLineHeight);
+            canvas.drawLines(mLines, mPaint);
+            canvas.restoreToCount(save);
         }
 
-        canvas.drawPath(mPath, mPaint);
         super.onDraw(canvas);
     }
+
+    // 罫線の座標を作り直す
+    private void buildLines(int width, int lineHeight, int paddingTop, int lineCount) {
+        if (mLines == null || mLines.length != lineCount * 4) {
+            mLines = new float[lineCount * 4];
+        }
+        for (int i = 0; i < lineCount; i++) {
+            float y = i * lineHeight + paddingTop;
+            mLines[i * 4] = 0;
+            mLines[i * 4 + 1] = y;
+            mLines[i * 4 + 2] = width;
+            mLines[i * 4 + 3] = y;
+        }
+
+        mLinesWidth = width;
+        mLinesLineHeight = lineHeight;
+        mLinesPaddingTop = paddingTop;
+        mLinesCount = lineCount;
+    }
 }
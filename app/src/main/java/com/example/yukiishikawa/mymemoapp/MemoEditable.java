@@ -0,0 +1,482 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.text.Editable;
+import android.text.InputFilter;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoPieceTable;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Created by yukiishikawa on 2017/10/22.
+ * ピーステーブルで文字列を保持するEditable
+ *
+ * SpannableStringBuilderはギャップバッファなので、大きなメモの離れた位置を編集すると
+ * ギャップの移動で文字列の大部分をコピーすることになる。
+ * 本文はmemo-coreのMemoPieceTableで持ち、ここではEditableとしてのスパンと通知を扱う。
+ *
+ * スパンは件数が少ない(選択範囲、IMEの入力中の範囲、TextViewの監視用程度)ので、リストで持つ。
+ */
+
+public class MemoEditable implements Editable {
+    private static final InputFilter[] NO_FILTERS = new InputFilter[0];
+
+    // スパンの端の扱い (SPAN_POINT_MARK_MASKの上位と下位の値)
+    // MARKは置き換えた範囲の前に、POINTは後ろに付く
+    private static final int MARK = 1;
+    private static final int POINT = 2;
+
+    // 本文
+    private final MemoPieceTable mText;
+
+    private final List<SpanRecord> mSpans = new ArrayList<>();
+    private final IdentityHashMap<Object, SpanRecord> mSpanLookup = new IdentityHashMap<>();
+
+    private InputFilter[] mFilters = NO_FILTERS;
+
+    // MemoEditTextに設定するファクトリ
+    public static class Factory extends Editable.Factory {
+        private static final Factory sInstance = new Factory();
+
+        public static Factory getInstance() {
+            return sInstance;
+        }
+
+        @Override
+        public Editable newEditable(CharSequence source) {
+            return new MemoEditable(source);
+        }
+    }
+
+    // スパンの情報
+    private static final class SpanRecord {
+        final Object what;
+        int start;
+        int end;
+        int flags;
+
+        SpanRecord(Object what, int start, int end, int flags) {
+            this.what = what;
+            this.start = start;
+            this.end = end;
+            this.flags = flags;
+        }
+    }
+
+    public MemoEditable(CharSequence source) {
+        this(source, 0, source.length());
+    }
+
+    public MemoEditable(CharSequence source, int start, int end) {
+        mText = new MemoPieceTable(source, start, end);
+
+        if (source instanceof Spanned) {
+            copySpans((Spanned) source, start, end, 0, null);
+        }
+    }
+
+    // 現在の本文のスナップショットを取得する
+    // ピースの並びを共有するので、本文の大きさによらずすぐに作れる
+    public MemoPieceTable.Snapshot snapshot() {
+        return mText.snapshot();
+    }
+
+    // ----- CharSequence -----
+
+    @Override
+    public int length() {
+        return mText.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return mText.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new SpannableStringBuilder(this, start, end);
+    }
+
+    @Override
+    public String toString() {
+        return mText.toString();
+    }
+
+    // ----- GetChars -----
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        mText.getChars(start, end, dest, destoff);
+    }
+
+    // ----- Editable -----
+
+    @Override
+    public Editable replace(int st, int en, CharSequence source, int start, int end) {
+        checkRange("replace", st, en, length());
+
+        for (InputFilter filter : mFilters) {
+            CharSequence replacement = filter.filter(source, start, end, this, st, en);
+            if (replacement != null) {
+                source = replacement;
+                start = 0;
+                end = replacement.length();
+            }
+        }
+
+        int replacedLength = en - st;
+        int newLength = end - start;
+        if (replacedLength == 0 && newLength == 0 && !(source instanceof Spanned)) {
+            return this;
+        }
+
+        TextWatcher[] textWatchers = getSpans(st, st + replacedLength, TextWatcher.class);
+        for (TextWatcher watcher : textWatchers) {
+            watcher.beforeTextChanged(this, st, replacedLength, newLength);
+        }
+
+        // 本文を置き換える
+        if (replacedLength > 0) {
+            mText.delete(st, en);
+        }
+        if (newLength > 0) {
+            mText.insert(st, source, start, end);
+        }
+
+        // スパンの位置を合わせる
+        List<SpanChange> changes = new ArrayList<>();
+        adjustSpans(st, en, newLength, changes);
+        if (source instanceof Spanned) {
+            copySpans((Spanned) source, start, end, st, changes);
+        }
+
+        for (TextWatcher watcher : textWatchers) {
+            watcher.onTextChanged(this, st, replacedLength, newLength);
+        }
+        for (TextWatcher watcher : textWatchers) {
+            watcher.afterTextChanged(this);
+        }
+
+        // レイアウトを更新するTextWatcherの後で、スパンの変更を通知する
+        for (SpanChange change : changes) {
+            change.send(this);
+        }
+        return this;
+    }
+
+    @Override
+    public Editable replace(int st, int en, CharSequence text) {
+        return replace(st, en, text, 0, text.length());
+    }
+
+    @Override
+    public Editable insert(int where, CharSequence text, int start, int end) {
+        return replace(where, where, text, start, end);
+    }
+
+    @Override
+    public Editable insert(int where, CharSequence text) {
+        return replace(where, where, text, 0, text.length());
+    }
+
+    @Override
+    public Editable delete(int st, int en) {
+        return replace(st, en, "", 0, 0);
+    }
+
+    @Override
+    public Editable append(CharSequence text) {
+        int length = length();
+        return replace(length, length, text, 0, text.length());
+    }
+
+    @Override
+    public Editable append(CharSequence text, int start, int end) {
+        int length = length();
+        return replace(length, length, text, start, end);
+    }
+
+    @Override
+    public Editable append(char text) {
+        return append(String.valueOf(text));
+    }
+
+    @Override
+    public void clear() {
+        replace(0, length(), "", 0, 0);
+    }
+
+    @Override
+    public void clearSpans() {
+        List<SpanRecord> removed = new ArrayList<>(mSpans);
+        mSpans.clear();
+        mSpanLookup.clear();
+        for (SpanRecord record : removed) {
+            sendSpanRemoved(record.what, record.start, record.end);
+        }
+    }
+
+    @Override
+    public void setFilters(InputFilter[] filters) {
+        if (filters == null) {
+            throw new IllegalArgumentException();
+        }
+        mFilters = filters;
+    }
+
+    @Override
+    public InputFilter[] getFilters() {
+        return mFilters;
+    }
+
+    // ----- Spannable -----
+
+    @Override
+    public void setSpan(Object what, int start, int end, int flags) {
+        checkRange("setSpan", start, end, length());
+
+        SpanRecord record = mSpanLookup.get(what);
+        if (record != null) {
+            int oldStart = record.start;
+            int oldEnd = record.end;
+            record.start = start;
+            record.end = end;
+            record.flags = flags;
+            sendSpanChanged(what, oldStart, oldEnd, start, end);
+        } else {
+            record = new SpanRecord(what, start, end, flags);
+            mSpans.add(record);
+            mSpanLookup.put(what, record);
+            sendSpanAdded(what, start, end);
+        }
+    }
+
+    @Override
+    public void removeSpan(Object what) {
+        SpanRecord record = mSpanLookup.remove(what);
+        if (record != null) {
+            mSpans.remove(record);
+            sendSpanRemoved(what, record.start, record.end);
+        }
+    }
+
+    // ----- Spanned -----
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] getSpans(int queryStart, int queryEnd, Class<T> kind) {
+        if (kind == null) {
+            kind = (Class<T>) Object.class;
+        }
+
+        List<SpanRecord> matched = new ArrayList<>();
+        for (SpanRecord record : mSpans) {
+            if (!kind.isInstance(record.what)) {
+                continue;
+            }
+            if (record.start > queryEnd || record.end < queryStart) {
+                continue;
+            }
+            // 範囲の境界で接しているだけのスパンは含めない (空のスパンと空の範囲は除く)
+            if (record.start != record.end && queryStart != queryEnd
+                    && (record.start == queryEnd || record.end == queryStart)) {
+                continue;
+            }
+            // 優先度の高いものを前に並べる (同じ優先度は追加した順)
+            int priority = record.flags & SPAN_PRIORITY;
+            int index = matched.size();
+            while (index > 0 && (matched.get(index - 1).flags & SPAN_PRIORITY) < priority) {
+                index--;
+            }
+            matched.add(index, record);
+        }
+
+        T[] spans = (T[]) Array.newInstance(kind, matched.size());
+        for (int i = 0; i < spans.length; i++) {
+            spans[i] = (T) matched.get(i).what;
+        }
+        return spans;
+    }
+
+    @Override
+    public int getSpanStart(Object tag) {
+        SpanRecord record = mSpanLookup.get(tag);
+        return record != null ? record.start : -1;
+    }
+
+    @Override
+    public int getSpanEnd(Object tag) {
+        SpanRecord record = mSpanLookup.get(tag);
+        return record != null ? record.end : -1;
+    }
+
+    @Override
+    public int getSpanFlags(Object tag) {
+        SpanRecord record = mSpanLookup.get(tag);
+        return record != null ? record.flags : 0;
+    }
+
+    @Override
+    public int nextSpanTransition(int start, int limit, Class type) {
+        if (type == null) {
+            type = Object.class;
+        }
+        for (SpanRecord record : mSpans) {
+            if (!type.isInstance(record.what)) {
+                continue;
+            }
+            if (record.start > start && record.start < limit) {
+                limit = record.start;
+            }
+            if (record.end > start && record.end < limit) {
+                limit = record.end;
+            }
+        }
+        return limit;
+    }
+
+    // ----- スパンの調整と通知 -----
+
+    // スパンの変更通知 (本文の変更通知の後で送る)
+    private static final class SpanChange {
+        final Object what;
+        final int oldStart;
+        final int oldEnd;
+        final int newStart;
+        final int newEnd;
+        // -1: 削除, 0: 変更, 1: 追加
+        final int kind;
+
+        SpanChange(Object what, int oldStart, int oldEnd, int newStart, int newEnd, int kind) {
+            this.what = what;
+            this.oldStart = oldStart;
+            this.oldEnd = oldEnd;
+            this.newStart = newStart;
+            this.newEnd = newEnd;
+            this.kind = kind;
+        }
+
+        void send(MemoEditable editable) {
+            if (kind < 0) {
+                editable.sendSpanRemoved(what, oldStart, oldEnd);
+            } else if (kind > 0) {
+                editable.sendSpanAdded(what, newStart, newEnd);
+            } else {
+                editable.sendSpanChanged(what, oldStart, oldEnd, newStart, newEnd);
+            }
+        }
+    }
+
+    // st〜enをnewLength文字で置き換えた後の位置に、スパンを合わせる
+    private void adjustSpans(int st, int en, int newLength, List<SpanChange> changes) {
+        for (int i = mSpans.size() - 1; i >= 0; i--) {
+            SpanRecord record = mSpans.get(i);
+            int oldStart = record.start;
+            int oldEnd = record.end;
+            int startMode = (record.flags & SPAN_POINT_MARK_MASK) >> 4;
+            int endMode = record.flags & 0x03;
+
+            record.start = adjustPosition(oldStart, st, en, newLength, startMode);
+            record.end = Math.max(record.start, adjustPosition(oldEnd, st, en, newLength, endMode));
+
+            // 前後を含まないスパンは、中身が無くなったら削除する
+            if ((record.flags & SPAN_POINT_MARK_MASK) == SPAN_EXCLUSIVE_EXCLUSIVE
+                    && record.start == record.end && oldStart != oldEnd) {
+                mSpans.remove(i);
+                mSpanLookup.remove(record.what);
+                changes.add(new SpanChange(record.what, oldStart, oldEnd, 0, 0, -1));
+            } else if (record.start != oldStart || record.end != oldEnd) {
+                changes.add(new SpanChange(record.what, oldStart, oldEnd, record.start, record.end, 0));
+            }
+        }
+    }
+
+    // 置き換え後の位置
+    private static int adjustPosition(int position, int st, int en, int newLength, int mode) {
+        if (position < st) {
+            return position;
+        }
+        if (position > en) {
+            return position + newLength - (en - st);
+        }
+        if (position == st && (st != en || mode != POINT)) {
+            return st;
+        }
+        if (position == en) {
+            return st + newLength;
+        }
+        return mode == POINT ? st + newLength : st;
+    }
+
+    // sourceのstart〜endにあるスパンを、offsetの位置にコピーする
+    private void copySpans(Spanned source, int start, int end, int offset, List<SpanChange> changes) {
+        Object[] spans = source.getSpans(start, end, Object.class);
+        for (Object what : spans) {
+            // TextViewの監視用のスパンなどは、コピーすると二重に通知されるのでコピーしない
+            if (what instanceof NoCopySpan) {
+                continue;
+            }
+            int spanStart = Math.max(source.getSpanStart(what), start) - start + offset;
+            int spanEnd = Math.min(source.getSpanEnd(what), end) - start + offset;
+            int flags = source.getSpanFlags(what);
+            if (changes == null) {
+                // 作成時は、まだ通知する相手がいない
+                SpanRecord record = new SpanRecord(what, spanStart, spanEnd, flags);
+                mSpans.add(record);
+                mSpanLookup.put(what, record);
+            } else {
+                SpanRecord record = mSpanLookup.get(what);
+                if (record != null) {
+                    changes.add(new SpanChange(what, record.start, record.end, spanStart, spanEnd, 0));
+                    record.start = spanStart;
+                    record.end = spanEnd;
+                    record.flags = flags;
+                } else {
+                    record = new SpanRecord(what, spanStart, spanEnd, flags);
+                    mSpans.add(record);
+                    mSpanLookup.put(what, record);
+                    changes.add(new SpanChange(what, 0, 0, spanStart, spanEnd, 1));
+                }
+            }
+        }
+    }
+
+    private void sendSpanAdded(Object what, int start, int end) {
+        for (SpanWatcher watcher : getSpans(start, end, SpanWatcher.class)) {
+            watcher.onSpanAdded(this, what, start, end);
+        }
+    }
+
+    private void sendSpanRemoved(Object what, int start, int end) {
+        for (SpanWatcher watcher : getSpans(start, end, SpanWatcher.class)) {
+            watcher.onSpanRemoved(this, what, start, end);
+        }
+    }
+
+    private void sendSpanChanged(Object what, int oldStart, int oldEnd, int start, int end) {
+        int from = Math.min(oldStart, start);
+        int to = Math.min(Math.max(oldEnd, end), length());
+        for (SpanWatcher watcher : getSpans(from, to, SpanWatcher.class)) {
+            watcher.onSpanChanged(this, what, oldStart, oldEnd, start, end);
+        }
+    }
+
+    // ----- 範囲のチェック -----
+
+    private static void checkRange(String operation, int start, int end, int length) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end
+                    + ") has invalid range, length " + length);
+        }
+    }
+}
@@ -6,41 +6,191 @@ import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
+import android.text.Editable;
+import android.text.InputFilter;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
 /**
  * Created by yukiishikawa on 2017/08/06.
  */
 
 public class MemoFragment extends Fragment {
+    // 大きなメモの自動保存を行うまでの、入力が止まってからの時間
+    private static final long LARGE_AUTO_SAVE_DELAY_MS = 2000;
+    // ウィンドウの端からこの行数(表示上の行)以内までスクロールしたら、ウィンドウを移動する
+    private static final int WINDOW_EDGE_LINES = 50;
+
     private MemoEditText mMemoEditText;
 
     private Uri mMemoUri;
 
+    // 実行中の読み込み処理
+    private Future<?> mLoadFuture;
+
+    // 大きなメモを一部分だけ読み込んで編集している場合のドキュメントと、表示中のウィンドウ
+    private MemoLargeDocument mLargeDocument;
+    private MemoLargeDocument.Window mWindow;
+    // 大きなメモの編集の番号 (入力のたびに進める)
+    private int mLargeEditSequence;
+    // ウィンドウを移動中かどうか
+    private boolean mMovingWindow;
+
+    // 自動保存用の書き込みキュー
+    private MemoWriteBehindQueue mWriteBehindQueue;
+
+    // 新規メモを作成中かどうか
+    private boolean mCreating;
+
+    // load()のたびに進める番号
+    // 作成中に別のメモが読み込まれたことを検出するために使う
+    private int mLoadGeneration;
+
+    // 最後に反映した設定
+    private SettingPrefUtil.Settings mAppliedSettings;
+
+    // プログラムからテキストを設定している間は、自動保存しない
+    private boolean mIgnoreTextChanges;
+
+    // 入力を監視して、自動保存の書き込みキューに通知する
+    private final TextWatcher mAutoSaveWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            if (mIgnoreTextChanges || mLoadFuture != null) {
+                // 読み込み中の変更は保存しない
+                return;
+            }
+            autoSave(s);
+        }
+    };
+
+    // ウィンドウの移動中は、移動後の内容で置き換わるので入力を受け付けない
+    private final InputFilter mMovingWindowFilter = new InputFilter() {
+        @Override
+        public CharSequence filter(CharSequence source, int start, int end, Spanned dest, int dstart, int dend) {
+            return mMovingWindow ? dest.subSequence(dstart, dend) : null;
+        }
+    };
+
+    // スクロールを監視して、大きなメモのウィンドウを移動する
+    private final MemoEditText.OnScrollChangedListener mWindowScrollListener = new MemoEditText.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged(MemoEditText view, int scrollY, int oldScrollY) {
+            if (mLargeDocument != null) {
+                moveWindowIfNeeded(scrollY);
+            }
+        }
+    };
+
+    // 大きなメモの自動保存
+    private final Runnable mLargeAutoSave = new Runnable() {
+        @Override
+        public void run() {
+            commitLargeAsync(null);
+        }
+    };
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mWriteBehindQueue = new MemoWriteBehindQueue(getActivity());
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         // レイアウトXMLからViewを生成
         View view = inflater.inflate(R.layout.fragment_memo, container, false);
 
         mMemoEditText = (MemoEditText)view.findViewById(R.id.Memo);
+        mMemoEditText.addTextChangedListener(mAutoSaveWatcher);
+        mMemoEditText.setFilters(new InputFilter[]{mMovingWindowFilter});
+        mMemoEditText.setOnScrollChangedListener(mWindowScrollListener);
 
         return view;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        // 設定画面から戻った場合などに、変更された設定を反映する
+        reflectSettings();
+    }
+
+    @Override
+    public void onPause() {
+        // 画面から離れる前に、書き込み待ちのメモを確実に保存する
+        mWriteBehindQueue.flush();
+        if (mLargeDocument != null) {
+            // 大きなメモの書き戻しはファイル全体を書き直すので、メインスレッドでは待たない
+            mMemoEditText.removeCallbacks(mLargeAutoSave);
+            commitLargeAsync(null);
+        }
+        super.onPause();
+    }
+
+    @Override
+    public void onDestroyView() {
+        // Viewが破棄された後に読み込み結果が届かないよう、キャンセルしておく
+        cancelLoad();
+        mMemoEditText.removeTextChangedListener(mAutoSaveWatcher);
+        mMemoEditText.setOnScrollChangedListener(null);
+        mMemoEditText.removeCallbacks(mLargeAutoSave);
+        // 新しいViewには、設定をすべて反映し直す
+        mAppliedSettings = null;
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onDestroy() {
+        mWriteBehindQueue.shutdown();
+        super.onDestroy();
+    }
+
     // 設定を反映する
     public void reflectSettings() {
         Context context = getActivity();
 
-        if (context != null) {
-            // SharedPreferencesから値を取得して設定を反映
-            setFontSize(SettingPrefUtil.getFontSize(context));
-            setTypeface(SettingPrefUtil.getTypeface(context));
-            setMemoColor(SettingPrefUtil.isScreenReverse(context));
+        if (context != null && mMemoEditText != null) {
+            applySettings(SettingPrefUtil.getSettings(context));
+        }
+    }
+
+    // 設定をまとめて反映する
+    // 前回から変わった値だけを設定するので、再レイアウトと再描画は1回で済む
+    private void applySettings(SettingPrefUtil.Settings settings) {
+        SettingPrefUtil.Settings applied = mAppliedSettings;
+        if (settings == applied) {
+            return;
+        }
+
+        if (applied == null || applied.fontSize != settings.fontSize) {
+            setFontSize(settings.fontSize);
+        }
+        if (applied == null || applied.typeface != settings.typeface) {
+            setTypeface(settings.typeface);
+        }
+        if (applied == null || applied.screenReverse != settings.screenReverse) {
+            setMemoColor(settings.screenReverse);
         }
+        mAppliedSettings = settings;
     }
 
     // 文字サイズの設定を反映する
@@ -64,11 +214,79 @@ public class MemoFragment extends Fragment {
 
     // 保存する
     public void save() {
-        if (mMemoUri != null) {
-            MemoRepository.update(getActivity(), mMemoUri, mMemoEditText.getText().toString());
-        } else {
+        if (mLargeDocument != null) {
+            // 大きなメモは、表示中のウィンドウの変更箇所だけを書き戻す
+            commitLargeAsync(new Runnable() {
+                @Override
+                public void run() {
+                    onSaved();
+                }
+            });
+        } else if (mMemoUri != null) {
+            // 書き込みキュー経由で、自動保存と順序が入れ替わらないようにする
+            mWriteBehindQueue.markDirty(mMemoUri, mMemoEditText.getText());
+            mWriteBehindQueue.flushAsync(new Runnable() {
+                @Override
+                public void run() {
+                    onSaved();
+                }
+            });
+        } else if (!mCreating) {
             // 新規作成
-            MemoRepository.create(getActivity(), mMemoEditText.getText().toString());
+            createMemo(true);
+        }
+    }
+
+    // 入力に応じて自動保存する
+    private void autoSave(Editable text) {
+        if (mLargeDocument != null) {
+            // 入力が止まってから書き戻す
+            mLargeEditSequence++;
+            mMemoEditText.removeCallbacks(mLargeAutoSave);
+            mMemoEditText.postDelayed(mLargeAutoSave, LARGE_AUTO_SAVE_DELAY_MS);
+        } else if (mMemoUri != null) {
+            mWriteBehindQueue.markDirty(mMemoUri, text);
+        } else if (!mCreating && !TextUtils.isEmpty(text)) {
+            // まだ保存されていないメモは、最初の入力で作成する
+            createMemo(false);
+        }
+    }
+
+    // 新規にメモを作成する
+    // 作成中の入力は、作成後に書き込みキューに渡す
+    private void createMemo(final boolean notify) {
+        // EditTextの内容はメインスレッドで確定させてから渡す
+        String memo = mMemoEditText.getText().toString();
+        final int generation = mLoadGeneration;
+
+        mCreating = true;
+        MemoRepository.createAsync(getActivity(), memo, new MemoRepository.Callback<Uri>() {
+            @Override
+            public void onResult(Uri result) {
+                mCreating = false;
+
+                // 作成中に別のメモが読み込まれた場合は、何もしない
+                if (result == null || generation != mLoadGeneration) {
+                    return;
+                }
+
+                // 次回以降の保存は、作成したメモの更新にする
+                mMemoUri = result;
+                if (mMemoEditText != null) {
+                    // 作成中に入力された内容を保存する
+                    mWriteBehindQueue.markDirty(mMemoUri, mMemoEditText.getText());
+                }
+                if (notify) {
+                    onSaved();
+                }
+            }
+        });
+    }
+
+    // 保存が完了した
+    private void onSaved() {
+        if (!isAdded()) {
+            return;
         }
 
         // 保存しました、と表示
@@ -76,19 +294,175 @@ public class MemoFragment extends Fragment {
     }
 
     // 読み込む
-    public void load(Uri uri) {
+    public void load(final Uri uri) {
+        // 前回の読み込みが終わっていなければ、新しい読み込みで置き換える
+        cancelLoad();
+
+        // 表示中のメモの書き込み待ちを、内容が置き換わる前に確定させる
+        mWriteBehindQueue.flushAsync(null);
+        if (mLargeDocument != null) {
+            mMemoEditText.removeCallbacks(mLargeAutoSave);
+            commitLargeAsync(null);
+            mLargeDocument = null;
+            mWindow = null;
+        }
+
         // 現在のURIを変更する
         mMemoUri = uri;
+        mLoadGeneration++;
 
         if (uri != null) {
-            // メモを読み込む
-            String memo = MemoRepository.findMemoByUri(getActivity(), uri);
-
-            // EditTextに反映
-            mMemoEditText.setText(memo);
+            // 大きなメモは一部分だけを読み込む
+            mLoadFuture = MemoLargeDocument.openAsync(getActivity(), uri, new MemoRepository.Callback<MemoLargeDocument>() {
+                @Override
+                public void onResult(MemoLargeDocument document) {
+                    mLoadFuture = null;
+                    if (document == null) {
+                        loadWhole(uri);
+                    } else if (mMemoEditText != null) {
+                        mLargeDocument = document;
+                        mWindow = document.getWindow();
+                        mLargeEditSequence = 0;
+                        setTextWithoutAutoSave(mWindow.text);
+                    }
+                }
+            });
         } else {
             // URIがnullの場合には、メモをクリアするだけ
-            mMemoEditText.setText(null);
+            setTextWithoutAutoSave(null);
+        }
+    }
+
+    // メモ全体を読み込み、EditTextに反映
+    private void loadWhole(Uri uri) {
+        mLoadFuture = MemoRepository.findMemoByUriAsync(getActivity(), uri, new MemoRepository.Callback<String>() {
+            @Override
+            public void onResult(String memo) {
+                mLoadFuture = null;
+                if (mMemoEditText != null) {
+                    setTextWithoutAutoSave(memo);
+                }
+            }
+        });
+    }
+
+    // 大きなメモの表示中のウィンドウを書き戻す
+    private void commitLargeAsync(final Runnable onCommitted) {
+        final MemoLargeDocument document = mLargeDocument;
+        final int sequence = mLargeEditSequence;
+        final String text = mMemoEditText.getText().toString();
+
+        MemoRepository.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return document.commit(sequence, text);
+            }
+        }, new MemoRepository.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean committed) {
+                if (onCommitted != null && committed != null && committed) {
+                    onCommitted.run();
+                }
+            }
+        });
+    }
+
+    // ウィンドウの端に近づいたら、表示位置が中央に来るようにウィンドウを移動する
+    private void moveWindowIfNeeded(int scrollY) {
+        Layout layout = mMemoEditText.getLayout();
+        if (layout == null || mMovingWindow || mLoadFuture != null) {
+            return;
+        }
+
+        int topLine = layout.getLineForVertical(scrollY);
+        int bottomLine = layout.getLineForVertical(scrollY + mMemoEditText.getHeight());
+        boolean nearStart = topLine < WINDOW_EDGE_LINES && !mWindow.atStart;
+        boolean nearEnd = bottomLine >= layout.getLineCount() - WINDOW_EDGE_LINES && !mWindow.atEnd;
+        if (!nearStart && !nearEnd) {
+            return;
+        }
+
+        // 表示中の先頭の行(改行で区切られた行)を、メモ全体での行番号にする
+        Editable text = mMemoEditText.getText();
+        int topOffset = layout.getLineStart(topLine);
+        int relativeLine = 0;
+        for (int i = 0; i < topOffset; i++) {
+            if (text.charAt(i) == '\n') {
+                relativeLine++;
+            }
+        }
+        final int anchorLine = mWindow.startLine + relativeLine;
+
+        // 編集内容を書き戻してから、ウィンドウを読み込み直す
+        final MemoLargeDocument document = mLargeDocument;
+        final int sequence = mLargeEditSequence;
+        final String current = text.toString();
+
+        mMovingWindow = true;
+        mLoadFuture = MemoRepository.submit(new Callable<MemoLargeDocument.Window>() {
+            @Override
+            public MemoLargeDocument.Window call() throws Exception {
+                if (!document.commit(sequence, current)) {
+                    return null;
+                }
+                return document.moveWindow(anchorLine);
+            }
+        }, new MemoRepository.Callback<MemoLargeDocument.Window>() {
+            @Override
+            public void onResult(MemoLargeDocument.Window window) {
+                mLoadFuture = null;
+                mMovingWindow = false;
+                if (window == null || mMemoEditText == null) {
+                    return;
+                }
+
+                mWindow = window;
+                setTextWithoutAutoSave(window.text);
+                scrollToLine(anchorLine - window.startLine);
+            }
+        });
+    }
+
+    // ウィンドウ内の指定した行を、表示の先頭にする
+    private void scrollToLine(final int line) {
+        mMemoEditText.post(new Runnable() {
+            @Override
+            public void run() {
+                Layout layout = mMemoEditText.getLayout();
+                if (layout == null) {
+                    return;
+                }
+
+                Editable text = mMemoEditText.getText();
+                int offset = 0;
+                for (int found = 0; found < line && offset < text.length(); offset++) {
+                    if (text.charAt(offset) == '\n') {
+                        found++;
+                    }
+                }
+
+                mMemoEditText.setSelection(offset);
+                mMemoEditText.scrollTo(0, layout.getLineTop(layout.getLineForOffset(offset)));
+            }
+        });
+    }
+
+    // 自動保存の対象にせずにテキストを設定する
+    private void setTextWithoutAutoSave(String memo) {
+        mIgnoreTextChanges = true;
+        try {
+            mMemoEditText.setText(memo);
+        } finally {
+            mIgnoreTextChanges = false;
+        }
+    }
+
+    // 実行中の読み込みをキャンセルする
+    private void cancelLoad() {
+        if (mLoadFuture != null) {
+            mLoadFuture.cancel(true);
+            mLoadFuture = null;
         }
+        mMovingWindow = false;
     }
 }
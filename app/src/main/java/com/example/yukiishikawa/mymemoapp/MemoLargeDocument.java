@@ -0,0 +1,248 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoFileCodec;
+import com.example.yukiishikawa.mymemoapp.core.MemoFiles;
+import com.example.yukiishikawa.mymemoapp.core.MemoJournal;
+import com.example.yukiishikawa.mymemoapp.core.MemoLineIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Created by yukiishikawa on 2017/10/15.
+ * 大きなメモを、表示位置の周辺だけ読み込んで編集する
+ *
+ * メモ全体をStringにすると、数十MBのメモでは文字列とテキストレイアウトだけで
+ * メモリを使い切ってしまう。行の索引(MemoLineIndex)を作っておき、
+ * 表示位置の前後の行(ウィンドウ)だけを読み込む。
+ * ウィンドウの編集内容は、MemoRepository.patch()で変更箇所のバイト範囲を置き換えて書き戻す。
+ * 書き戻すたびにファイル全体をコピーし直す(MemoFiles.replaceRange)ので、I/O用スレッドで行う。
+ *
+ * ファイルの操作はI/O用スレッドで行うこと
+ */
+
+public class MemoLargeDocument {
+    // このバイト数以上のメモを、一部分だけ読み込む
+    static final long LARGE_MEMO_SIZE = 1024 * 1024;
+    // 1つのウィンドウに読み込む最大の行数
+    private static final int WINDOW_LINES = 2000;
+    // 1つのウィンドウに読み込む最大のバイト数 (長い行が続く場合に行数より先に制限する)
+    private static final int WINDOW_MAX_BYTES = 256 * 1024;
+
+    // メモファイルと同じ文字コード
+    // 行の索引のバイト位置もこの文字コードで数えるので、読み書きのすべてで同じものを使う
+    private static final Charset CHARSET = MemoFiles.CHARSET;
+
+    private final Context mContext;
+    private final Uri mUri;
+    private final File mFile;
+    private final MemoLineIndex mIndex;
+
+    // ウィンドウの先頭行と、ファイル上のバイト範囲
+    private int mWindowStartLine;
+    private long mWindowStartByte;
+    private long mWindowEndByte;
+    // 最後に読み込んだ、または書き戻したウィンドウの内容
+    private String mWindowText;
+
+    // 最後に書き戻した編集の番号
+    // 古い内容で新しい編集を上書きしないようにする
+    private int mCommittedSequence;
+
+    /**
+     * 読み込んだウィンドウ
+     * メインスレッドからドキュメントをロックせずに参照できるよう、値をまとめて渡す
+     */
+    public static class Window {
+        // ウィンドウの先頭行
+        public final int startLine;
+        // ウィンドウの内容
+        public final String text;
+        // メモの先頭から始まっているかどうか
+        public final boolean atStart;
+        // メモの末尾まで含んでいるかどうか
+        public final boolean atEnd;
+
+        Window(int startLine, String text, boolean atStart, boolean atEnd) {
+            this.startLine = startLine;
+            this.text = text;
+            this.atStart = atStart;
+            this.atEnd = atEnd;
+        }
+    }
+
+    private MemoLargeDocument(Context context, Uri uri, File file, MemoLineIndex index) {
+        mContext = context;
+        mUri = uri;
+        mFile = file;
+        mIndex = index;
+    }
+
+    // 大きなメモであれば開いて、先頭のウィンドウを読み込む
+    // 大きなメモでない場合や、一部分だけを読めない形式の場合はnullを返す
+    public static MemoLargeDocument open(Context context, Uri uri) throws IOException {
+        Context appContext = context.getApplicationContext();
+
+        Cursor cursor = appContext.getContentResolver().query(uri,
+                new String[]{MemoDBHelper.DATA, MemoDBHelper.ENCODING}, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        String path;
+        int encoding;
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            path = cursor.getString(0);
+            encoding = cursor.getInt(1);
+        } finally {
+            cursor.close();
+        }
+
+        // 圧縮されたファイルは、バイト位置で読み書きできない
+        if (TextUtils.isEmpty(path) || encoding != MemoFileCodec.ENCODING_PLAIN) {
+            return null;
+        }
+
+        File file = new File(path);
+        if (file.length() < LARGE_MEMO_SIZE) {
+            return null;
+        }
+
+        // 編集ジャーナルは、ファイルに反映してから開く
+        MemoJournal.compact(file, encoding, MemoRepository.getGroupCommit());
+
+        MemoLargeDocument document = new MemoLargeDocument(appContext, uri, file, MemoLineIndex.build(file));
+        document.moveWindow(0);
+        return document;
+    }
+
+    // 大きなメモを非同期で開く
+    // 大きなメモでない場合は、コールバックにnullが渡される
+    public static Future<MemoLargeDocument> openAsync(Context context, final Uri uri,
+                                                      MemoRepository.Callback<MemoLargeDocument> callback) {
+        final Context appContext = context.getApplicationContext();
+        return MemoRepository.submit(new Callable<MemoLargeDocument>() {
+            @Override
+            public MemoLargeDocument call() throws Exception {
+                return open(appContext, uri);
+            }
+        }, callback);
+    }
+
+    public Uri getUri() {
+        return mUri;
+    }
+
+    // メモ全体の行数
+    public synchronized int getLineCount() {
+        return mIndex.getLineCount();
+    }
+
+    // 現在のウィンドウ
+    public synchronized Window getWindow() {
+        return new Window(mWindowStartLine, mWindowText, mWindowStartByte == 0,
+                mWindowEndByte >= mIndex.getLength());
+    }
+
+    // 指定した行が中央に来るようにウィンドウを読み込み直す
+    public synchronized Window moveWindow(int centerLine) throws IOException {
+        int lineCount = mIndex.getLineCount();
+        centerLine = Math.max(0, Math.min(centerLine, lineCount - 1));
+
+        // 中央の行から前後に、行数とバイト数の上限まで広げる
+        int startLine = centerLine;
+        int endLine = centerLine + 1;
+        boolean grown = true;
+        while (grown && endLine - startLine < WINDOW_LINES) {
+            grown = false;
+            if (startLine > 0 && mIndex.getLineEnd(endLine - 1) - mIndex.getLineStart(startLine - 1) <= WINDOW_MAX_BYTES) {
+                startLine--;
+                grown = true;
+            }
+            if (endLine < lineCount && mIndex.getLineEnd(endLine) - mIndex.getLineStart(startLine) <= WINDOW_MAX_BYTES) {
+                endLine++;
+                grown = true;
+            }
+        }
+
+        long startByte = mIndex.getLineStart(startLine);
+        long endByte = mIndex.getLineEnd(endLine - 1);
+
+        byte[] bytes = new byte[(int) (endByte - startByte)];
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            file.seek(startByte);
+            file.readFully(bytes);
+        } finally {
+            file.close();
+        }
+
+        mWindowStartLine = startLine;
+        mWindowStartByte = startByte;
+        mWindowEndByte = endByte;
+        mWindowText = new String(bytes, CHARSET);
+        return getWindow();
+    }
+
+    // 編集したウィンドウの内容を書き戻す
+    // sequenceは編集のたびに増やす番号で、既に新しい内容を書き戻している場合は何もしない
+    public synchronized boolean commit(int sequence, String text) {
+        if (sequence <= mCommittedSequence) {
+            return true;
+        }
+
+        String old = mWindowText;
+        if (old.equals(text)) {
+            mCommittedSequence = sequence;
+            return true;
+        }
+
+        // 前後の一致する部分を除いて、変更箇所だけを書き戻す
+        int oldLength = old.length();
+        int newLength = text.length();
+        int prefix = 0;
+        int maxPrefix = Math.min(oldLength, newLength);
+        while (prefix < maxPrefix && old.charAt(prefix) == text.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        int maxSuffix = maxPrefix - prefix;
+        while (suffix < maxSuffix && old.charAt(oldLength - 1 - suffix) == text.charAt(newLength - 1 - suffix)) {
+            suffix++;
+        }
+
+        // サロゲートペアの途中で分けない
+        if (prefix > 0 && Character.isHighSurrogate(old.charAt(prefix - 1))) {
+            prefix--;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(old.charAt(oldLength - suffix))) {
+            suffix--;
+        }
+
+        long start = mWindowStartByte + old.substring(0, prefix).getBytes(CHARSET).length;
+        long end = mWindowStartByte + old.substring(0, oldLength - suffix).getBytes(CHARSET).length;
+        byte[] replacement = text.substring(prefix, newLength - suffix).getBytes(CHARSET);
+
+        if (!MemoRepository.patch(mContext, mUri, mFile, start, end, replacement)) {
+            return false;
+        }
+
+        mIndex.applyPatch(start, end, replacement);
+        mWindowEndByte += replacement.length - (end - start);
+        mWindowText = text;
+        mCommittedSequence = sequence;
+        return true;
+    }
+}
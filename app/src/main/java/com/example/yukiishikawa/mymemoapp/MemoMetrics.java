@@ -0,0 +1,140 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.os.Bundle;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoLatencyHistogram;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by yukiishikawa on 2017/11/26.
+ * MemoProviderとMemoRepositoryの処理ごとの計測値
+ *
+ * 処理時間の分布(p50/p95/p99/最大)、回数、失敗した回数、読み書きしたバイト数を記録する。
+ * MemoProvider.call("metrics")で取得できるほか、
+ * adb shell dumpsys activity provider MemoProvider でテキストでも確認できる。
+ */
+
+public class MemoMetrics {
+    // 計測する処理
+    public static final String QUERY = "query";
+    public static final String INSERT = "insert";
+    public static final String BULK_INSERT = "bulk_insert";
+    public static final String APPLY_BATCH = "apply_batch";
+    public static final String UPDATE = "update";
+    public static final String DELETE = "delete";
+    public static final String OPEN_FILE = "open_file";
+    public static final String SIGNATURE_CHECK = "signature_check";
+    public static final String FILE_READ = "file_read";
+    public static final String FILE_WRITE = "file_write";
+
+    // call()の結果の、処理ごとのBundleに入る値
+    public static final String KEY_COUNT = "count";
+    public static final String KEY_ERRORS = "errors";
+    public static final String KEY_BYTES = "bytes";
+    // 時間はマイクロ秒
+    public static final String KEY_MEAN_MICROS = "mean_us";
+    public static final String KEY_P50_MICROS = "p50_us";
+    public static final String KEY_P95_MICROS = "p95_us";
+    public static final String KEY_P99_MICROS = "p99_us";
+    public static final String KEY_MAX_MICROS = "max_us";
+
+    // 1つの処理の計測値
+    private static class Operation {
+        final MemoLatencyHistogram latency = new MemoLatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+    }
+
+    // 処理の一覧 (起動時に作ったら変えないので、読むときにロックは要らない)
+    private static final Map<String, Operation> sOperations;
+
+    static {
+        Map<String, Operation> operations = new LinkedHashMap<>();
+        for (String name : new String[]{QUERY, INSERT, BULK_INSERT, APPLY_BATCH, UPDATE, DELETE,
+                OPEN_FILE, SIGNATURE_CHECK, FILE_READ, FILE_WRITE}) {
+            operations.put(name, new Operation());
+        }
+        sOperations = Collections.unmodifiableMap(operations);
+    }
+
+    // インスタンスを作らせない
+    private MemoMetrics() {}
+
+    // 計測を開始する
+    // 戻り値をrecord()に渡す
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    // start()からの処理時間を記録する
+    // successがfalseの場合は、失敗した回数にも数える
+    public static void record(String name, long startNanos, boolean success) {
+        Operation operation = sOperations.get(name);
+        operation.latency.record(System.nanoTime() - startNanos);
+        if (!success) {
+            operation.errors.incrementAndGet();
+        }
+    }
+
+    // 読み書きしたバイト数を加える
+    public static void addBytes(String name, long bytes) {
+        sOperations.get(name).bytes.addAndGet(bytes);
+    }
+
+    // 計測値をすべて消す
+    public static void reset() {
+        for (Operation operation : sOperations.values()) {
+            operation.latency.reset();
+            operation.errors.set(0);
+            operation.bytes.set(0);
+        }
+    }
+
+    // 計測値をBundleにする
+    // 処理の名前ごとに、KEY_*の値を入れたBundleを入れる
+    public static Bundle toBundle() {
+        Bundle result = new Bundle();
+        for (Map.Entry<String, Operation> entry : sOperations.entrySet()) {
+            Operation operation = entry.getValue();
+            MemoLatencyHistogram.Snapshot snapshot = operation.latency.snapshot();
+
+            Bundle values = new Bundle();
+            values.putLong(KEY_COUNT, snapshot.count);
+            values.putLong(KEY_ERRORS, operation.errors.get());
+            values.putLong(KEY_BYTES, operation.bytes.get());
+            values.putLong(KEY_MEAN_MICROS, toMicros(snapshot.mean()));
+            values.putLong(KEY_P50_MICROS, toMicros(snapshot.percentile(50)));
+            values.putLong(KEY_P95_MICROS, toMicros(snapshot.percentile(95)));
+            values.putLong(KEY_P99_MICROS, toMicros(snapshot.percentile(99)));
+            values.putLong(KEY_MAX_MICROS, toMicros(snapshot.max));
+            result.putBundle(entry.getKey(), values);
+        }
+        return result;
+    }
+
+    // 計測値を表形式のテキストで書き出す
+    public static void dump(PrintWriter writer) {
+        writer.println("MemoMetrics (times in us):");
+        writer.println(String.format("  %-16s %8s %6s %12s %8s %8s %8s %8s %8s",
+                "operation", "count", "errors", "bytes", "mean", "p50", "p95", "p99", "max"));
+        for (Map.Entry<String, Operation> entry : sOperations.entrySet()) {
+            Operation operation = entry.getValue();
+            MemoLatencyHistogram.Snapshot snapshot = operation.latency.snapshot();
+            writer.println(String.format("  %-16s %8d %6d %12d %8d %8d %8d %8d %8d",
+                    entry.getKey(), snapshot.count, operation.errors.get(), operation.bytes.get(),
+                    toMicros(snapshot.mean()), toMicros(snapshot.percentile(50)),
+                    toMicros(snapshot.percentile(95)), toMicros(snapshot.percentile(99)),
+                    toMicros(snapshot.max)));
+        }
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
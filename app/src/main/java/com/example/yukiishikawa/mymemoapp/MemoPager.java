@@ -0,0 +1,95 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import java.util.concurrent.Future;
+
+/**
+ * Created by yukiishikawa on 2017/10/01.
+ * メモ一覧をページ単位で読み込む
+ *
+ * 一覧をスクロールして末尾に近づいたらloadNext()を呼ぶと、
+ * 前のページの続きを読み込んでコールバックに渡す。
+ * メインスレッドから使用すること
+ */
+
+public class MemoPager {
+    // 1ページの件数
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    private final Context mContext;
+    private final int mPageSize;
+
+    // 前のページの最後の行
+    private String mLastDateModified;
+    private long mLastId;
+
+    // 最後のページまで読み込んだかどうか
+    private boolean mHasMore = true;
+
+    // 読み込み中の処理
+    private Future<Cursor> mLoading;
+
+    public MemoPager(Context context) {
+        this(context, DEFAULT_PAGE_SIZE);
+    }
+
+    public MemoPager(Context context, int pageSize) {
+        mContext = context.getApplicationContext();
+        mPageSize = pageSize;
+    }
+
+    // 続きのページがあるかどうか
+    public boolean hasMore() {
+        return mHasMore;
+    }
+
+    // 読み込み中かどうか
+    public boolean isLoading() {
+        return mLoading != null;
+    }
+
+    // 次のページを読み込む
+    // 読み込み中や最後のページまで読み込んだ場合は何もせずにfalseを返す
+    // 受け取ったCursorは、使い終わったら呼び出し元で閉じること
+    public boolean loadNext(final MemoRepository.Callback<Cursor> callback) {
+        if (mLoading != null || !mHasMore) {
+            return false;
+        }
+
+        mLoading = MemoRepository.queryPageAsync(mContext, mPageSize, mLastDateModified, mLastId,
+                new MemoRepository.Callback<Cursor>() {
+                    @Override
+                    public void onResult(Cursor cursor) {
+                        mLoading = null;
+
+                        if (cursor == null) {
+                            mHasMore = false;
+                        } else {
+                            // 次のページの開始位置として、最後の行を覚えておく
+                            mHasMore = cursor.getCount() >= mPageSize;
+                            if (cursor.moveToLast()) {
+                                mLastDateModified = cursor.getString(cursor.getColumnIndexOrThrow(MemoDBHelper.DATE_MODIFIED));
+                                mLastId = cursor.getLong(cursor.getColumnIndexOrThrow(MemoDBHelper._ID));
+                            }
+                            cursor.moveToPosition(-1);
+                        }
+
+                        callback.onResult(cursor);
+                    }
+                });
+        return true;
+    }
+
+    // 最初のページから読み込み直す
+    public void reset() {
+        if (mLoading != null) {
+            mLoading.cancel(true);
+            mLoading = null;
+        }
+        mLastDateModified = null;
+        mLastId = 0;
+        mHasMore = true;
+    }
+}
@@ -2,25 +2,57 @@ package com.example.yukiishikawa.mymemoapp;
 
 import android.app.Activity;
 import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
+import com.example.yukiishikawa.mymemoapp.core.MemoFileCodec;
+import com.example.yukiishikawa.mymemoapp.core.MemoFiles;
+import com.example.yukiishikawa.mymemoapp.core.MemoJournal;
+import com.example.yukiishikawa.mymemoapp.core.MemoMetadata;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IllegalFormatCodePointException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by yukiishikawa on 2017/07/30.
@@ -33,6 +65,25 @@ public class MemoProvider extends ContentProvider {
     private static final String AUTHORITY = "com.example.android.yukiishikawa.mymemoapp.memo";
     // path
     private static final String CONTENT_PATH = "files";
+    // 全文検索のpath
+    private static final String SEARCH_PATH = CONTENT_PATH + "/search";
+    // 全メモのzipのpath
+    private static final String ARCHIVE_PATH = CONTENT_PATH + "/archive";
+    // 検索語を指定するクエリパラメータ
+    public static final String QUERY_PARAMETER_QUERY = "q";
+    // メモ一覧の取得件数を指定するクエリパラメータ
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    // メモ一覧をこの位置より後から取得するクエリパラメータ
+    // 値は "date_modified,_id" の形式で、前のページの最後の行の値を指定する
+    public static final String QUERY_PARAMETER_AFTER = "after";
+
+    // 計測値を取得するcall()のメソッド名
+    // 結果は処理の名前(MemoMetrics.QUERYなど)ごとのBundle
+    public static final String METHOD_METRICS = "metrics";
+    // METHOD_METRICSの引数に指定すると、取得した後に計測値を消す
+    public static final String ARG_METRICS_RESET = "reset";
+    // METHOD_METRICSの結果に入る、dumpと同じ形式のテキスト
+    public static final String EXTRA_METRICS_TEXT = "text";
 
     // MIMEタイプのプレフィックス
     // 複数要素にはvnd.android.cursor.dirを
@@ -47,10 +98,19 @@ public class MemoProvider extends ContentProvider {
 
     // このContentProviderがハンドルするURI
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/" + CONTENT_PATH);
+    // 全文検索のURI
+    public static final Uri SEARCH_URI = Uri.parse("content://" + AUTHORITY + "/" + SEARCH_PATH);
+    // 全メモのzipのURI
+    // 読み込み用に開くとすべてのメモを書き出したzipを、書き込み用に開くと書き込んだzipを取り込む
+    public static final Uri ARCHIVE_URI = Uri.parse("content://" + AUTHORITY + "/" + ARCHIVE_PATH);
     // メモリストのリクエスト
     private static final int URI_MATCH_MEMO_LIST = 1;
     // 単一のメモのリクエスト
     private static final int URI_MATCH_MEMO_ITEM = 2;
+    // 全文検索のリクエスト
+    private static final int URI_MATCH_MEMO_SEARCH = 3;
+    // 全メモのzipのリクエスト
+    private static final int URI_MATCH_ARCHIVE = 4;
     // URIとの一致をチェックするUriMatcher
     private static final UriMatcher sMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     static {
@@ -58,19 +118,242 @@ public class MemoProvider extends ContentProvider {
         sMatcher.addURI(AUTHORITY, CONTENT_PATH, URI_MATCH_MEMO_LIST);
         // idが指定されている場合
         sMatcher.addURI(AUTHORITY, CONTENT_PATH + "/#", URI_MATCH_MEMO_ITEM);
+        // 全文検索の場合
+        sMatcher.addURI(AUTHORITY, SEARCH_PATH, URI_MATCH_MEMO_SEARCH);
+        // 全メモのzipの場合
+        sMatcher.addURI(AUTHORITY, ARCHIVE_PATH, URI_MATCH_ARCHIVE);
+    }
+
+    // 読み込み時のMIMEタイプ
+    private static final String MIME_TEXT = "text/plain";
+    // 全メモのzipのMIMEタイプ
+    private static final String MIME_ZIP = "application/zip";
+
+    // 圧縮されたファイルの展開や編集ジャーナルの適用を行ったメモを、パイプに書き出す
+    // locationにはgetMemoLocation()で取得した保存先を渡す
+    private static final PipeDataWriter<ContentValues> sFilePipeWriter = new PipeDataWriter<ContentValues>() {
+        @Override
+        public void writeDataToPipe(@NonNull ParcelFileDescriptor output, @NonNull Uri uri,
+                                    @NonNull String mimeType, Bundle opts, ContentValues location) {
+            File file = new File(location.getAsString(MemoDBHelper.DATA));
+            int encoding = location.getAsInteger(MemoDBHelper.ENCODING);
+            long start = MemoMetrics.start();
+            boolean success = false;
+            try {
+                // 読み込んだバイト数は、ファイル上の(圧縮された)大きさで数える
+                long bytes = file.length();
+                if (!MemoJournal.hasJournal(file)) {
+                    // ジャーナルが無ければ、全体をメモリに載せずに展開しながら書き出す
+                    copyToPipe(output, MemoFileCodec.decode(new FileInputStream(file), encoding));
+                } else {
+                    bytes += MemoJournal.getJournalFile(file).length();
+                    writeTextToPipe(output, MemoJournal.read(file, encoding));
+                }
+                MemoMetrics.addBytes(MemoMetrics.FILE_READ, bytes);
+                success = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                MemoMetrics.record(MemoMetrics.FILE_READ, start, success);
+            }
+        }
+    };
+
+    // データベースに保存されている本文を、パイプに書き出す
+    private static final PipeDataWriter<String> sInlinePipeWriter = new PipeDataWriter<String>() {
+        @Override
+        public void writeDataToPipe(@NonNull ParcelFileDescriptor output, @NonNull Uri uri,
+                                    @NonNull String mimeType, Bundle opts, String body) {
+            writeTextToPipe(output, body);
+        }
+    };
+
+    // ストリームの内容を、そのままパイプに書き出す
+    private static void copyToPipe(ParcelFileDescriptor output, InputStream in) throws IOException {
+        OutputStream out = new FileOutputStream(output.getFileDescriptor());
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.flush();
+        } finally {
+            in.close();
+            out.close();
+        }
     }
 
+    // テキストをパイプに書き出す
+    // ファイルと同じ文字コード(MemoFiles.CHARSET)で書き出す
+    private static void writeTextToPipe(ParcelFileDescriptor output, String text) {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(output.getFileDescriptor()), MemoFiles.CHARSET);
+        try {
+            writer.write(text);
+            writer.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // ページ単位で取得する場合の並び順
+    // MemoDBHelperのインデックスと同じ順序にする
+    private static final String PAGE_ORDER = MemoDBHelper.DATE_MODIFIED + " DESC, " + MemoDBHelper._ID + " DESC";
+    // 指定した位置より後の行を選ぶ条件
+    // 全体をORにするとインデックスの範囲検索にならず全件をたどるので、
+    // 先頭の「更新日時 <= ?」でインデックスの開始位置を決め、残りは絞り込みだけに使う
+    private static final String PAGE_AFTER_SELECTION = MemoDBHelper.DATE_MODIFIED + " <= ? AND ("
+            + MemoDBHelper.DATE_MODIFIED + " < ? OR " + MemoDBHelper._ID + " < ?)";
+
+    // 全文検索のSQL
+    // FTS4には関連度の関数が無いため、一致箇所の一覧(offsets)が長いものほど関連度が高いとみなす
+    private static final String SEARCH_SQL = "SELECT m." + MemoDBHelper._ID + " AS " + MemoDBHelper._ID
+            + ", m." + MemoDBHelper.TITLE + " AS " + MemoDBHelper.TITLE
+            + ", m." + MemoDBHelper.DATA + " AS " + MemoDBHelper.DATA
+            + ", m." + MemoDBHelper.DATE_ADDED + " AS " + MemoDBHelper.DATE_ADDED
+            + ", m." + MemoDBHelper.DATE_MODIFIED + " AS " + MemoDBHelper.DATE_MODIFIED
+            + ", snippet(" + MemoDBHelper.FTS_TABLE_NAME + ", '<b>', '</b>', '...', -1, 16) AS " + MemoDBHelper.SNIPPET
+            + " FROM " + MemoDBHelper.FTS_TABLE_NAME
+            + " JOIN " + MemoDBHelper.TABLE_NAME + " m ON m." + MemoDBHelper._ID + " = "
+            + MemoDBHelper.FTS_TABLE_NAME + "." + MemoDBHelper.FTS_DOCID
+            + " WHERE " + MemoDBHelper.FTS_TABLE_NAME + " MATCH ?"
+            + " ORDER BY length(offsets(" + MemoDBHelper.FTS_TABLE_NAME + ")) DESC";
+
     // データの保管に使用するデータベース
-    private SQLiteDatabase mDatabase;
+    // 起動を遅らせないよう、onCreate()では開かずに最初に使うときに開く
+    private MemoDBHelper mHelper;
+    private volatile SQLiteDatabase mDatabase;
+    // IDで1件を扱う、よく使う文
+    // mDatabaseより先に設定するので、mDatabaseが開いていれば使える
+    private volatile MemoStatements mStatements;
+
+    // 変更通知をまとめて送る
+    // bulkInsert()やapplyBatch()の中の変更は、最後にまとめて通知する
+    private MemoChangeNotifier mNotifier;
+
+    // 呼び出し元UIDごとの署名チェック結果のキャッシュ
+    private final ConcurrentHashMap<Integer, Boolean> mSignatureCache = new ConcurrentHashMap<>();
+    // キャッシュを破棄するたびに進める世代番号
+    // チェック中に破棄された場合、古い結果をキャッシュに入れないために使う
+    private final AtomicInteger mSignatureCacheGeneration = new AtomicInteger();
+    // キャッシュのヒット数とミス数
+    private final AtomicLong mSignatureCacheHits = new AtomicLong();
+    private final AtomicLong mSignatureCacheMisses = new AtomicLong();
+
+    // すべてのメモをzipにして、パイプに書き出す
+    private final PipeDataWriter<Object> mArchivePipeWriter = new PipeDataWriter<Object>() {
+        @Override
+        public void writeDataToPipe(@NonNull ParcelFileDescriptor output, @NonNull Uri uri,
+                                    @NonNull String mimeType, Bundle opts, Object args) {
+            OutputStream out = new FileOutputStream(output.getFileDescriptor());
+            try {
+                MemoArchive.exportTo(getDatabase(), out);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    };
+
+    // パッケージの追加・更新・削除で署名チェックの結果が変わるため、キャッシュを破棄する
+    private final BroadcastReceiver mPackageChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            invalidateSignatureCache(uid);
+        }
+    };
 
     @Override
     public boolean onCreate() {
-        // SQLiteDatabaseオブジェクトを取得する
-        MemoDBHelper helper = new MemoDBHelper(getContext());
-        mDatabase = helper.getWritableDatabase();
+        // onCreate()はアプリの起動時にメインスレッドで呼ばれるので、データベースはまだ開かない
+        // (ファイルを開いてスキーマを更新するのは、getDatabase()で最初に使うとき)
+        mHelper = new MemoDBHelper(getContext());
+        mNotifier = new MemoChangeNotifier(getContext().getContentResolver(), CONTENT_URI);
+
+        // パッケージの変更を監視して、署名チェックのキャッシュを破棄する
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        getContext().registerReceiver(mPackageChangeReceiver, filter);
+
+        // 最初の一覧の読み込みを待たせないよう、バックグラウンドで先にデータベースを開いておく
+        // (古い配置のメモファイルの移動も、開くときのバージョンの移行で行う)
+        MemoRepository.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                getDatabase();
+            }
+        });
         return true;
     }
 
+    // テストでプロバイダを作り直すときに、受信の登録とデータベースを解放する
+    // (通常のアプリの実行中には呼ばれない)
+    @Override
+    public void shutdown() {
+        getContext().unregisterReceiver(mPackageChangeReceiver);
+        mHelper.close();
+        super.shutdown();
+    }
+
+    // データベースを取得する
+    // 初めて呼ばれたときに開き、複数のスレッドから同時に呼ばれても1回だけ開く
+    private SQLiteDatabase getDatabase() {
+        SQLiteDatabase db = mDatabase;
+        if (db == null) {
+            synchronized (this) {
+                db = mDatabase;
+                if (db == null) {
+                    db = mHelper.getWritableDatabase();
+                    mStatements = new MemoStatements(db);
+                    mDatabase = db;
+                }
+            }
+        }
+        return db;
+    }
+
+    // IDで1件を扱う文を取得する
+    private MemoStatements getStatements() {
+        getDatabase();
+        return mStatements;
+    }
+
+    // 署名チェックのキャッシュを破棄する
+    // uidが負の場合はすべて破棄する
+    private void invalidateSignatureCache(int uid) {
+        mSignatureCacheGeneration.incrementAndGet();
+        if (uid < 0) {
+            mSignatureCache.clear();
+        } else {
+            mSignatureCache.remove(uid);
+        }
+    }
+
+    // 署名チェックのキャッシュのヒット数
+    public long getSignatureCacheHitCount() {
+        return mSignatureCacheHits.get();
+    }
+
+    // 署名チェックのキャッシュのミス数
+    public long getSignatureCacheMissCount() {
+        return mSignatureCacheMisses.get();
+    }
+
     private boolean checkSignaturePermission() {
         // 自プロセスのPID
         int myPid = android.os.Process.myPid();
@@ -89,6 +372,30 @@ public class MemoProvider extends ContentProvider {
             return false;
         }
 
+        // 同じUIDからの呼び出しは、前回の結果を使う
+        int callingUid = Binder.getCallingUid();
+        Boolean cached = mSignatureCache.get(callingUid);
+        if (cached != null) {
+            mSignatureCacheHits.incrementAndGet();
+            return cached;
+        }
+        mSignatureCacheMisses.incrementAndGet();
+
+        int generation = mSignatureCacheGeneration.get();
+        // PackageManagerへの問い合わせの時間を計測する (拒否した場合は失敗として数える)
+        long start = MemoMetrics.start();
+        boolean verified = verifyCallerSignature(context, callingPid);
+        MemoMetrics.record(MemoMetrics.SIGNATURE_CHECK, start, verified);
+
+        // チェック中にパッケージが変更されていなければ、結果をキャッシュする
+        if (generation == mSignatureCacheGeneration.get()) {
+            mSignatureCache.put(callingUid, verified);
+        }
+        return verified;
+    }
+
+    // 呼び出し元のパッケージの署名が、自身の署名と一致するかをPackageManagerに問い合わせる
+    private boolean verifyCallerSignature(Context context, int callingPid) {
         PackageManager packageManager = context.getPackageManager();
 
         // 自身のパッケージ名
@@ -129,23 +436,164 @@ public class MemoProvider extends ContentProvider {
         return true;
     }
 
+    // 以下の公開メソッドは、処理時間を計測してから実際の処理(do〜)を呼ぶ
+    // 例外で抜けた場合は、失敗として数える
+
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        long start = MemoMetrics.start();
+        boolean success = false;
+        try {
+            Cursor cursor = doQuery(uri, projection, selection, selectionArgs, sortOrder);
+            success = true;
+            return cursor;
+        } finally {
+            MemoMetrics.record(MemoMetrics.QUERY, start, success);
+        }
+    }
+
+    @Override
+    public Uri insert(@NonNull Uri uri, ContentValues values) {
+        long start = MemoMetrics.start();
+        boolean success = false;
+        try {
+            Uri newUri = doInsert(uri, values);
+            success = true;
+            return newUri;
+        } finally {
+            MemoMetrics.record(MemoMetrics.INSERT, start, success);
+        }
+    }
+
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        long start = MemoMetrics.start();
+        boolean success = false;
+        try {
+            int count = doBulkInsert(uri, values);
+            success = true;
+            return count;
+        } finally {
+            MemoMetrics.record(MemoMetrics.BULK_INSERT, start, success);
+        }
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long start = MemoMetrics.start();
+        boolean success = false;
+        try {
+            ContentProviderResult[] results = doApplyBatch(operations);
+            success = true;
+            return results;
+        } finally {
+            MemoMetrics.record(MemoMetrics.APPLY_BATCH, start, success);
+        }
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        long start = MemoMetrics.start();
+        boolean success = false;
+        try {
+            int count = doDelete(uri, selection, selectionArgs);
+            success = true;
+            return count;
+        } finally {
+            MemoMetrics.record(MemoMetrics.DELETE, start, success);
+        }
+    }
+
+    @Override
+    public int update(@NotNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        long start = MemoMetrics.start();
+        boolean success = false;
+        try {
+            int count = doUpdate(uri, values, selection, selectionArgs);
+            success = true;
+            return count;
+        } finally {
+            MemoMetrics.record(MemoMetrics.UPDATE, start, success);
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        long start = MemoMetrics.start();
+        boolean success = false;
+        try {
+            ParcelFileDescriptor descriptor = doOpenFile(uri, mode);
+            success = true;
+            return descriptor;
+        } finally {
+            MemoMetrics.record(MemoMetrics.OPEN_FILE, start, success);
+        }
+    }
+
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (METHOD_METRICS.equals(method)) {
+            if (!checkSignaturePermission()) throw new SecurityException();
+
+            Bundle result = MemoMetrics.toBundle();
+            // 表示用に、dumpと同じテキストも入れておく
+            StringWriter text = new StringWriter();
+            PrintWriter writer = new PrintWriter(text);
+            MemoMetrics.dump(writer);
+            writer.flush();
+            result.putString(EXTRA_METRICS_TEXT, text.toString());
+
+            if (ARG_METRICS_RESET.equals(arg)) {
+                MemoMetrics.reset();
+            }
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    // dumpsysで計測値を書き出す
+    // adb shell dumpsys activity provider com.example.yukiishikawa.mymemoapp/.MemoProvider
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        MemoMetrics.dump(writer);
+        writer.println("Signature cache: hits=" + getSignatureCacheHitCount()
+                + " misses=" + getSignatureCacheMissCount());
+    }
+
+    private Cursor doQuery(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         // URIが正しいことをチェックしておく
         int match = sMatcher.match(uri);
 
+        SQLiteDatabase db = getDatabase();
         Cursor cursor;
         switch (match) {
             case URI_MATCH_MEMO_LIST:
-                cursor = mDatabase.query(MemoDBHelper.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+                String after = uri.getQueryParameter(QUERY_PARAMETER_AFTER);
+                if (limit == null && after == null) {
+                    cursor = db.query(MemoDBHelper.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                } else {
+                    cursor = queryPage(projection, selection, selectionArgs, sortOrder, limit, after);
+                }
                 break;
             case URI_MATCH_MEMO_ITEM:
                 // IDがURIで指定されている場合
                 // URIの最後のセグメントにIDがつく
-                String id = uri.getLastPathSegment();
+                long id = ContentUris.parseId(uri);
 
-                cursor = mDatabase.query(MemoDBHelper.TABLE_NAME, projection, MemoDBHelper._ID + "=" + id + (TextUtils.isEmpty(selection) ? "" : " AND (" + selection
-                + ")"), selectionArgs, null, null, sortOrder);
+                cursor = db.query(MemoDBHelper.TABLE_NAME, projection, selectionById(selection),
+                        selectionArgsById(id, selectionArgs), null, null, sortOrder);
+                break;
+            case URI_MATCH_MEMO_SEARCH:
+                // 全文検索の場合は、projectionやselectionは使用しない
+                String query = uri.getQueryParameter(QUERY_PARAMETER_QUERY);
+                if (TextUtils.isEmpty(query)) {
+                    throw new IllegalArgumentException("query parameter is required: " + uri);
+                }
+                cursor = db.rawQuery(SEARCH_SQL, new String[]{query});
+                // メモの変更時に検索結果も更新されるよう、メモ一覧のURIを監視する
+                uri = CONTENT_URI;
                 break;
             default:
                 throw new IllegalArgumentException("invalid uri: " + uri);
@@ -160,8 +608,49 @@ public class MemoProvider extends ContentProvider {
         return cursor;
     }
 
-    @Override
-    public Uri insert(@NonNull Uri uri, ContentValues values) {
+    // メモ一覧を、更新日時の新しい順に1ページ分だけ取得する
+    // OFFSETではなく前のページの最後の行(更新日時, ID)を条件にするので、
+    // 何ページ目でもインデックスをたどるだけで済む
+    private Cursor queryPage(String[] projection, String selection, String[] selectionArgs,
+                             String sortOrder, String limit, String after) {
+        if (!TextUtils.isEmpty(sortOrder) && !PAGE_ORDER.equals(sortOrder)) {
+            throw new IllegalArgumentException("paging only supports sort order: " + PAGE_ORDER);
+        }
+        // isDigitsOnlyは空文字列でもtrueを返すので、空も不正な値として扱う
+        if (limit != null && (limit.isEmpty() || !TextUtils.isDigitsOnly(limit))) {
+            throw new IllegalArgumentException("invalid limit: " + limit);
+        }
+
+        String pageSelection = selection;
+        String[] pageSelectionArgs = selectionArgs;
+        if (after != null) {
+            // 更新日時には","が含まれないので、最後の","で分ける
+            int separator = after.lastIndexOf(',');
+            if (separator <= 0 || separator == after.length() - 1
+                    || !TextUtils.isDigitsOnly(after.substring(separator + 1))) {
+                throw new IllegalArgumentException("invalid after: " + after);
+            }
+            String afterDateModified = after.substring(0, separator);
+            String afterId = after.substring(separator + 1);
+
+            pageSelection = "(" + PAGE_AFTER_SELECTION + ")"
+                    + (TextUtils.isEmpty(selection) ? "" : " AND (" + selection + ")");
+
+            int extraCount = selectionArgs == null ? 0 : selectionArgs.length;
+            pageSelectionArgs = new String[3 + extraCount];
+            pageSelectionArgs[0] = afterDateModified;
+            pageSelectionArgs[1] = afterDateModified;
+            pageSelectionArgs[2] = afterId;
+            if (extraCount > 0) {
+                System.arraycopy(selectionArgs, 0, pageSelectionArgs, 3, extraCount);
+            }
+        }
+
+        return getDatabase().query(MemoDBHelper.TABLE_NAME, projection, pageSelection, pageSelectionArgs,
+                null, null, PAGE_ORDER, limit);
+    }
+
+    private Uri doInsert(Uri uri, ContentValues values) {
 
         // 呼び出し元の署名をチェックする
         if (!checkSignaturePermission()) {
@@ -179,17 +668,23 @@ public class MemoProvider extends ContentProvider {
 
         // IDを指定してinsertはおかしいので、ID無し以外は例外をスローする
         if (match == URI_MATCH_MEMO_LIST) {
-            long id = mDatabase.insertOrThrow(MemoDBHelper.TABLE_NAME, null, values);
+            SQLiteDatabase db = getDatabase();
+            IndexEntry entry = new IndexEntry(values);
+            long id;
+            db.beginTransaction();
+            try {
+                id = insertMemo(values, entry);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
 
             if (id >= 0) {
                 // 渡されたURIにIDを付けて返す
                 Uri newUri = Uri.withAppendedPath(CONTENT_URI, String.valueOf(id));
 
                 // 変更を通知する
-                Context context = getContext();
-                if (context != null) {
-                    context.getContentResolver().notifyChange(newUri, null);
-                }
+                notifyChange(newUri);
 
                 return newUri;
             } else {
@@ -201,9 +696,89 @@ public class MemoProvider extends ContentProvider {
         throw new IllegalArgumentException("invalid uri: " + uri);
     }
 
+    private int doBulkInsert(Uri uri, ContentValues[] values) {
 
-    @Override
-    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        // 呼び出し元の署名をチェックする
+        if (!checkSignaturePermission()) throw new SecurityException();
+
+        if (sMatcher.match(uri) != URI_MATCH_MEMO_LIST) {
+            throw new IllegalArgumentException("invalid uri: " + uri);
+        }
+
+        // 入力値の検証と、索引に登録する本文の読み込みは、トランザクションの前に済ませておく
+        IndexEntry[] entries = new IndexEntry[values.length];
+        for (int i = 0; i < values.length; i++) {
+            // 入力値の検証を行う
+            if (!validateInput(values[i])) throw new IllegalArgumentException("invalid values");
+            entries[i] = new IndexEntry(values[i]);
+        }
+
+        // すべての行を1つのトランザクションで登録する
+        // 変更の通知は最後にまとめて行う
+        SQLiteDatabase db = getDatabase();
+        int inserted = 0;
+        boolean successful = false;
+        mNotifier.beginBatch();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                long id = insertMemo(values[i], entries[i]);
+                if (id >= 0) {
+                    inserted++;
+                    notifyChange(Uri.withAppendedPath(CONTENT_URI, String.valueOf(id)));
+                }
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            mNotifier.endBatch(successful);
+        }
+        return inserted;
+    }
+
+    @NonNull
+    private ContentProviderResult[] doApplyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        // すべての操作を1つのトランザクションで実行する
+        // 個々の操作はinsert()などを通るため、署名と入力値のチェックはそれぞれで行われる
+        // 変更の通知は最後にまとめて行う
+        SQLiteDatabase db = getDatabase();
+        ContentProviderResult[] results;
+        boolean successful = false;
+        mNotifier.beginBatch();
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            mNotifier.endBatch(successful);
+        }
+        return results;
+    }
+
+    // 1件のメモを登録し、全文検索用の索引にも登録する
+    // トランザクションの中から呼び出すこと
+    // entryはnew IndexEntry(values)で、トランザクションの前に求めておく
+    private long insertMemo(ContentValues values, IndexEntry entry) {
+        SQLiteDatabase db = getDatabase();
+        long id = db.insertOrThrow(MemoDBHelper.TABLE_NAME, null, values);
+        if (id >= 0) {
+            MemoDBHelper.indexMemo(db, id, entry.title, entry.indexBody);
+        }
+        return id;
+    }
+
+    // 変更を通知する
+    // 実際の通知は、バッチの終わりか少し後にまとめて行われる
+    private void notifyChange(Uri uri) {
+        mNotifier.notifyChange(uri);
+    }
+
+    private int doDelete(Uri uri, String selection, String[] selectionArgs) {
 
         // 呼び出し元の署名をチェックする
         if (!checkSignaturePermission()) throw new SecurityException();
@@ -211,27 +786,34 @@ public class MemoProvider extends ContentProvider {
         int match = sMatcher.match(uri);
 
         switch (match) {
-            case URI_MATCH_MEMO_LIST:
-                return mDatabase.delete(MemoDBHelper.TABLE_NAME, selection, selectionArgs);
-            case URI_MATCH_MEMO_ITEM:
-                String id = uri.getLastPathSegment();
+            case URI_MATCH_MEMO_LIST: {
+                int affected = deleteAndPrune(selection, selectionArgs);
 
-                int affected = mDatabase.delete(MemoDBHelper.TABLE_NAME, MemoDBHelper._ID + "=" + id
-                    + (TextUtils.isEmpty(selection) ? "" : " AND (" + selection + ")"), selectionArgs);
+                // どのメモが変わったかは一覧のURIで通知する
+                if (affected > 0) {
+                    notifyChange(CONTENT_URI);
+                }
+                return affected;
+            }
+            case URI_MATCH_MEMO_ITEM: {
+                long id = ContentUris.parseId(uri);
+
+                int affected = TextUtils.isEmpty(selection)
+                        ? deleteById(id)
+                        : deleteAndPrune(selectionById(selection), selectionArgsById(id, selectionArgs));
 
                 // 変更を通知
-                Context context = getContext();
-                if (context != null) {
-                    context.getContentResolver().notifyChange(uri, null);
+                if (affected > 0) {
+                    notifyChange(uri);
                 }
                 return affected;
+            }
             default:
                 throw new IllegalArgumentException("invalid uri: " + uri);
         }
     }
 
-    @Override
-    public int update(@NotNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    private int doUpdate(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
 
         // 呼び出し元の署名をチェックする
         if (!checkSignaturePermission()) throw new SecurityException();
@@ -242,26 +824,359 @@ public class MemoProvider extends ContentProvider {
         int match = sMatcher.match(uri);
 
         switch (match) {
-            case URI_MATCH_MEMO_LIST:
-                return mDatabase.update(MemoDBHelper.TABLE_NAME, values, selection, selectionArgs);
-            case URI_MATCH_MEMO_ITEM:
-                String id = uri.getLastPathSegment();
-                int affected = mDatabase.update(MemoDBHelper.TABLE_NAME, values, MemoDBHelper._ID + "=" + id
-                    + (TextUtils.isEmpty(selection) ? "" : " AND (" + selection + ")"), selectionArgs);
+            case URI_MATCH_MEMO_LIST: {
+                int affected = updateAndReindex(values, selection, selectionArgs);
+
+                // どのメモが変わったかは一覧のURIで通知する
+                if (affected > 0) {
+                    notifyChange(CONTENT_URI);
+                }
+                return affected;
+            }
+            case URI_MATCH_MEMO_ITEM: {
+                long id = ContentUris.parseId(uri);
+                int affected = updateAndReindex(values, selectionById(selection),
+                        selectionArgsById(id, selectionArgs));
 
                 // 変更を通知
-                Context context = getContext();
-                if (context != null) {
-                    context.getContentResolver().notifyChange(uri, null);
+                if (affected > 0) {
+                    notifyChange(uri);
                 }
                 return affected;
+            }
             default:
                 throw new IllegalArgumentException("invalid uri: " + uri);
         }
     }
 
-    @Override
-    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+    // IDで1件を選ぶ条件
+    // IDは引数で渡すので、メモごとに別のSQLにならず、コンパイル済みの文のキャッシュが効く
+    private static String selectionById(String selection) {
+        return DatabaseUtils.concatenateWhere(MemoDBHelper._ID + " = ?", selection);
+    }
+
+    // selectionById()の条件に渡す引数
+    private static String[] selectionArgsById(long id, String[] selectionArgs) {
+        return DatabaseUtils.appendSelectionArgs(new String[]{String.valueOf(id)}, selectionArgs);
+    }
+
+    // IDで1件を削除し、全文検索用の索引からも取り除く
+    // 索引は、全体を調べずにそのIDの分だけ取り除く
+    private int deleteById(long id) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            int affected = getStatements().delete(id);
+            if (affected > 0) {
+                getStatements().deleteFts(id);
+            }
+            db.setTransactionSuccessful();
+            return affected;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // 削除し、全文検索用の索引からも取り除く
+    private int deleteAndPrune(String selection, String[] selectionArgs) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            int affected = db.delete(MemoDBHelper.TABLE_NAME, selection, selectionArgs);
+            if (affected > 0) {
+                MemoDBHelper.pruneFtsTable(db);
+            }
+            db.setTransactionSuccessful();
+            return affected;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // 更新し、全文検索用の索引も登録し直す
+    private int updateAndReindex(ContentValues values, String selection, String[] selectionArgs) {
+        // 索引に登録する本文は、ファイルから読む場合があるので、トランザクションの前に求めておく
+        Map<Long, IndexEntry> prepared = prepareIndex(values, selection, selectionArgs);
+
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            // 更新によって条件に一致しなくなる場合があるため、対象のIDは先に求めておく
+            List<Long> ids = queryIds(selection, selectionArgs);
+            int affected = db.update(MemoDBHelper.TABLE_NAME, values, selection, selectionArgs);
+            if (affected > 0) {
+                reindex(ids, prepared);
+            }
+            db.setTransactionSuccessful();
+            return affected;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // 条件に一致するメモのIDを取得する
+    private List<Long> queryIds(String selection, String[] selectionArgs) {
+        List<Long> ids = new ArrayList<>();
+        Cursor cursor = getDatabase().query(MemoDBHelper.TABLE_NAME, new String[]{MemoDBHelper._ID},
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    // 更新後の各メモを索引に登録する内容を、更新の前に求める
+    // 更新する値で上書きした行から求めるので、更新後の行と同じ内容になる
+    private Map<Long, IndexEntry> prepareIndex(ContentValues values, String selection, String[] selectionArgs) {
+        Map<Long, IndexEntry> entries = new HashMap<>();
+        Cursor cursor = getDatabase().query(MemoDBHelper.TABLE_NAME, IndexEntry.PROJECTION,
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ContentValues row = IndexEntry.readRow(cursor);
+                row.putAll(values);
+                entries.put(cursor.getLong(0), new IndexEntry(row));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    // 指定したメモを全文検索用の索引に登録し直す
+    // トランザクションの中から呼び出すこと
+    // 前もって求めた内容が、その後に変わった行のものであれば、ここで求め直す
+    private void reindex(List<Long> ids, Map<Long, IndexEntry> prepared) {
+        SQLiteDatabase db = getDatabase();
+        for (long id : ids) {
+            Cursor cursor = db.query(MemoDBHelper.TABLE_NAME, IndexEntry.PROJECTION,
+                    MemoDBHelper._ID + " = ?", new String[]{String.valueOf(id)}, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    ContentValues row = IndexEntry.readRow(cursor);
+                    IndexEntry entry = prepared.get(id);
+                    if (entry == null || !entry.matches(row)) {
+                        entry = new IndexEntry(row);
+                    }
+                    // 索引に登録する範囲が変わっていなければ、書き込まない
+                    if (!MemoDBHelper.isIndexed(db, id, entry.title, entry.indexBody)) {
+                        MemoDBHelper.indexMemo(db, id, entry.title, entry.indexBody);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    // 全文検索用の索引に登録する1件のメモの内容と、それを求めた元の行
+    private static class IndexEntry {
+        // 元の行として読み込むカラム
+        static final String[] PROJECTION = {
+                MemoDBHelper._ID, MemoDBHelper.TITLE, MemoDBHelper.DATA, MemoDBHelper.BODY,
+                MemoDBHelper.ENCODING, MemoDBHelper.CONTENT_HASH
+        };
+
+        final String title;
+        final String indexBody;
+        private final ContentValues mSource;
+
+        // 登録する行の値から求める
+        // ファイルに保存されている場合は、ファイルの先頭を読み込む
+        IndexEntry(ContentValues source) {
+            mSource = source;
+            title = source.getAsString(MemoDBHelper.TITLE);
+            Integer encoding = source.getAsInteger(MemoDBHelper.ENCODING);
+            indexBody = MemoDBHelper.readIndexBody(source.getAsString(MemoDBHelper.DATA),
+                    source.getAsString(MemoDBHelper.BODY),
+                    encoding != null ? encoding : MemoFileCodec.ENCODING_PLAIN);
+        }
+
+        static ContentValues readRow(Cursor cursor) {
+            ContentValues row = new ContentValues();
+            row.put(MemoDBHelper.TITLE, cursor.getString(1));
+            row.put(MemoDBHelper.DATA, cursor.getString(2));
+            row.put(MemoDBHelper.BODY, cursor.getString(3));
+            row.put(MemoDBHelper.ENCODING, cursor.getInt(4));
+            row.put(MemoDBHelper.CONTENT_HASH, cursor.isNull(5) ? null : cursor.getLong(5));
+            return row;
+        }
+
+        // 求めた元の行と、索引に関わる値が同じかどうか
+        boolean matches(ContentValues row) {
+            return TextUtils.equals(title, row.getAsString(MemoDBHelper.TITLE))
+                    && TextUtils.equals(mSource.getAsString(MemoDBHelper.DATA), row.getAsString(MemoDBHelper.DATA))
+                    && TextUtils.equals(mSource.getAsString(MemoDBHelper.BODY), row.getAsString(MemoDBHelper.BODY))
+                    && same(mSource.getAsInteger(MemoDBHelper.ENCODING), row.getAsInteger(MemoDBHelper.ENCODING))
+                    && same(mSource.getAsLong(MemoDBHelper.CONTENT_HASH), row.getAsLong(MemoDBHelper.CONTENT_HASH));
+        }
+
+        private static boolean same(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    // メモの保存先を取得する
+    // ファイルに保存されている場合はDATAに、データベースに保存されている場合はBODYに値が入る
+    private ContentValues getMemoLocation(Uri uri) throws FileNotFoundException {
+        Cursor cursor = getDatabase().query(MemoDBHelper.TABLE_NAME,
+                new String[]{MemoDBHelper.DATA, MemoDBHelper.BODY, MemoDBHelper.ENCODING},
+                MemoDBHelper._ID + " = ?", new String[]{uri.getLastPathSegment()}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                throw new FileNotFoundException("no memo: " + uri);
+            }
+            ContentValues location = new ContentValues();
+            location.put(MemoDBHelper.DATA, cursor.getString(0));
+            location.put(MemoDBHelper.BODY, cursor.getString(1));
+            location.put(MemoDBHelper.ENCODING, cursor.getInt(2));
+            return location;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // データベースに保存されている本文を、ファイルに移す
+    // 書き込み用に開く場合は、ファイルである必要がある
+    private void moveBodyToFile(Uri uri, String body) throws FileNotFoundException {
+        moveToPlainFile(uri, body == null ? "" : body);
+    }
+
+    // 圧縮されたファイルや編集ジャーナルのあるファイルを、圧縮しない1つのファイルに書き直す
+    // 他のアプリが直接書き込めるのは、圧縮しないファイルだけなので
+    private void rewriteAsPlainFile(Uri uri, ContentValues location) throws FileNotFoundException {
+        File oldFile = new File(location.getAsString(MemoDBHelper.DATA));
+        String memo;
+        try {
+            memo = MemoJournal.read(oldFile, location.getAsInteger(MemoDBHelper.ENCODING));
+        } catch (IOException e) {
+            throw new FileNotFoundException("failed to read " + oldFile + ": " + e.getMessage());
+        }
+
+        moveToPlainFile(uri, memo);
+
+        // 新しいファイルに切り替えた後で、古いファイルを削除する
+        MemoJournal.getJournalFile(oldFile).delete();
+        oldFile.delete();
+    }
+
+    // メモを新しい圧縮しないファイルに書き出し、保存先を切り替える
+    // 書き出しが終わってから行を更新するので、途中で失敗しても元のメモは残る
+    private void moveToPlainFile(Uri uri, String memo) throws FileNotFoundException {
+        File file = MemoRepository.newMemoFile(getContext());
+        if (file == null || !MemoRepository.writeToFile(file, memo, MemoFileCodec.ENCODING_PLAIN)) {
+            throw new FileNotFoundException("failed to move memo to file: " + uri);
+        }
+
+        // 保存先が変わるだけで内容は変わらないので、変更は通知しない
+        getStatements().updateLocation(ContentUris.parseId(uri), file.getAbsolutePath(), MemoFileCodec.ENCODING_PLAIN);
+    }
+
+    // 書き込み用にファイルを開く
+    // 閉じられたときに、書き込まれた内容でタイトルと索引を更新し、変更を通知する
+    private ParcelFileDescriptor openFileForWrite(final Uri uri, String mode) throws FileNotFoundException {
+        String path = getStatements().selectData(ContentUris.parseId(uri));
+        if (TextUtils.isEmpty(path)) {
+            throw new FileNotFoundException("no file for " + uri);
+        }
+
+        final File file = new File(path);
+        try {
+            // 他のアプリが直接書き換えるので、ジャーナル側で覚えている内容は使えなくなる
+            MemoJournal.invalidate(file);
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.parseMode(mode),
+                    mNotifier.getHandler(), new ParcelFileDescriptor.OnCloseListener() {
+                        @Override
+                        public void onClose(IOException e) {
+                            MemoJournal.invalidate(file);
+                            MemoRepository.runInBackground(new Runnable() {
+                                @Override
+                                public void run() {
+                                    refreshFromFile(uri);
+                                }
+                            });
+                        }
+                    });
+        } catch (IOException e) {
+            throw new FileNotFoundException("failed to open " + path + ": " + e.getMessage());
+        }
+    }
+
+    // ファイルに直接書き込まれたメモの、タイトルと一覧表示用の情報と索引を更新する
+    private void refreshFromFile(Uri uri) {
+        ContentValues location;
+        try {
+            location = getMemoLocation(uri);
+        } catch (FileNotFoundException e) {
+            // 書き込み中に削除された
+            return;
+        }
+        String path = location.getAsString(MemoDBHelper.DATA);
+        if (TextUtils.isEmpty(path)) {
+            return;
+        }
+
+        // 直接書き込めるのは圧縮もジャーナルもないファイルなので、本文全体を読み込まずに1回で求める
+        MemoMetadata metadata;
+        try {
+            metadata = MemoFiles.readMetadata(new File(path), location.getAsInteger(MemoDBHelper.ENCODING));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(MemoDBHelper.TITLE, metadata.title);
+        MemoDBHelper.putMetadata(values, metadata);
+        if (updateAndReindex(values, MemoDBHelper._ID + " = ?", new String[]{uri.getLastPathSegment()}) > 0) {
+            notifyChange(uri);
+        }
+    }
+
+    // 全メモのzipを開く
+    // 読み込みの場合は書き出したzipを読むパイプを、書き込みの場合は取り込むzipを書くパイプを返す
+    private ParcelFileDescriptor openArchive(Uri uri, String mode) throws FileNotFoundException {
+        // 読み込みでもすべてのメモが見えるので、署名をチェックする
+        if (!checkSignaturePermission()) throw new SecurityException();
+
+        if (TextUtils.isEmpty(mode) || !mode.contains("w")) {
+            return openPipeHelper(uri, MIME_ZIP, null, null, mArchivePipeWriter);
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            // 取り込みに失敗した場合は、書き込み側にエラーを伝える
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("failed to create pipe: " + e.getMessage());
+        }
+
+        // openPipeHelper()と同じく、AsyncTaskのスレッドで読む
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                ParcelFileDescriptor source = pipe[0];
+                try {
+                    MemoArchive.importFrom(getContext(), new FileInputStream(source.getFileDescriptor()));
+                    source.close();
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    try {
+                        source.closeWithError(String.valueOf(e.getMessage()));
+                    } catch (IOException closeError) {
+                        closeError.printStackTrace();
+                    }
+                }
+            }
+        });
+        return pipe[1];
+    }
+
+    private ParcelFileDescriptor doOpenFile(Uri uri, String mode) throws FileNotFoundException {
 
         if (!TextUtils.isEmpty(mode) && mode.contains("w") && !checkSignaturePermission()) {
             // 異なる署名のアプリケーションが、書き込み用にファイルを開こうとした場合
@@ -271,9 +1186,41 @@ public class MemoProvider extends ContentProvider {
         // Uriのチェックを行う
         int match = sMatcher.match(uri);
 
+        if (match == URI_MATCH_ARCHIVE) {
+            return openArchive(uri, mode);
+        }
+
         // 個別メモの場合にはそのファイルを開いてストリームを返す
         if (match == URI_MATCH_MEMO_ITEM) {
-            return openFileHelper(uri, mode);
+            boolean isWrite = !TextUtils.isEmpty(mode) && mode.contains("w");
+            ContentValues location = getMemoLocation(uri);
+            String path = location.getAsString(MemoDBHelper.DATA);
+
+            if (TextUtils.isEmpty(path)) {
+                String body = location.getAsString(MemoDBHelper.BODY);
+                if (!isWrite) {
+                    // データベースに保存されている本文は、パイプで渡す
+                    return openPipeHelper(uri, MIME_TEXT, null, body == null ? "" : body, sInlinePipeWriter);
+                }
+
+                // 書き込みの場合は、ファイルに移してから開く
+                moveBodyToFile(uri, body);
+                return openFileForWrite(uri, mode);
+            }
+
+            File file = new File(path);
+            int encoding = location.getAsInteger(MemoDBHelper.ENCODING);
+            if (encoding != MemoFileCodec.ENCODING_PLAIN || MemoJournal.hasJournal(file)) {
+                if (!isWrite) {
+                    // 圧縮されたファイルや編集ジャーナルがある場合は、
+                    // 展開・適用したテキストをパイプで渡す
+                    return openPipeHelper(uri, MIME_TEXT, null, location, sFilePipeWriter);
+                }
+
+                // 書き込みの場合は、圧縮しない1つのファイルにしてから開く
+                rewriteAsPlainFile(uri, location);
+            }
+            return isWrite ? openFileForWrite(uri, mode) : openFileHelper(uri, mode);
         }
 
         throw new IllegalArgumentException("invalid uri: "+ uri);
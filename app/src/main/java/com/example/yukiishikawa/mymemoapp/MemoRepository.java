@@ -6,56 +6,333 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.text.TextUtils;
 
+import com.example.yukiishikawa.mymemoapp.core.MemoFileCodec;
+import com.example.yukiishikawa.mymemoapp.core.MemoFileLayout;
+import com.example.yukiishikawa.mymemoapp.core.MemoFiles;
+import com.example.yukiishikawa.mymemoapp.core.MemoGroupCommit;
+import com.example.yukiishikawa.mymemoapp.core.MemoJournal;
+import com.example.yukiishikawa.mymemoapp.core.MemoMetadata;
+
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by yukiishikawa on 2017/07/29.
  */
 
 public class MemoRepository {
-    // ファイル名フォーマット prefix-yyyy-mm-dd-HH-MM-SS.txt
-    private static final String MEMO_FILE_FORMAT = "%1$s-%2$tF-%2$tH-%2$tM-%2$tS.txt";
+    // この文字数以下のメモは、ファイルではなくデータベースに保存する
+    static final int INLINE_MAX_LENGTH = 4096;
+    // ファイルに保存したメモは、この文字数を下回るまでデータベースに戻さない
+    // 閾値付近で保存先が行き来しないようにする
+    private static final int INLINE_RETURN_LENGTH = INLINE_MAX_LENGTH / 2;
+
+    // メモ一覧で取得するカラム
+    // 一覧では本文は使わないので取得しない
+    // 抜粋や文字数は保存時に求めたものを使い、ファイルは開かない
+    private static final String[] LIST_PROJECTION = {
+            MemoDBHelper._ID, MemoDBHelper.TITLE, MemoDBHelper.DATA,
+            MemoDBHelper.DATE_ADDED, MemoDBHelper.DATE_MODIFIED,
+            MemoDBHelper.PREVIEW, MemoDBHelper.CHAR_COUNT, MemoDBHelper.LINE_COUNT,
+            MemoDBHelper.WORD_COUNT, MemoDBHelper.CONTENT_HASH
+    };
+
+    // I/O用スレッドの数
+    private static final int IO_THREAD_COUNT = 2;
+    // アイドル状態のスレッドを破棄するまでの秒数
+    private static final long IO_KEEP_ALIVE_SECONDS = 30L;
+
+    // ファイルとContentProviderへのアクセスを行うExecutor
+    // 呼び出し元はメインスレッドなので、キューには上限を設けず、呼び出し元では決して実行しない
+    private static final ThreadPoolExecutor sIoExecutor = createIoExecutor();
+
+    static {
+        // ジャーナルの圧縮もI/O用スレッドで行い、保存の呼び出し元を待たせない
+        MemoJournal.setCompactionExecutor(sIoExecutor);
+    }
+
+    // ファイルの保存を確定させる(fsyncする)処理
+    // 同時に行われた保存は1つのバッチで順に確定させ、ディレクトリの同期を共有する
+    private static final MemoGroupCommit sGroupCommit = new MemoGroupCommit(new MemoGroupCommit.DirectorySync() {
+        @Override
+        public void sync(File dir) throws IOException {
+            // java.nio.fileはAPI level 26未満では使えないので、ディレクトリはOsで開く
+            try {
+                FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+                try {
+                    Os.fsync(fd);
+                } finally {
+                    Os.close(fd);
+                }
+            } catch (ErrnoException e) {
+                throw new IOException(e);
+            }
+        }
+    });
+
+    // ファイルの保存を確定させる処理を取得する
+    // リポジトリを通さずにファイルを書き換える場合も、同じものを使って同期をまとめる
+    static MemoGroupCommit getGroupCommit() {
+        return sGroupCommit;
+    }
+
+    // 結果をメインスレッドに戻すためのHandler
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // 非同期処理の結果を受け取るコールバック
+    // onResult()は必ずメインスレッドで呼ばれる
+    public interface Callback<T> {
+        void onResult(T result);
+    }
 
     // インスタンスを作らせない
     private MemoRepository() {}
 
-    // メモを新規に保存する
-    public static Uri create(Context context, String memo) {
-        // 出力先ディレクトリを取得
-        File outputDir = getOutputDir(context);
+    private static ThreadPoolExecutor createIoExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_THREAD_COUNT, IO_THREAD_COUNT,
+                IO_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), newBackgroundThreadFactory("MemoIO"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
-        if (outputDir == null) {
-            // 何らかの原因でディレクトリが見つからなかった
-            return null;
-        }
+    // ファイルの読み書きを行うスレッドを作るThreadFactory
+    // スレッドには "name-番号" の名前を付け、優先度をバックグラウンドに下げる
+    static ThreadFactory newBackgroundThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // UIスレッドの描画を妨げないよう、優先度を下げておく
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, name + "-" + mCount.incrementAndGet());
+            }
+        };
+    }
 
-        // 出力先ファイル名を決定する
-        File outputFile = getFileName(context, outputDir);
-        if (outputFile == null || writeToFile(outputFile, memo)) {
-            // ファイルの書き込みに失敗した場合
-            return null;
+    // I/O用スレッドで処理を実行し、結果をメインスレッドでコールバックに渡す
+    // 返却したFutureをキャンセルした場合、コールバックは呼ばれない
+    // キャンセルまでに結果(Cursorなど)ができていた場合、それがCloseableであれば閉じる
+    static <T> Future<T> submit(Callable<T> task, final Callback<T> callback) {
+        FutureTask<T> future = new FutureTask<T>(task) {
+            // 処理が終わった後のキャンセルはisCancelled()に反映されないので、別に覚えておく
+            private volatile boolean mCancelRequested;
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                mCancelRequested = true;
+                return super.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            protected void set(T result) {
+                super.set(result);
+                // 実行中にキャンセルされた場合、結果はどこにも渡らない
+                if (isCancelled()) {
+                    release(result);
+                }
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled() || callback == null) {
+                    return;
+                }
+
+                T result;
+                try {
+                    result = get();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (ExecutionException e) {
+                    // 同期版と同じく、失敗した場合はnullを渡す
+                    e.getCause().printStackTrace();
+                    result = null;
+                }
+
+                final T deliver = result;
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // メインスレッドに戻るまでの間にキャンセルされた場合も通知せず、結果を解放する
+                        if (mCancelRequested) {
+                            release(deliver);
+                        } else {
+                            callback.onResult(deliver);
+                        }
+                    }
+                });
+            }
+        };
+
+        sIoExecutor.execute(future);
+        return future;
+    }
+
+    // 受け取られなかった非同期処理の結果を解放する
+    private static void release(Object result) {
+        if (result instanceof Closeable) {
+            try {
+                ((Closeable) result).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+    }
+
+    // I/O用スレッドで処理を実行する
+    static void runInBackground(Runnable task) {
+        sIoExecutor.execute(task);
+    }
+
+    // メモを非同期で新規に保存する
+    public static Future<Uri> createAsync(Context context, final String memo, Callback<Uri> callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(new Callable<Uri>() {
+            @Override
+            public Uri call() throws Exception {
+                return create(appContext, memo);
+            }
+        }, callback);
+    }
+
+    // 既存のメモを非同期で更新する
+    public static Future<Integer> updateAsync(Context context, final Uri uri, final String memo, Callback<Integer> callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return update(appContext, uri, memo);
+            }
+        }, callback);
+    }
 
-        // メモのタイトルは、文章内容から決定
-        String title = memo.length() > 10 ? memo.substring(0, 10) : memo;
+    // メモを非同期で読み込む
+    // 新しい読み込みで置き換える場合は、返却されたFutureをキャンセルすること
+    public static Future<String> findMemoByUriAsync(Context context, final Uri uri, Callback<String> callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return findMemoByUri(appContext, uri);
+            }
+        }, callback);
+    }
 
-        // データベースに登録するその他の情報
+    // メモを新規に保存する
+    public static Uri create(Context context, String memo) {
+        // データベースに登録する情報
         ContentValues values = new ContentValues();
-        values.put(MemoDBHelper.TITLE, title);
-        values.put(MemoDBHelper.DATA, outputFile.getAbsolutePath());
+
+        if (memo.length() <= INLINE_MAX_LENGTH) {
+            // 小さなメモは本文をそのままデータベースに保存する
+            values.put(MemoDBHelper.BODY, memo);
+        } else {
+            // 出力先ファイル名を決定する
+            File outputFile = newMemoFile(context);
+            int encoding = getFileEncoding(context);
+            if (outputFile == null || !writeToFile(outputFile, memo, encoding)) {
+                // ファイルの書き込みに失敗した場合
+                return null;
+            }
+            values.put(MemoDBHelper.DATA, outputFile.getAbsolutePath());
+            values.put(MemoDBHelper.ENCODING, encoding);
+        }
+
+        // メモのタイトルと一覧表示用の情報は、文章内容から決定
+        values.put(MemoDBHelper.TITLE, getTitle(memo));
+        MemoDBHelper.putMetadata(values, MemoMetadata.of(memo));
         values.put(MemoDBHelper.DATE_ADDED, System.currentTimeMillis());
 
         // コンテントプロバイダに挿入する
-        return context.getContentResolver().insert(MemoProvider.CONTENT_URI, values);
+        Uri uri = context.getContentResolver().insert(MemoProvider.CONTENT_URI, values);
+
+        // 保存した内容をキャッシュにも書き込む
+        if (uri != null) {
+            MemoContentCache.getInstance(context).put(uri, memo);
+        }
+        return uri;
+    }
+
+    // 複数のメモをまとめて新規に保存する
+    // ファイルをすべて書き込んでから、データベースへは1回のbulkInsertで登録する
+    // 戻り値は登録できたメモの件数
+    public static int createAll(Context context, List<String> memos) {
+        // 出力先のファイル配置を取得
+        MemoFileLayout layout = getFileLayout(context);
+
+        if (layout == null) {
+            // 何らかの原因でディレクトリが見つからなかった
+            return 0;
+        }
+
+        String fileNamePrefix = SettingPrefUtil.getKeyFileNamePrefix(context);
+        long dateAdded = System.currentTimeMillis();
+        int encoding = getFileEncoding(context);
+
+        List<ContentValues> valuesList = new ArrayList<>(memos.size());
+        for (int i = 0; i < memos.size(); i++) {
+            String memo = memos.get(i);
+            ContentValues values = new ContentValues();
+
+            if (memo.length() <= INLINE_MAX_LENGTH) {
+                // 小さなメモは本文をそのままデータベースに保存する
+                values.put(MemoDBHelper.BODY, memo);
+            } else {
+                // ファイル名にはIDが付くので、同じ秒に作っても重ならない
+                File outputFile = newFile(layout, fileNamePrefix);
+                if (outputFile == null || !writeToFile(outputFile, memo, encoding)) {
+                    // 書き込めなかったメモは登録しない
+                    continue;
+                }
+                values.put(MemoDBHelper.DATA, outputFile.getAbsolutePath());
+                values.put(MemoDBHelper.ENCODING, encoding);
+            }
+
+            values.put(MemoDBHelper.TITLE, getTitle(memo));
+            MemoDBHelper.putMetadata(values, MemoMetadata.of(memo));
+            values.put(MemoDBHelper.DATE_ADDED, dateAdded);
+            valuesList.add(values);
+        }
+
+        if (valuesList.isEmpty()) {
+            return 0;
+        }
+
+        // コンテントプロバイダに一括で挿入する
+        return context.getContentResolver().bulkInsert(MemoProvider.CONTENT_URI,
+                valuesList.toArray(new ContentValues[valuesList.size()]));
     }
 
     // 既存のメモを更新する
@@ -65,43 +342,192 @@ public class MemoRepository {
         String id = uri.getLastPathSegment();
         // 検索
         Cursor cursor = context.getContentResolver().query(uri,
-                new String[]{MemoDBHelper.DATA}, MemoDBHelper._ID + " = ?", new String[]{id}, null);
+                new String[]{MemoDBHelper.DATA, MemoDBHelper.ENCODING}, MemoDBHelper._ID + " = ?", new String[]{id}, null);
         if (cursor == null) {
             return 0;
         }
 
+        boolean found = false;
         String filePath = null;
+        int fileEncoding = MemoFileCodec.ENCODING_PLAIN;
         while (cursor.moveToNext()) {
+            found = true;
             filePath = cursor.getString(cursor.getColumnIndex(MemoDBHelper.DATA));
+            fileEncoding = cursor.getInt(cursor.getColumnIndex(MemoDBHelper.ENCODING));
         }
 
         cursor.close();
 
-        if (TextUtils.isEmpty(filePath)) {
+        if (!found) {
             return 0;
         }
 
-        File outputFile = new File(filePath);
-        if (writeToFile(outputFile, memo)) {
-            return 0;
+        // タイトルと一覧表示用の情報は本文から決定する
+        ContentValues values = new ContentValues();
+        values.put(MemoDBHelper.TITLE, getTitle(memo));
+        MemoMetadata metadata = MemoMetadata.of(memo);
+        MemoDBHelper.putMetadata(values, metadata);
+
+        // データベースに移したために不要になったファイル
+        File staleFile = null;
+
+        boolean isInline = TextUtils.isEmpty(filePath);
+        if (isInline ? memo.length() <= INLINE_MAX_LENGTH : memo.length() < INLINE_RETURN_LENGTH) {
+            // 小さなメモは本文をそのままデータベースに保存する
+            values.put(MemoDBHelper.BODY, memo);
+            values.putNull(MemoDBHelper.DATA);
+            if (!isInline) {
+                staleFile = new File(filePath);
+            }
+        } else if (isInline) {
+            // 大きくなったメモは、ファイルに移す
+            File outputFile = newMemoFile(context);
+            int encoding = getFileEncoding(context);
+            if (outputFile == null || !writeToFile(outputFile, memo, encoding)) {
+                return 0;
+            }
+            values.put(MemoDBHelper.DATA, outputFile.getAbsolutePath());
+            values.put(MemoDBHelper.ENCODING, encoding);
+            values.putNull(MemoDBHelper.BODY);
+        } else {
+            // 既存のファイルは、保存されている形式のまま書き込む
+            File outputFile = new File(filePath);
+            if (MemoJournal.shouldJournal(outputFile)) {
+                // 大きなメモは、変更箇所だけをジャーナルに追記する
+                long start = MemoMetrics.start();
+                long journalLength = MemoJournal.getJournalFile(outputFile).length();
+                boolean success = false;
+                try {
+                    MemoJournal.write(outputFile, fileEncoding, memo, sGroupCommit);
+                    success = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return 0;
+                } finally {
+                    MemoMetrics.record(MemoMetrics.FILE_WRITE, start, success);
+                }
+                // 追記した分だけを数える (圧縮された場合は負になるので数えない)
+                MemoMetrics.addBytes(MemoMetrics.FILE_WRITE,
+                        Math.max(0, MemoJournal.getJournalFile(outputFile).length() - journalLength));
+            } else if (!writeToFile(outputFile, memo, fileEncoding)) {
+                return 0;
+            }
+        }
+
+        // 保存した内容をキャッシュにも書き込み、
+        // 続くupdate()による変更通知では、内容が保存したものと同じであれば破棄されないようにする
+        MemoContentCache cache = MemoContentCache.getInstance(context);
+        cache.put(uri, memo);
+        cache.expectNotification(uri, metadata.contentHash);
+
+        // タイトルを更新し、検索用の索引にも本文の変更を反映させる
+        try {
+            // 更新されなかった場合は変更通知が来ない
+            if (context.getContentResolver().update(uri, values, null, null) == 0) {
+                cache.cancelExpectedNotification(uri);
+            }
+        } catch (RuntimeException e) {
+            cache.cancelExpectedNotification(uri);
+            throw e;
+        }
+
+        // データベースに移したメモのファイルを削除する
+        if (staleFile != null) {
+            MemoJournal.getJournalFile(staleFile).delete();
+            staleFile.delete();
         }
 
         return 1;
     }
 
+    // ファイルに保存されたメモの一部(startからendまでのバイト)を、replacementに置き換える
+    // 大きなメモを、全体を読み込まずに保存するために使う
+    // (ファイル全体を一時ファイルにコピーし直すので、メインスレッドでは呼ばない)
+    // 圧縮されたファイルや編集ジャーナルのあるファイルは、バイト位置が本文と一致しないので扱わない
+    static boolean patch(Context context, Uri uri, File file, long start, long end, byte[] replacement) {
+        long startNanos = MemoMetrics.start();
+        boolean success = false;
+        try {
+            MemoFiles.replaceRange(file, start, end, replacement, sGroupCommit);
+            MemoMetrics.addBytes(MemoMetrics.FILE_WRITE, replacement.length);
+            success = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            MemoMetrics.record(MemoMetrics.FILE_WRITE, startNanos, success);
+        }
+
+        // タイトルと一覧表示用の情報を、ファイルを読み直して求める
+        // ファイルは少しずつ読むので、大きなメモでも本文全体をメモリに載せない
+        // 続くupdate()での索引の登録も、ファイルの先頭(MemoDBHelper.FTS_MAX_BODY_LENGTH)だけを読む
+        ContentValues values = new ContentValues();
+        try {
+            readMetadata(file, values);
+        } catch (IOException e) {
+            // 本文は保存できているので、情報は次に保存したときに求める
+            e.printStackTrace();
+        }
+
+        // 大きなメモはキャッシュしない
+        MemoContentCache.getInstance(context).invalidate(uri);
+        if (values.size() > 0) {
+            context.getContentResolver().update(uri, values, null, null);
+        }
+        return true;
+    }
+
+    // ファイルを1回読んで、タイトルと一覧表示用の情報をContentValuesに詰める
+    private static void readMetadata(File file, ContentValues values) throws IOException {
+        MemoMetadata metadata = MemoFiles.readMetadata(file, MemoFileCodec.ENCODING_PLAIN);
+        values.put(MemoDBHelper.TITLE, metadata.title);
+        MemoDBHelper.putMetadata(values, metadata);
+    }
+
     // メモを読み込む
     public static String findMemoByUri(Context context, Uri uri) {
+        // キャッシュにあれば、ファイルは読まない
+        MemoContentCache cache = MemoContentCache.getInstance(context);
+        String cached = cache.get(uri);
+        if (cached != null) {
+            return cached;
+        }
+        long modCount = cache.getModCount();
+
+        // データベースに保存されているメモは、ファイルを開かずに返す
+        Cursor cursor = context.getContentResolver().query(uri, new String[]{MemoDBHelper.BODY}, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    String memo = cursor.getString(0);
+                    cache.putIfUnchanged(uri, memo, modCount);
+                    return memo;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
         BufferedReader reader = null;
         StringBuilder builder = new StringBuilder();
         try {
             InputStream inputStream = context.getContentResolver().openInputStream(uri);
             if (inputStream != null) {
-                reader = new BufferedReader(new InputStreamReader(inputStream));
+                reader = new BufferedReader(new InputStreamReader(inputStream, MemoFiles.CHARSET));
                 String line;
                 while ((line = reader.readLine()) != null) {
+                    // 読み込みがキャンセルされた場合は途中で打ち切る
+                    if (Thread.currentThread().isInterrupted()) {
+                        return null;
+                    }
                     builder.append(line);
                     builder.append("\n");
                 }
+
+                // 読み込めたメモはキャッシュに入れておく
+                String memo = builder.toString();
+                cache.putIfUnchanged(uri, memo, modCount);
+                return memo;
             }
         } catch (FileNotFoundException fnfe) {
             // ファイルが削除されるなどして見つからなかった場合
@@ -126,7 +552,77 @@ public class MemoRepository {
 
     // メモの一覧を取得
     public static Cursor query(Context context) {
-        return context.getContentResolver().query((MemoProvider.CONTENT_URI, null, null, null, MemoDBHelper.DATE_MODIFIED + " DESC"));
+        return context.getContentResolver().query(MemoProvider.CONTENT_URI, LIST_PROJECTION, null, null, MemoDBHelper.DATE_MODIFIED + " DESC");
+    }
+
+    // メモの一覧を、更新日時の新しい順に1ページ分取得する
+    // 最初のページではafterDateModifiedにnullを渡す
+    // 以降のページでは、前のページの最後の行の更新日時とIDを渡す
+    public static Cursor queryPage(Context context, int limit, String afterDateModified, long afterId) {
+        Uri.Builder builder = MemoProvider.CONTENT_URI.buildUpon()
+                .appendQueryParameter(MemoProvider.QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+        if (afterDateModified != null) {
+            builder.appendQueryParameter(MemoProvider.QUERY_PARAMETER_AFTER, afterDateModified + "," + afterId);
+        }
+        return context.getContentResolver().query(builder.build(), LIST_PROJECTION, null, null, null);
+    }
+
+    // メモの一覧を非同期で1ページ分取得する
+    // CursorWindowへの読み込みもI/O用スレッドで済ませてから返す
+    public static Future<Cursor> queryPageAsync(Context context, final int limit, final String afterDateModified,
+                                                final long afterId, Callback<Cursor> callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(new Callable<Cursor>() {
+            @Override
+            public Cursor call() throws Exception {
+                Cursor cursor = queryPage(appContext, limit, afterDateModified, afterId);
+                if (cursor != null) {
+                    cursor.getCount();
+                }
+                return cursor;
+            }
+        }, callback);
+    }
+
+    // 本文とタイトルからメモを全文検索する
+    // 結果は関連度の高い順に並び、検索語を強調した抜粋がMemoDBHelper.SNIPPETに入る
+    public static Cursor search(Context context, String query) {
+        Uri uri = MemoProvider.SEARCH_URI.buildUpon()
+                .appendQueryParameter(MemoProvider.QUERY_PARAMETER_QUERY, query)
+                .build();
+        return context.getContentResolver().query(uri, null, null, null, null);
+    }
+
+    // メモのタイトルは、文章内容から決定
+    static String getTitle(String memo) {
+        return MemoFiles.title(memo);
+    }
+
+    // 新しく書き込むファイルの形式
+    private static int getFileEncoding(Context context) {
+        return SettingPrefUtil.isFileCompression(context)
+                ? MemoFileCodec.ENCODING_DEFLATE
+                : MemoFileCodec.ENCODING_PLAIN;
+    }
+
+    // 新しいメモの出力先ファイルを取得する
+    static File newMemoFile(Context context) {
+        // 出力先ディレクトリを取得
+        File outputDir = getOutputDir(context);
+
+        if (outputDir == null) {
+            // 何らかの原因でディレクトリが見つからなかった
+            return null;
+        }
+
+        // 出力先ファイル名を決定する
+        return getFileName(context, outputDir);
+    }
+
+    // メモの出力先のファイル配置を取得する
+    static MemoFileLayout getFileLayout(Context context) {
+        File outputDir = getOutputDir(context);
+        return outputDir != null ? new MemoFileLayout(outputDir) : null;
     }
 
     // メモの出力先ディレクトリを取得する
@@ -157,38 +653,44 @@ public class MemoRepository {
     }
 
     // 出力先ファイルを取得する
+    // ファイル名のハッシュ値で決まるサブディレクトリに置く
     public static File getFileName(Context context, File outputDir) {
         String fileNamePrefix = SettingPrefUtil.getKeyFileNamePrefix(context);
 
-        Calendar now = Calendar.getInstance();
-
-        String fileName = String.format(MEMO_FILE_FORMAT, fileNamePrefix, now);
+        return newFile(new MemoFileLayout(outputDir), fileNamePrefix);
+    }
 
-        return new File(outputDir, fileName);
+    // 重複しない名前の新しいファイルを取得する
+    // サブディレクトリが作成できなかった場合はnullを返す
+    private static File newFile(MemoFileLayout layout, String fileNamePrefix) {
+        try {
+            return layout.newFile(fileNamePrefix);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     // ファイルにメモを書き込む
-    private static boolean writeToFile(File outputFile, String memo) {
-        FileWriter writer = null;
-        try {
-            writer = new FileWriter(outputFile);
-            writer.write(memo);
-            writer.flush();
+    static boolean writeToFile(File outputFile, String memo) {
+        return writeToFile(outputFile, memo, MemoFileCodec.ENCODING_PLAIN);
+    }
 
+    // 指定した形式で、ファイルにメモを書き込む
+    // 一時ファイルに書いてから置き換えるので、保存中に落ちても書きかけのメモは残らない
+    static boolean writeToFile(File outputFile, String memo, int encoding) {
+        long start = MemoMetrics.start();
+        boolean success = false;
+        try {
+            MemoFiles.writeAtomically(outputFile, memo, encoding, sGroupCommit);
+            MemoMetrics.addBytes(MemoMetrics.FILE_WRITE, outputFile.length());
+            success = true;
         } catch (IOException e) {
             e.printStackTrace();
-            return false;
         } finally {
-            if (writer != null) {
-                try {
-                    writer.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            MemoMetrics.record(MemoMetrics.FILE_WRITE, start, success);
         }
-
-        return true;
+        return success;
     }
 
     // ファイルとして保存し、データベースに保存する
@@ -229,10 +731,11 @@ public class MemoRepository {
         }
 
         // タイトルは本文から決定する
-        String title = memo.length() > 10 ? memo.substring(0, 10) : memo;
+        String title = getTitle(memo);
         // DBに保存するため、ContentValuesに詰める
         ContentValues values = new ContentValues();
         values.put(MemoDBHelper.TITLE, title);
+        MemoDBHelper.putMetadata(values, MemoMetadata.of(memo));
         values.put(MemoDBHelper.DATA, outputFile.getAbsolutePath());
         values.put(MemoDBHelper.DATE_ADDED, System.currentTimeMillis());
 
@@ -241,33 +744,15 @@ public class MemoRepository {
     }
 
     private static File saveAsFile(Context context, File outputDir, String memo) {
-        // ファイル名のプレフィックスの設定を取得する
-        String fileNamePrefix = SettingPrefUtil.getKeyFileNamePrefix(context);
-        // 現在の日時を取得する
-        Calendar now = Calendar.getInstance();
         // ファイル名をフォーマットに従って決定する
-        String fileName = String.format(MEMO_FILE_FORMAT, fileNamePrefix, now);
-        // Fileオブジェクトを取得
-        File outputFile = new File(outputDir, fileName);
-
-        FileWriter writer = null;
-        try {
-            // ファイルに書き込みを行う
-            writer = new FileWriter(outputFile);
-            writer.write(memo);
-            writer.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        File outputFile = getFileName(context, outputDir);
+        if (outputFile == null) {
             return null;
+        }
 
-        } finally {
-            if (writer != null) {
-                try {
-                    writer.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+        // ファイルに書き込みを行う
+        if (!writeToFile(outputFile, memo)) {
+            return null;
         }
 
         return outputFile;
@@ -0,0 +1,87 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Created by yukiishikawa on 2017/12/10.
+ * IDで1件のメモを扱う、よく使うSQLのコンパイル済みの文
+ *
+ * IDは引数として渡すので、メモごとに別のSQLになってコンパイルし直すことがない。
+ * 1つの文を複数のスレッドで使うため、引数の設定から実行までは文ごとに排他する。
+ */
+
+class MemoStatements {
+    private final SQLiteStatement mSelectData;
+    private final SQLiteStatement mUpdateLocation;
+    private final SQLiteStatement mDelete;
+    private final SQLiteStatement mDeleteFts;
+
+    MemoStatements(SQLiteDatabase db) {
+        mSelectData = db.compileStatement("SELECT " + MemoDBHelper.DATA + " FROM " + MemoDBHelper.TABLE_NAME
+                + " WHERE " + MemoDBHelper._ID + " = ?");
+        mUpdateLocation = db.compileStatement("UPDATE " + MemoDBHelper.TABLE_NAME
+                + " SET " + MemoDBHelper.DATA + " = ?, " + MemoDBHelper.BODY + " = NULL, "
+                + MemoDBHelper.ENCODING + " = ? WHERE " + MemoDBHelper._ID + " = ?");
+        mDelete = db.compileStatement("DELETE FROM " + MemoDBHelper.TABLE_NAME
+                + " WHERE " + MemoDBHelper._ID + " = ?");
+        mDeleteFts = db.compileStatement("DELETE FROM " + MemoDBHelper.FTS_TABLE_NAME
+                + " WHERE " + MemoDBHelper.FTS_DOCID + " = ?");
+    }
+
+    // メモの保存先のファイルのパスを取得する
+    // メモが無い場合と、本文がデータベースに保存されている場合はnullを返す
+    String selectData(long id) {
+        synchronized (mSelectData) {
+            mSelectData.bindLong(1, id);
+            try {
+                return mSelectData.simpleQueryForString();
+            } catch (SQLiteDoneException e) {
+                return null;
+            } finally {
+                mSelectData.clearBindings();
+            }
+        }
+    }
+
+    // メモの保存先を、指定したファイルに切り替える
+    // 変わった行数を返す
+    int updateLocation(long id, String path, int encoding) {
+        synchronized (mUpdateLocation) {
+            mUpdateLocation.bindString(1, path);
+            mUpdateLocation.bindLong(2, encoding);
+            mUpdateLocation.bindLong(3, id);
+            try {
+                return mUpdateLocation.executeUpdateDelete();
+            } finally {
+                mUpdateLocation.clearBindings();
+            }
+        }
+    }
+
+    // メモを削除する
+    // 全文検索用の索引からは取り除かないので、トランザクションの中でdeleteFts()も呼ぶこと
+    int delete(long id) {
+        synchronized (mDelete) {
+            mDelete.bindLong(1, id);
+            try {
+                return mDelete.executeUpdateDelete();
+            } finally {
+                mDelete.clearBindings();
+            }
+        }
+    }
+
+    // メモを全文検索用の索引から取り除く
+    void deleteFts(long id) {
+        synchronized (mDeleteFts) {
+            mDeleteFts.bindLong(1, id);
+            try {
+                mDeleteFts.executeUpdateDelete();
+            } finally {
+                mDeleteFts.clearBindings();
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Created by yukiishikawa on 2017/09/10.
+ * 自動保存用の書き込みキュー
+ *
+ * 編集のたびに保存するのではなく、メモのURIごとに変更をまとめて、
+ * 入力が止まってから、または最初の変更から一定時間が経ってから1回だけ書き込む。
+ * メモの内容は書き込む直前にメインスレッドで確定させるので、
+ * 入力のたびに文字列をコピーすることもない。
+ *
+ * メインスレッドから使用すること
+ */
+
+public class MemoWriteBehindQueue {
+    // 入力が止まってから書き込むまでの時間
+    private static final long IDLE_DELAY_MILLIS = 2000L;
+    // 最初の変更から書き込むまでの最大の時間
+    private static final long MAX_DELAY_MILLIS = 10000L;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // 書き込みを行うスレッド
+    // 同じメモへの書き込みの順序が入れ替わらないよう、1スレッドで順に処理する
+    // 優先度はリポジトリのI/O用スレッドと同じく、バックグラウンドにする
+    private final ExecutorService mWriteExecutor =
+            Executors.newSingleThreadExecutor(MemoRepository.newBackgroundThreadFactory("MemoWriteBehind"));
+
+    // 書き込み待ちのメモ
+    private final Map<Uri, Pending> mPending = new LinkedHashMap<>();
+
+    // 書き込み待ちの情報
+    private static class Pending {
+        // 編集中のテキスト (書き込む時点の内容を保存する)
+        CharSequence text;
+        // 最初に変更された時刻
+        long firstChangedAt;
+    }
+
+    public MemoWriteBehindQueue(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    // メモが変更されたことを通知する
+    // textには編集中のEditableをそのまま渡してよい
+    public void markDirty(Uri uri, CharSequence text) {
+        long now = SystemClock.uptimeMillis();
+
+        Pending pending = mPending.get(uri);
+        if (pending == null) {
+            pending = new Pending();
+            pending.firstChangedAt = now;
+            mPending.put(uri, pending);
+        }
+        pending.text = text;
+
+        // 入力が続いている間は書き込みを遅らせるが、最大の時間は超えないようにする
+        long deadline = Math.min(now + IDLE_DELAY_MILLIS, pending.firstChangedAt + MAX_DELAY_MILLIS);
+        mHandler.removeCallbacksAndMessages(pending);
+        mHandler.postAtTime(createFlushTask(uri), pending, deadline);
+    }
+
+    // 書き込み待ちがあるかどうか
+    public boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    // すべての書き込み待ちを、すぐに書き込む
+    // 書き込みはバックグラウンドで行い、完了したらonCompleteをメインスレッドで呼ぶ
+    public void flushAsync(final Runnable onComplete) {
+        flushAll();
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // 単一スレッドなので、ここに来た時点で先に投入した書き込みは終わっている
+                if (onComplete != null) {
+                    mHandler.post(onComplete);
+                }
+            }
+        });
+    }
+
+    // すべての書き込み待ちを書き込み、完了するまで待つ
+    // onPause()などで、確実に保存したい場合に使う
+    public void flush() {
+        List<Future<?>> futures = flushAll();
+        // タイマーで既に書き込みスレッドに渡した書き込みも待つよう、最後に空の処理を入れて待つ
+        // 単一スレッドなので、これが終わった時点で先に投入した書き込みはすべて終わっている
+        futures.add(mWriteExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // 何もしない
+            }
+        }));
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    // キューを破棄する
+    // 書き込み待ちは書き込んでから終了する
+    public void shutdown() {
+        flushAll();
+        mWriteExecutor.shutdown();
+    }
+
+    private Runnable createFlushTask(final Uri uri) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                flushOne(uri);
+            }
+        };
+    }
+
+    private List<Future<?>> flushAll() {
+        List<Future<?>> futures = new ArrayList<>(mPending.size());
+        for (Uri uri : new ArrayList<>(mPending.keySet())) {
+            Future<?> future = flushOne(uri);
+            if (future != null) {
+                futures.add(future);
+            }
+        }
+        return futures;
+    }
+
+    // 1件の書き込み待ちを確定させ、書き込みスレッドに渡す
+    private Future<?> flushOne(final Uri uri) {
+        Pending pending = mPending.remove(uri);
+        if (pending == null) {
+            return null;
+        }
+        mHandler.removeCallbacksAndMessages(pending);
+
+        // メインスレッドで内容を確定させる
+        // MemoEditableはスナップショットを取るだけにして、文字列にするのは書き込みスレッドで行う
+        final CharSequence memo = pending.text instanceof MemoEditable
+                ? ((MemoEditable) pending.text).snapshot()
+                : pending.text.toString();
+        return mWriteExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                MemoRepository.update(mContext, uri, memo.toString());
+            }
+        });
+    }
+}
@@ -30,25 +30,98 @@ public class SettingPrefUtil {
     private static final String TEXT_STYLE_BOLD = "text.style.bold";
     private static final String TEXT_STYLE_ITALIC = "text.style.italic";
     private  static final String KEY_SCREEN_REVERSE = "screen.reverse";
+    private static final String KEY_FILE_COMPRESSION = "file.compression";
+
+    // 現在の設定
+    // 設定が変更されたら、新しいインスタンスに丸ごと置き換える
+    private static volatile Settings sSettings;
+
+    // 設定の変更を監視するリスナー
+    // SharedPreferencesはリスナーを弱参照で持つので、ここで参照を保持しておく
+    private static SharedPreferences.OnSharedPreferenceChangeListener sListener;
+
+    /**
+     * ある時点の設定の値
+     * 変更されないので、どのスレッドから参照してもよい
+     */
+    public static final class Settings {
+        // ファイル名のプレフィックス
+        public final String fileNamePrefix;
+        // 文字サイズ(px)
+        public final float fontSize;
+        // 文字装飾 (Typefaceのスタイル)
+        public final int typeface;
+        // 画面の明暗を反転するかどうか
+        public final boolean screenReverse;
+        // メモファイルを圧縮して保存するかどうか
+        public final boolean fileCompression;
+
+        private Settings(Context context, SharedPreferences sp) {
+            fileNamePrefix = sp.getString(KEY_FILE_NAME_PREFIX, KEY_FILE_NAME_PREFIX_DEFAULT);
+            fontSize = readFontSize(context, sp);
+            typeface = readTypeface(sp);
+            screenReverse = sp.getBoolean(KEY_SCREEN_REVERSE, false);
+            fileCompression = sp.getBoolean(KEY_FILE_COMPRESSION, false);
+        }
+    }
+
+    // 現在の設定を取得する
+    // 初回だけSharedPreferencesから読み込み、以降は変更されたときに読み込み直す
+    public static Settings getSettings(Context context) {
+        Settings settings = sSettings;
+        if (settings == null) {
+            synchronized (SettingPrefUtil.class) {
+                settings = sSettings;
+                if (settings == null) {
+                    final Context appContext = context.getApplicationContext();
+                    SharedPreferences sp = appContext.getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE);
+
+                    sListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                        @Override
+                        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                            sSettings = new Settings(appContext, sharedPreferences);
+                        }
+                    };
+                    sp.registerOnSharedPreferenceChangeListener(sListener);
+
+                    settings = new Settings(appContext, sp);
+                    sSettings = settings;
+                }
+            }
+        }
+        return settings;
+    }
 
     // ファイル名プレフィックスの値を取得する
     public static String getKeyFileNamePrefix(Context context) {
-        // SharedPreferencesを取得
-        SharedPreferences sp = context.getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE);
-
-        // SharedPreferencesから設定値を取得する
-        return sp.getString(KEY_FILE_NAME_PREFIX, KEY_FILE_NAME_PREFIX_DEFAULT);
+        return getSettings(context).fileNamePrefix;
     }
 
     // フォントサイズを取得する
     public static float getFontSize(Context context) {
-        // SharedPreferencesを取得
-        SharedPreferences sp = context.getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE);
+        return getSettings(context).fontSize;
+    }
+
+    // 文字装飾の設定を取得する
+    public static int getTypeface(Context context) {
+        return getSettings(context).typeface;
+    }
 
+    // 画面の明暗を反転するかどうか
+    public static boolean isScreenReverse(Context context) {
+        return getSettings(context).screenReverse;
+    }
+
+    // メモファイルを圧縮して保存するかどうか
+    public static boolean isFileCompression(Context context) {
+        return getSettings(context).fileCompression;
+    }
+
+    // 設定値に応じて、実際のテキストサイズを返す
+    private static float readFontSize(Context context, SharedPreferences sp) {
         // 現在の設定値
         String storedSize = sp.getString(KEY_TEXT_SIZE, TEXT_SIZE_MEDIUM);
 
-        // 設定値に応じて、実際のテキストサイズを返す
         switch (storedSize) {
             case TEXT_SIZE_LARGE:
                 return context.getResources().getDimension(R.dimen.settings_text_size_large);
@@ -61,13 +134,10 @@ public class SettingPrefUtil {
         }
     }
 
-    // 文字装飾の設定を取得する
-    public static int getTypeface(Context context) {
-        SharedPreferences sp = context.getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE);
-
+    // 文字装飾の設定を、EditTextに設定するビットフラグに変換する
+    private static int readTypeface(SharedPreferences sp) {
         Set<String> storedTypeface = sp.getStringSet(KEY_TEXT_STYLE, Collections.<String>emptySet());
 
-        // EditTextに設定するビットフラグに変換する
         int typefaceBit = Typeface.NORMAL;
         for(String value : storedTypeface) {
             switch (value) {
@@ -81,10 +151,4 @@ public class SettingPrefUtil {
         }
         return typefaceBit;
     }
-
-    // 画面の明暗を反転するかどうか
-    public static boolean isScreenReverse(Context context) {
-        SharedPreferences sp = context.getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE);
-        return sp.getBoolean(KEY_SCREEN_REVERSE, false);
-    }
 }
@@ -0,0 +1,272 @@
+package com.example.yukiishikawa.mymemoapp;
+
+import android.text.Editable;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by yukiishikawa on 2017/12/17.
+ * MemoEditableの本文の編集と、スパンの位置の調整のテスト
+ *
+ * スパンの端の扱いは、SpannableStringBuilderと同じになることを確かめる。
+ * (AndroidのクラスはSpannedの定数とインターフェースしか使わないので、端末なしで実行できる)
+ */
+
+public class MemoEditableTest {
+    private static final String TEXT = "0123456789";
+
+    @Test
+    public void editsMatchStringBuilder() {
+        Random random = new Random(1);
+        StringBuilder oracle = new StringBuilder(TEXT);
+        MemoEditable editable = new MemoEditable(TEXT);
+        for (int i = 0; i < 1000; i++) {
+            int st = random.nextInt(oracle.length() + 1);
+            int en = st + random.nextInt(oracle.length() - st + 1);
+            String text = random.nextBoolean() ? "" : "メモ" + i;
+            editable.replace(st, en, text);
+            oracle.replace(st, en, text);
+            assertEquals(oracle.toString(), editable.toString());
+        }
+
+        // 細かく分かれたピースをまたいで読む
+        char[] dest = new char[oracle.length()];
+        editable.getChars(0, oracle.length(), dest, 0);
+        assertEquals(oracle.toString(), new String(dest));
+        assertEquals(oracle.toString(), editable.snapshot().toString());
+    }
+
+    @Test
+    public void insertAtSpanStart() {
+        // スパンの先頭への挿入は、開始がMARK(INCLUSIVE)のスパンだけが含む
+        assertInsert(Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, 2, 4, 6);
+        assertInsert(Spanned.SPAN_EXCLUSIVE_INCLUSIVE, 2, 4, 6);
+        assertInsert(Spanned.SPAN_INCLUSIVE_EXCLUSIVE, 2, 2, 6);
+        assertInsert(Spanned.SPAN_INCLUSIVE_INCLUSIVE, 2, 2, 6);
+    }
+
+    @Test
+    public void insertAtSpanEnd() {
+        // スパンの末尾への挿入は、終了がPOINT(INCLUSIVE)のスパンだけが含む
+        assertInsert(Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, 4, 2, 4);
+        assertInsert(Spanned.SPAN_EXCLUSIVE_INCLUSIVE, 4, 2, 6);
+        assertInsert(Spanned.SPAN_INCLUSIVE_EXCLUSIVE, 4, 2, 4);
+        assertInsert(Spanned.SPAN_INCLUSIVE_INCLUSIVE, 4, 2, 6);
+    }
+
+    @Test
+    public void insertInsideSpan() {
+        for (int flags : new int[]{Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, Spanned.SPAN_EXCLUSIVE_INCLUSIVE,
+                Spanned.SPAN_INCLUSIVE_EXCLUSIVE, Spanned.SPAN_INCLUSIVE_INCLUSIVE}) {
+            assertInsert(flags, 3, 2, 6);
+        }
+    }
+
+    @Test
+    public void insertBeforeAndAfterSpan() {
+        assertInsert(Spanned.SPAN_INCLUSIVE_INCLUSIVE, 1, 4, 6);
+        assertInsert(Spanned.SPAN_INCLUSIVE_INCLUSIVE, 5, 2, 4);
+    }
+
+    @Test
+    public void cursorMovesWithInsertedText() {
+        // カーソル(空のPOINTスパン)は挿入した文字の後ろに、空のMARKスパンは前に残る
+        MemoEditable editable = new MemoEditable(TEXT);
+        Object point = new Object();
+        Object mark = new Object();
+        editable.setSpan(point, 3, 3, Spanned.SPAN_POINT_POINT);
+        editable.setSpan(mark, 3, 3, Spanned.SPAN_MARK_MARK);
+
+        editable.insert(3, "ab");
+        assertSpan(editable, point, 5, 5);
+        assertSpan(editable, mark, 3, 3);
+    }
+
+    @Test
+    public void deleteSpanContent() {
+        // 中身が無くなったEXCLUSIVE_EXCLUSIVEのスパンは削除し、それ以外は空にして残す
+        for (int flags : new int[]{Spanned.SPAN_EXCLUSIVE_INCLUSIVE,
+                Spanned.SPAN_INCLUSIVE_EXCLUSIVE, Spanned.SPAN_INCLUSIVE_INCLUSIVE}) {
+            MemoEditable editable = new MemoEditable(TEXT);
+            Object span = new Object();
+            editable.setSpan(span, 2, 4, flags);
+            editable.delete(1, 5);
+            assertSpan(editable, span, 1, 1);
+        }
+
+        MemoEditable editable = new MemoEditable(TEXT);
+        RecordingWatcher watcher = new RecordingWatcher();
+        editable.setSpan(watcher, 0, editable.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        Object span = new Object();
+        editable.setSpan(span, 2, 4, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        watcher.events.clear();
+
+        editable.delete(2, 4);
+        assertEquals(-1, editable.getSpanStart(span));
+        assertEquals("removed 2 4", watcher.find(span));
+    }
+
+    @Test
+    public void deleteOverlappingSpanEdges() {
+        MemoEditable editable = new MemoEditable(TEXT);
+        Object span = new Object();
+        editable.setSpan(span, 3, 7, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        // 先頭の側を削除すると、開始位置は削除した位置になる
+        editable.delete(1, 5);
+        assertSpan(editable, span, 1, 3);
+        // 末尾の側を削除すると、終了位置が削除した位置になる
+        editable.delete(2, 6);
+        assertSpan(editable, span, 1, 2);
+    }
+
+    @Test
+    public void replaceSpanContent() {
+        // 置き換えた範囲の前にあった端はそのまま、後ろにあった端は新しい文字の後ろになる
+        MemoEditable editable = new MemoEditable(TEXT);
+        Object span = new Object();
+        editable.setSpan(span, 2, 5, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        editable.replace(2, 5, "abcdef");
+        assertSpan(editable, span, 2, 8);
+
+        // 範囲の途中の端は、MARKなら置き換えた文字の前、POINTなら後ろになる
+        editable = new MemoEditable(TEXT);
+        Object start = new Object();
+        Object end = new Object();
+        editable.setSpan(start, 4, 8, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        editable.setSpan(end, 1, 4, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        editable.replace(3, 5, "xyz");
+        assertSpan(editable, start, 3, 9);
+        assertSpan(editable, end, 1, 6);
+    }
+
+    @Test
+    public void textWatchersBeforeSpanWatchers() {
+        final List<String> events = new ArrayList<>();
+        MemoEditable editable = new MemoEditable(TEXT);
+        TextWatcher textWatcher = new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                events.add("before " + start + " " + count + " " + after);
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                events.add("on " + start + " " + before + " " + count);
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                events.add("after");
+            }
+        };
+        RecordingWatcher spanWatcher = new RecordingWatcher(events);
+        editable.setSpan(textWatcher, 0, editable.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        editable.setSpan(spanWatcher, 0, editable.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        Object span = new Object();
+        editable.setSpan(span, 5, 6, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        events.clear();
+
+        editable.replace(1, 3, "abc");
+        assertEquals("before 1 2 3", events.get(0));
+        assertEquals("on 1 2 3", events.get(1));
+        assertEquals("after", events.get(2));
+        // スパンの変更は、本文の変更通知がすべて終わってから送る
+        assertEquals("changed 5 6 6 7", spanWatcher.find(span));
+        assertTrue(events.toString(), events.indexOf("changed 5 6 6 7") > events.indexOf("after"));
+    }
+
+    @Test
+    public void getSpansExcludesTouchingSpans() {
+        MemoEditable editable = new MemoEditable(TEXT);
+        Object before = new Object();
+        Object inside = new Object();
+        Object empty = new Object();
+        editable.setSpan(before, 0, 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        editable.setSpan(inside, 2, 4, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE | (1 << Spanned.SPAN_PRIORITY_SHIFT));
+        editable.setSpan(empty, 4, 4, Spanned.SPAN_POINT_POINT);
+
+        // 範囲の境界で接しているだけのスパンは含めず、優先度の高いものを前に並べる
+        // (空のスパンは、境界にあっても含める)
+        assertArrayEquals(new Object[]{inside, empty}, editable.getSpans(2, 4, Object.class));
+        assertArrayEquals(new Object[]{inside, before, empty}, editable.getSpans(0, 4, Object.class));
+        // 空の範囲では、接しているスパンも含める
+        assertArrayEquals(new Object[]{inside, before}, editable.getSpans(2, 2, Object.class));
+        assertEquals(2, editable.nextSpanTransition(0, 10, Object.class));
+        assertEquals(4, editable.nextSpanTransition(2, 10, Object.class));
+    }
+
+    // TEXTの2〜4にflagsのスパンを付け、whereに2文字挿入した後の位置を確かめる
+    private static void assertInsert(int flags, int where, int expectedStart, int expectedEnd) {
+        MemoEditable editable = new MemoEditable(TEXT);
+        Object span = new Object();
+        editable.setSpan(span, 2, 4, flags);
+        editable.insert(where, "ab");
+        assertSpan(editable, span, expectedStart, expectedEnd);
+        assertEquals(TEXT.substring(0, where) + "ab" + TEXT.substring(where), editable.toString());
+    }
+
+    private static void assertSpan(Spannable spannable, Object span, int start, int end) {
+        assertEquals("start", start, spannable.getSpanStart(span));
+        assertEquals("end", end, spannable.getSpanEnd(span));
+    }
+
+    // スパンの変更通知を記録する
+    private static class RecordingWatcher implements SpanWatcher {
+        // 他の通知と順序を比べられるよう、共有のリストにも記録する
+        final List<String> events;
+        private final List<Object> mSpans = new ArrayList<>();
+        private final List<String> mEvents = new ArrayList<>();
+
+        RecordingWatcher() {
+            this(new ArrayList<String>());
+        }
+
+        RecordingWatcher(List<String> events) {
+            this.events = events;
+        }
+
+        @Override
+        public void onSpanAdded(Spannable text, Object what, int start, int end) {
+            record(what, "added " + start + " " + end);
+        }
+
+        @Override
+        public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+            record(what, "removed " + start + " " + end);
+        }
+
+        @Override
+        public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+            record(what, "changed " + ostart + " " + oend + " " + nstart + " " + nend);
+        }
+
+        private void record(Object what, String event) {
+            mSpans.add(what);
+            mEvents.add(event);
+            events.add(event);
+        }
+
+        // whatについての最後の通知
+        String find(Object what) {
+            for (int i = mSpans.size() - 1; i >= 0; i--) {
+                if (mSpans.get(i) == what) {
+                    return mEvents.get(i);
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.yukiishikawa.mymemoapp.benchmark;
+
+/**
+ * Created by yukiishikawa on 2017/12/17.
+ * SpannableStringBuilderと同じ方式のギャップバッファ (JVM用)
+ *
+ * SpannableStringBuilderはAndroidの実装にネイティブの処理を含み、JVMでは動かないので、
+ * 本文の持ち方(ギャップの移動と、足りないときに2倍に広げる処理)だけを同じにしたもの。
+ * スパンは扱わない。
+ */
+
+class GapBuffer implements CharSequence {
+    private char[] mText;
+    private int mGapStart;
+    private int mGapLength;
+
+    GapBuffer(CharSequence source) {
+        int length = source.length();
+        mText = new char[grownSize(length)];
+        for (int i = 0; i < length; i++) {
+            mText[i] = source.charAt(i);
+        }
+        mGapStart = length;
+        mGapLength = mText.length - length;
+    }
+
+    @Override
+    public int length() {
+        return mText.length - mGapLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+        }
+        return index >= mGapStart ? mText[index + mGapLength] : mText[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+
+    void getChars(int start, int end, char[] dest, int destoff) {
+        if (end <= mGapStart) {
+            System.arraycopy(mText, start, dest, destoff, end - start);
+        } else if (start >= mGapStart) {
+            System.arraycopy(mText, start + mGapLength, dest, destoff, end - start);
+        } else {
+            System.arraycopy(mText, start, dest, destoff, mGapStart - start);
+            System.arraycopy(mText, mGapStart + mGapLength, dest, destoff + mGapStart - start, end - mGapStart);
+        }
+    }
+
+    // st〜enをsourceのstart〜endで置き換える
+    void replace(int st, int en, CharSequence source, int start, int end) {
+        int newLength = end - start;
+        int delta = newLength - (en - st);
+        if (delta > mGapLength) {
+            resize(length() + delta);
+        }
+        // 置き換える範囲の後ろにギャップを移し、範囲をギャップに含める
+        moveGapTo(en);
+        mGapStart -= en - st;
+        mGapLength += en - st;
+        for (int i = start; i < end; i++) {
+            mText[mGapStart++] = source.charAt(i);
+        }
+        mGapLength -= newLength;
+    }
+
+    private void moveGapTo(int where) {
+        if (where == mGapStart) {
+            return;
+        }
+        if (where < mGapStart) {
+            int count = mGapStart - where;
+            System.arraycopy(mText, where, mText, mGapStart + mGapLength - count, count);
+        } else {
+            int count = where - mGapStart;
+            System.arraycopy(mText, mGapStart + mGapLength, mText, mGapStart, count);
+        }
+        mGapStart = where;
+    }
+
+    private void resize(int size) {
+        char[] text = new char[grownSize(size)];
+        int after = mText.length - (mGapStart + mGapLength);
+        System.arraycopy(mText, 0, text, 0, mGapStart);
+        System.arraycopy(mText, mText.length - after, text, text.length - after, after);
+        mGapLength += text.length - mText.length;
+        mText = text;
+    }
+
+    // GrowingArrayUtilsと同じ広げ方
+    private static int grownSize(int size) {
+        return size <= 4 ? 8 : size * 2;
+    }
+}
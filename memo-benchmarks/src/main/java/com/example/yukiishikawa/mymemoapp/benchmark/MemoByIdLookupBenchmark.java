@@ -0,0 +1,112 @@
+package com.example.yukiishikawa.mymemoapp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by yukiishikawa on 2017/12/10.
+ * IDで1件のメモを引く処理のベンチマーク
+ *
+ * - concatenatedSql: IDをSQLに埋め込む (今までのMemoProvider。IDごとにコンパイルし直す)
+ * - compiledStatement: コンパイル済みの文に、IDを引数として渡す (MemoStatements)
+ * 端末のSQLiteの代わりに、sqlite-jdbcで同じ表を作って測る。
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoByIdLookupBenchmark {
+    // メモの件数
+    @Param({"1000", "10000"})
+    public int rows;
+
+    private Connection mConnection;
+    private PreparedStatement mSelectData;
+    private long mNextId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        mConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        Statement statement = mConnection.createStatement();
+        try {
+            // MemoDBHelperの表のうち、引くのに使う列だけを作る
+            statement.executeUpdate("CREATE TABLE memo (_id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT, _data TEXT)");
+        } finally {
+            statement.close();
+        }
+
+        mConnection.setAutoCommit(false);
+        PreparedStatement insert = mConnection.prepareStatement("INSERT INTO memo (title, _data) VALUES (?, ?)");
+        try {
+            for (int i = 0; i < rows; i++) {
+                insert.setString(1, "memo " + i);
+                insert.setString(2, "/data/memo/" + Integer.toHexString(i & 255) + "/memo-" + i + ".txt");
+                insert.executeUpdate();
+            }
+        } finally {
+            insert.close();
+        }
+        mConnection.commit();
+        mConnection.setAutoCommit(true);
+
+        mSelectData = mConnection.prepareStatement("SELECT _data FROM memo WHERE _id = ?");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        mSelectData.close();
+        mConnection.close();
+    }
+
+    @Benchmark
+    public String concatenatedSql() throws SQLException {
+        Statement statement = mConnection.createStatement();
+        try {
+            return firstString(statement.executeQuery("SELECT _data FROM memo WHERE _id=" + nextId()));
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Benchmark
+    public String compiledStatement() throws SQLException {
+        mSelectData.setLong(1, nextId());
+        return firstString(mSelectData.executeQuery());
+    }
+
+    // 全件を順に引く
+    private long nextId() {
+        mNextId = mNextId % rows + 1;
+        return mNextId;
+    }
+
+    private static String firstString(ResultSet result) throws SQLException {
+        try {
+            return result.next() ? result.getString(1) : null;
+        } finally {
+            result.close();
+        }
+    }
+}
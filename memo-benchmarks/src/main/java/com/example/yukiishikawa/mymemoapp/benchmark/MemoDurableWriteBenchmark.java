@@ -0,0 +1,107 @@
+package com.example.yukiishikawa.mymemoapp.benchmark;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoFileCodec;
+import com.example.yukiishikawa.mymemoapp.core.MemoFiles;
+import com.example.yukiishikawa.mymemoapp.core.MemoGroupCommit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by yukiishikawa on 2017/11/12.
+ * 保存を確定させる方法ごとの、保存のベンチマーク
+ *
+ * - unsafe: 今までの保存 (その場で書き換え、fsyncしない)
+ * - atomicPerSave: 一時ファイル+fsync+置き換えを、保存ごとに確定させる
+ * - atomicGroupCommit: 同じ処理を、同時に来た保存と1つのバッチにして確定させる
+ *   (ファイルのfsyncは保存ごとに行い、ディレクトリのfsyncだけをバッチで1回にする)
+ * 複数のスレッドから別々のメモを保存する。p99はSampleTimeの結果を見る。
+ * スレッド数は -t で変えられる。
+ */
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class MemoDurableWriteBenchmark {
+
+    // 全スレッドで共有するディレクトリとグループコミット
+    @State(Scope.Benchmark)
+    public static class Shared {
+        // メモの文字数 1KB, 64KB
+        @Param({"1024", "65536"})
+        public int size;
+
+        String memo;
+        File dir;
+        MemoGroupCommit groupCommit;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            memo = MemoTexts.generate(size);
+            dir = File.createTempFile("memo-bench", "");
+            if (!dir.delete() || !dir.mkdir()) {
+                throw new IOException("failed to create " + dir);
+            }
+            groupCommit = new MemoGroupCommit(new NioDirectorySync());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    // スレッドごとの保存先と、まとめないためのグループコミット
+    @State(Scope.Thread)
+    public static class PerThread {
+        File file;
+        MemoGroupCommit ownCommit;
+
+        @Setup(Level.Trial)
+        public void setUp(Shared shared) throws IOException {
+            file = File.createTempFile("memo", ".txt", shared.dir);
+            // スレッドごとに別のインスタンスを使うと、バッチは常に1件になる
+            ownCommit = new MemoGroupCommit(new NioDirectorySync());
+        }
+    }
+
+    @Benchmark
+    public void unsafe(Shared shared, PerThread thread) throws IOException {
+        MemoFiles.write(thread.file, shared.memo, MemoFileCodec.ENCODING_PLAIN);
+    }
+
+    @Benchmark
+    public void atomicPerSave(Shared shared, PerThread thread) throws IOException {
+        MemoFiles.writeAtomically(thread.file, shared.memo, MemoFileCodec.ENCODING_PLAIN, thread.ownCommit);
+    }
+
+    @Benchmark
+    public void atomicGroupCommit(Shared shared, PerThread thread) throws IOException {
+        MemoFiles.writeAtomically(thread.file, shared.memo, MemoFileCodec.ENCODING_PLAIN, shared.groupCommit);
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.yukiishikawa.mymemoapp.benchmark;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoFileCodec;
+import com.example.yukiishikawa.mymemoapp.core.MemoFiles;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by yukiishikawa on 2017/11/05.
+ * メモの保存と読み込みのベンチマーク
+ *
+ * 1KBから50MBまでのメモを、圧縮しない形式と圧縮する形式で保存・読み込みする。
+ * 1秒あたりの回数(Throughput)と、1回ごとの時間の分布(SampleTime)を測る。
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MemoFileBenchmark {
+    // メモの文字数 1KB, 64KB, 1MB, 50MB
+    @Param({"1024", "65536", "1048576", "52428800"})
+    public int size;
+
+    @Param({"" + MemoFileCodec.ENCODING_PLAIN, "" + MemoFileCodec.ENCODING_DEFLATE})
+    public int encoding;
+
+    private String mMemo;
+    private File mDir;
+    // 保存の測定で書き込むファイル
+    private File mSaveFile;
+    // 読み込みの測定で読むファイル
+    private File mLoadFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mMemo = MemoTexts.generate(size);
+
+        mDir = File.createTempFile("memo-bench", "");
+        if (!mDir.delete() || !mDir.mkdir()) {
+            throw new IOException("failed to create " + mDir);
+        }
+        mSaveFile = new File(mDir, "save.txt");
+        mLoadFile = new File(mDir, "load.txt");
+        MemoFiles.write(mLoadFile, mMemo, encoding);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mSaveFile.delete();
+        mLoadFile.delete();
+        mDir.delete();
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        MemoFiles.write(mSaveFile, mMemo, encoding);
+    }
+
+    @Benchmark
+    public String load() throws IOException {
+        return MemoFiles.read(mLoadFile, encoding);
+    }
+}
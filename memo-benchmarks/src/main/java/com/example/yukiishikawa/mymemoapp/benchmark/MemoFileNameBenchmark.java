@@ -0,0 +1,62 @@
+package com.example.yukiishikawa.mymemoapp.benchmark;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoFileLayout;
+import com.example.yukiishikawa.mymemoapp.core.MemoFiles;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by yukiishikawa on 2017/11/05.
+ * ファイル名を決める処理のベンチマーク
+ *
+ * 一括保存では件数分のファイル名を作るので、1件あたりのコストを測る。
+ * ID付きのファイル名と、サブディレクトリの振り分けも測る。
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoFileNameBenchmark {
+    private static final String PREFIX = "memo";
+
+    private final Calendar mNow = Calendar.getInstance();
+    private MemoFileLayout mLayout;
+
+    @Setup
+    public void setUp() {
+        // ディレクトリは作らないので、存在しない場所でよい
+        mLayout = new MemoFileLayout(new File("memo-bench-layout"));
+    }
+
+    @Benchmark
+    public String fileName() {
+        return MemoFiles.fileName(PREFIX, mNow);
+    }
+
+    @Benchmark
+    public String uniqueFileName() {
+        long id = MemoFileLayout.nextId();
+        return MemoFiles.fileName(PREFIX, mNow, Long.toString(id, Character.MAX_RADIX));
+    }
+
+    @Benchmark
+    public File shardDir() {
+        return mLayout.getShardDir(MemoFiles.fileName(PREFIX, mNow));
+    }
+}
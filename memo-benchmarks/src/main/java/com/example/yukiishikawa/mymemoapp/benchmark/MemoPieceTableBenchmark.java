@@ -0,0 +1,127 @@
+package com.example.yukiishikawa.mymemoapp.benchmark;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoPieceTable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by yukiishikawa on 2017/12/17.
+ * MemoEditableの本文(MemoPieceTable)と、SpannableStringBuilderと同じギャップバッファの比較
+ *
+ * - typing: 同じ位置に続けて1文字ずつ入力する (ギャップバッファが最も得意な編集)
+ * - farEdits: 先頭付近と末尾付近を交互に1文字ずつ置き換える (ギャップの移動で本文の大部分をコピーする)
+ * - scan: 離れた位置を1000回編集した後に、本文を前から1文字ずつ読む (レイアウトが本文を読む処理)
+ * 編集の結果は試行(iteration)ごとに作り直す。
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoPieceTableBenchmark {
+    // メモの文字数 64KB, 1MB
+    @Param({"65536", "1048576"})
+    public int size;
+
+    // 先頭と末尾から、この範囲の中で編集する
+    private static final int EDIT_RANGE = 1000;
+    private static final int SCAN_EDITS = 1000;
+
+    private String mMemo;
+    private MemoPieceTable mPieceTable;
+    private GapBuffer mGapBuffer;
+    private MemoPieceTable mEditedPieceTable;
+    private GapBuffer mEditedGapBuffer;
+    private int mCursor;
+    private int mEditCount;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        mMemo = MemoTexts.generate(size);
+
+        // 読み込みの比較用に、同じ編集をした本文を作っておく
+        mEditedPieceTable = new MemoPieceTable(mMemo);
+        mEditedGapBuffer = new GapBuffer(mMemo);
+        Random random = new Random(1);
+        for (int i = 0; i < SCAN_EDITS; i++) {
+            int position = random.nextInt(size);
+            mEditedPieceTable.replace(position, position + 1, "x", 0, 1);
+            mEditedGapBuffer.replace(position, position + 1, "x", 0, 1);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        mPieceTable = new MemoPieceTable(mMemo);
+        mGapBuffer = new GapBuffer(mMemo);
+        mCursor = size / 2;
+        mEditCount = 0;
+    }
+
+    @Benchmark
+    public int typingPieceTable() {
+        mPieceTable.insert(mCursor, "a", 0, 1);
+        return ++mCursor;
+    }
+
+    @Benchmark
+    public int typingGapBuffer() {
+        mGapBuffer.replace(mCursor, mCursor, "a", 0, 1);
+        return ++mCursor;
+    }
+
+    @Benchmark
+    public int farEditsPieceTable() {
+        int position = nextFarPosition();
+        mPieceTable.replace(position, position + 1, "b", 0, 1);
+        return position;
+    }
+
+    @Benchmark
+    public int farEditsGapBuffer() {
+        int position = nextFarPosition();
+        mGapBuffer.replace(position, position + 1, "b", 0, 1);
+        return position;
+    }
+
+    @Benchmark
+    public int scanPieceTable() {
+        return scan(mEditedPieceTable);
+    }
+
+    @Benchmark
+    public int scanGapBuffer() {
+        return scan(mEditedGapBuffer);
+    }
+
+    // 先頭付近と末尾付近を交互に返す
+    private int nextFarPosition() {
+        int offset = (mEditCount / 2) % EDIT_RANGE;
+        return (mEditCount++ & 1) == 0 ? offset : size - 1 - offset;
+    }
+
+    private static int scan(CharSequence text) {
+        int hash = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash;
+    }
+}
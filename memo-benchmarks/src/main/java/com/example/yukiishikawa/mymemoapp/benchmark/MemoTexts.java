@@ -0,0 +1,45 @@
+package com.example.yukiishikawa.mymemoapp.benchmark;
+
+import java.util.Random;
+
+/**
+ * Created by yukiishikawa on 2017/11/05.
+ * ベンチマーク用のメモの本文を作る
+ *
+ * 英数字と日本語が混ざった、改行のある文章にする。
+ * 同じ長さなら毎回同じ内容になるよう、乱数の種は固定する。
+ */
+
+final class MemoTexts {
+    private static final String[] WORDS = {
+            "memo", "today", "TODO", "2017", "meeting", "買い物", "牛乳", "打ち合わせ", "メモ", "確認",
+            "a", "the", "file", "あとで読む", "📝"
+    };
+
+    // 1行の単語数の上限
+    private static final int MAX_WORDS_PER_LINE = 12;
+
+    private MemoTexts() {}
+
+    // 指定した文字数(char単位)のメモを作る
+    static String generate(int length) {
+        Random random = new Random(length);
+        StringBuilder builder = new StringBuilder(length + 16);
+        int words = 0;
+        while (builder.length() < length) {
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+            if (++words >= 1 + random.nextInt(MAX_WORDS_PER_LINE)) {
+                builder.append('\n');
+                words = 0;
+            } else {
+                builder.append(' ');
+            }
+        }
+        builder.setLength(length);
+        // サロゲートペアの途中で切れないようにする
+        if (length > 0 && Character.isHighSurrogate(builder.charAt(length - 1))) {
+            builder.setCharAt(length - 1, '.');
+        }
+        return builder.toString();
+    }
+}
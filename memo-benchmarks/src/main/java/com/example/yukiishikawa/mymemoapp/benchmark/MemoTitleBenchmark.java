@@ -0,0 +1,55 @@
+package com.example.yukiishikawa.mymemoapp.benchmark;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoFiles;
+import com.example.yukiishikawa.mymemoapp.core.MemoMetadata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by yukiishikawa on 2017/11/05.
+ * タイトルと一覧表示用の情報を求める処理のベンチマーク
+ *
+ * タイトルは先頭だけを見るので長さによらず一定、
+ * 一覧表示用の情報は本文全体を1回なめるので長さに比例するはず。
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoTitleBenchmark {
+    // メモの文字数 1KB, 64KB, 1MB
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private String mMemo;
+
+    @Setup
+    public void setUp() {
+        mMemo = MemoTexts.generate(size);
+    }
+
+    @Benchmark
+    public String title() {
+        return MemoFiles.title(mMemo);
+    }
+
+    @Benchmark
+    public MemoMetadata metadata() {
+        return MemoMetadata.of(mMemo);
+    }
+}
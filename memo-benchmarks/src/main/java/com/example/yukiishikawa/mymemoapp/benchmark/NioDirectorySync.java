@@ -0,0 +1,28 @@
+package com.example.yukiishikawa.mymemoapp.benchmark;
+
+import com.example.yukiishikawa.mymemoapp.core.MemoGroupCommit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Created by yukiishikawa on 2017/12/17.
+ * java.nio.fileでディレクトリを開いて同期する (JVM用)
+ *
+ * java.nio.fileはAPI level 26未満の端末には無いので、memo-coreには置かない。
+ * アプリではMemoRepositoryがOsを使って同じことをする。
+ */
+
+class NioDirectorySync implements MemoGroupCommit.DirectorySync {
+    @Override
+    public void sync(File dir) throws IOException {
+        FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by yukiishikawa on 2017/11/19.
+ * メモファイルの置き場所を決める
+ *
+ * 秒単位の日時だけのファイル名では、同じ秒に作ったメモが上書きされてしまう。
+ * ファイル名には重複しないID(ミリ秒の時刻を元にした単調増加の値)を付ける。
+ * また、1つのディレクトリに数万のファイルが並ぶと遅くなるので、
+ * ファイル名のハッシュ値で256個のサブディレクトリに振り分ける。
+ *   root/3f/prefix-yyyy-mm-dd-HH-MM-SS-id.txt
+ */
+
+public class MemoFileLayout {
+    // サブディレクトリの数 (2の累乗)
+    private static final int SHARD_COUNT = 256;
+
+    // FNV-1a(32bit)の初期値と素数
+    private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    // 最後に払い出したID
+    private static final AtomicLong sLastId = new AtomicLong();
+
+    private final File mRoot;
+
+    public MemoFileLayout(File root) {
+        mRoot = root.getAbsoluteFile();
+    }
+
+    public File getRoot() {
+        return mRoot;
+    }
+
+    // 重複しないIDを払い出す
+    // 現在時刻(ミリ秒)を使い、同じミリ秒に複数払い出す場合は1ずつ進める
+    public static long nextId() {
+        while (true) {
+            long last = sLastId.get();
+            long id = Math.max(System.currentTimeMillis(), last + 1);
+            if (sLastId.compareAndSet(last, id)) {
+                return id;
+            }
+        }
+    }
+
+    // 新しいメモのファイルを決める
+    // サブディレクトリは必要に応じて作成する
+    public File newFile(String prefix) throws IOException {
+        while (true) {
+            long id = nextId();
+            Calendar time = Calendar.getInstance();
+            time.setTimeInMillis(id);
+            String fileName = MemoFiles.fileName(prefix, time, Long.toString(id, Character.MAX_RADIX));
+
+            File dir = getShardDir(fileName);
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("failed to create " + dir);
+            }
+
+            // 再起動で時刻が戻った場合などに備えて、既存のファイルは避ける
+            File file = new File(dir, fileName);
+            if (!file.exists()) {
+                return file;
+            }
+        }
+    }
+
+    // ファイル名から、置くべきサブディレクトリを決める
+    public File getShardDir(String fileName) {
+        int hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < fileName.length(); i++) {
+            hash = (hash ^ fileName.charAt(i)) * FNV_PRIME;
+        }
+        int shard = hash & (SHARD_COUNT - 1);
+        return new File(mRoot, Integer.toHexString(SHARD_COUNT | shard).substring(1));
+    }
+
+    // rootの直下のファイルを、サブディレクトリに移す
+    // 編集ジャーナルも一緒に移し、移した先のファイルを返す
+    // 途中で中断した場合も、もう一度呼べば移し終える
+    public File migrate(File file) throws IOException {
+        String fileName = file.getName();
+        File dir = getShardDir(fileName);
+        File target = new File(dir, fileName);
+
+        synchronized (MemoJournal.getLock(file)) {
+            if (!file.exists()) {
+                if (target.exists()) {
+                    // 前回、ファイルを移した後に中断していた
+                    moveIfExists(MemoJournal.getJournalFile(file), MemoJournal.getJournalFile(target));
+                    return target;
+                }
+                throw new IOException("file not found: " + file);
+            }
+
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("failed to create " + dir);
+            }
+            // ジャーナルを先に移す
+            // ベースファイルより後に移すと、ジャーナルを適用しない内容が見える間ができる
+            moveIfExists(MemoJournal.getJournalFile(file), MemoJournal.getJournalFile(target));
+            MemoJournal.invalidate(file);
+            if (!file.renameTo(target)) {
+                throw new IOException("failed to move " + file + " to " + target);
+            }
+        }
+        return target;
+    }
+
+    // 移したファイルを、元の場所に戻す
+    public void restore(File migrated, File original) throws IOException {
+        synchronized (MemoJournal.getLock(original)) {
+            MemoJournal.invalidate(migrated);
+            moveIfExists(MemoJournal.getJournalFile(migrated), MemoJournal.getJournalFile(original));
+            if (!migrated.renameTo(original)) {
+                throw new IOException("failed to move " + migrated + " to " + original);
+            }
+        }
+    }
+
+    private static void moveIfExists(File from, File to) throws IOException {
+        if (from.exists() && !from.renameTo(to)) {
+            throw new IOException("failed to move " + from + " to " + to);
+        }
+    }
+}
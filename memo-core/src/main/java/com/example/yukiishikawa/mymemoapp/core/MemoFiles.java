@@ -0,0 +1,231 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+
+/**
+ * Created by yukiishikawa on 2017/11/05.
+ * メモファイルの名前の決め方と読み書き
+ *
+ * Androidに依存しないので、JVMだけでベンチマークできる。
+ * データベースへの登録はアプリ側(MemoRepository)で行う。
+ */
+
+public class MemoFiles {
+    // ファイル名フォーマット prefix-yyyy-mm-dd-HH-MM-SS.txt
+    public static final String FILE_NAME_FORMAT = "%1$s-%2$tF-%2$tH-%2$tM-%2$tS.txt";
+    // IDを付けたファイル名フォーマット prefix-yyyy-mm-dd-HH-MM-SS-id.txt
+    // 同じ秒に複数のファイルを作成しても重ならないよう、IDを付ける (MemoFileLayout)
+    public static final String FILE_NAME_FORMAT_UNIQUE = "%1$s-%2$tF-%2$tH-%2$tM-%2$tS-%3$s.txt";
+
+    // メモファイルの文字コード
+    // 端末の設定によらず、Androidの既定と同じUTF-8で読み書きする (JVMのテストやベンチマークでも同じ結果になる)
+    public static final Charset CHARSET = Charset.forName("UTF-8");
+
+    // タイトルの文字数
+    public static final int TITLE_LENGTH = 10;
+
+    // 一部を置き換えるときの一時ファイルの拡張子
+    private static final String PATCH_SUFFIX = ".patch";
+    // 全体を書き直すときの一時ファイルの拡張子
+    public static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 8192;
+
+    // インスタンスを作らせない
+    private MemoFiles() {}
+
+    // ファイル名を決める
+    public static String fileName(String prefix, Calendar time) {
+        return String.format(FILE_NAME_FORMAT, prefix, time);
+    }
+
+    // ID付きのファイル名を決める
+    public static String fileName(String prefix, Calendar time, String id) {
+        return String.format(FILE_NAME_FORMAT_UNIQUE, prefix, time, id);
+    }
+
+    // メモのタイトルは、本文の先頭から決める
+    public static String title(String memo) {
+        return memo.length() > TITLE_LENGTH ? memo.substring(0, TITLE_LENGTH) : memo;
+    }
+
+    // 指定した形式で、ファイルにメモを書き込む
+    public static void write(File file, CharSequence memo, int encoding) throws IOException {
+        Writer writer = new OutputStreamWriter(MemoFileCodec.encode(new FileOutputStream(file), encoding), CHARSET);
+        try {
+            writer.append(memo);
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+    }
+
+    // 一時ファイルに書き込んでから、ファイルを置き換える
+    // 途中で落ちても、ファイルは古い内容か新しい内容のどちらかになる
+    // 同期(fsync)はcommitが他の保存とまとめて行う
+    public static void writeAtomically(File file, CharSequence memo, int encoding, MemoGroupCommit commit)
+            throws IOException {
+        // 同じファイルへの保存が重なっても衝突しないよう、一時ファイルの名前は毎回変える
+        File tempFile = File.createTempFile(file.getName(), TEMP_SUFFIX, file.getAbsoluteFile().getParentFile());
+        FileOutputStream out = null;
+        boolean committing = false;
+        try {
+            out = new FileOutputStream(tempFile);
+            // 圧縮の終わりまで書き出しても、同期するまでファイルは閉じない
+            Writer writer = new OutputStreamWriter(MemoFileCodec.encode(new UnclosableOutputStream(out), encoding),
+                    CHARSET);
+            writer.append(memo);
+            writer.close();
+
+            committing = true;
+            synchronized (MemoJournal.getLock(file)) {
+                // ジャーナルを使わずに置き換えるので、ジャーナル側で覚えている内容は捨てる
+                MemoJournal.invalidate(file);
+                commit.commit(out, tempFile, file);
+            }
+        } finally {
+            if (!committing) {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                tempFile.delete();
+            }
+        }
+    }
+
+    // ファイルの内容を読み込む
+    // 圧縮されている場合は展開し、編集ジャーナルがある場合は適用した結果を返す
+    public static String read(File file, int encoding) throws IOException {
+        return MemoJournal.read(file, encoding);
+    }
+
+    // ファイルの内容の、先頭からmaxLength文字までを読み込む
+    // 本文全体をStringにしないので、大きなメモの検索用の索引などに使う
+    public static String readPrefix(File file, int encoding, int maxLength) throws IOException {
+        return MemoJournal.readPrefix(file, encoding, maxLength);
+    }
+
+    // 文字列の先頭からmaxLength文字までを返す
+    // サロゲートペアの途中では切らない
+    public static String prefix(CharSequence text, int maxLength) {
+        if (text.length() <= maxLength) {
+            return text.toString();
+        }
+        int end = maxLength;
+        if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.subSequence(0, end).toString();
+    }
+
+    // ファイルを1回読んで、タイトルと一覧表示用の情報を求める
+    // 本文全体をStringにしないので、大きなメモにも使える
+    public static MemoMetadata readMetadata(File file, int encoding) throws IOException {
+        MemoMetadata.Builder builder = new MemoMetadata.Builder();
+
+        Reader reader = new InputStreamReader(MemoFileCodec.decode(new FileInputStream(file), encoding), CHARSET);
+        try {
+            char[] buffer = new char[BUFFER_SIZE];
+            CharBuffer chars = CharBuffer.wrap(buffer);
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                builder.append(chars, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+        return builder.build();
+    }
+
+    // 圧縮しないファイルの一部(startからendまでのバイト)を、replacementに置き換える
+    // 一時ファイルに書き出して同期してから入れ替えるので、途中で失敗しても元のファイルは残る
+    // 変更箇所が小さくても、呼ぶたびにファイル全体を一時ファイルにコピーし直す
+    // (本文をメモリには載せないが、I/Oの量はファイルの大きさに比例する)
+    // 編集ジャーナルのあるファイルは、バイト位置が本文と一致しないので扱わない
+    public static void replaceRange(File file, long start, long end, byte[] replacement,
+                                    MemoGroupCommit commit) throws IOException {
+        File patchFile = new File(file.getPath() + PATCH_SUFFIX);
+
+        synchronized (MemoJournal.getLock(file)) {
+            if (MemoJournal.hasJournal(file)) {
+                throw new IOException("file has a journal: " + file);
+            }
+            if (start < 0 || start > end || end > file.length()) {
+                throw new IOException("invalid range " + start + "-" + end + " for " + file);
+            }
+
+            FileOutputStream out = new FileOutputStream(patchFile);
+            boolean committing = false;
+            try {
+                FileChannel in = new FileInputStream(file).getChannel();
+                try {
+                    FileChannel channel = out.getChannel();
+                    transfer(in, 0, start, channel);
+                    ByteBuffer buffer = ByteBuffer.wrap(replacement);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    transfer(in, end, in.size() - end, channel);
+                } finally {
+                    in.close();
+                }
+
+                committing = true;
+                MemoJournal.invalidate(file);
+                commit.commit(out, patchFile, file);
+            } finally {
+                if (!committing) {
+                    out.close();
+                    patchFile.delete();
+                }
+            }
+        }
+    }
+
+    // チャネルの一部を、別のチャネルにすべて書き込む
+    private static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        while (count > 0) {
+            long transferred = in.transferTo(position, count, out);
+            if (transferred <= 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    // close()しても下のストリームを閉じないストリーム
+    // 圧縮ストリームを最後まで書き出した後に、ファイルを同期するために使う
+    static class UnclosableOutputStream extends FilterOutputStream {
+        UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
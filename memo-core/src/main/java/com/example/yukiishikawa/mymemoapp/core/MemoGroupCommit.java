@@ -0,0 +1,191 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Created by yukiishikawa on 2017/11/12.
+ * 一時ファイルに書いたメモを、fsyncしてから本来のファイル名に置き換える
+ *
+ * 同時に来た保存を1つのバッチにして、1つのスレッド(リーダー)が順に確定させる。
+ * - 同期中でなければ、来た保存がリーダーになって、溜まっている保存を順に同期する
+ * - 同期中に来た保存は、次のリーダーが同期するまで待つ
+ * 同期の順番は、ファイルの内容(fsync) → 置き換え(rename) → ディレクトリ(fsync)。
+ * ファイルの内容のfsyncは、バッチの中でもファイルごとに1回ずつ行う。
+ * まとめられるのはディレクトリの同期だけで、バッチの中で1ディレクトリにつき1回で済む。
+ * 既存のファイルへの追記(編集ジャーナル)は、置き換えずに内容の同期だけを行う。
+ */
+
+public class MemoGroupCommit {
+
+    /**
+     * ディレクトリを同期する方法
+     * JavaのAPIではディレクトリを開けない環境があるので、差し替えられるようにする
+     * (アプリはOs、ベンチマークはjava.nio.fileで開く)
+     */
+    public interface DirectorySync {
+        void sync(File dir) throws IOException;
+    }
+
+    private final DirectorySync mDirectorySync;
+
+    private final Object mLock = new Object();
+    // 次のバッチで同期する保存
+    private List<Request> mPending = new ArrayList<>();
+    // リーダーが同期しているかどうか
+    private boolean mSyncing;
+
+    // これまでに同期したバッチの数と保存の数
+    private long mBatchCount;
+    private long mCommitCount;
+
+    // 1件の保存
+    // 追記の場合、tempFileとtargetFileはnull
+    private static class Request {
+        final FileOutputStream out;
+        final File tempFile;
+        final File targetFile;
+        IOException error;
+        boolean done;
+
+        Request(FileOutputStream out, File tempFile, File targetFile) {
+            this.out = out;
+            this.tempFile = tempFile;
+            this.targetFile = targetFile;
+        }
+    }
+
+    public MemoGroupCommit(DirectorySync directorySync) {
+        mDirectorySync = directorySync;
+    }
+
+    // outに書き込んだtempFileを同期して、targetFileに置き換える
+    // 置き換えが確定するまで戻らない
+    // outは成否によらず閉じられ、失敗した場合はtempFileも削除される
+    public void commit(FileOutputStream out, File tempFile, File targetFile) throws IOException {
+        enqueue(new Request(out, tempFile, targetFile));
+    }
+
+    // 既存のファイルに追記したoutを同期する
+    // 同期が確定するまで戻らない。outは成否によらず閉じられる
+    public void commit(FileOutputStream out) throws IOException {
+        enqueue(new Request(out, null, null));
+    }
+
+    // 保存をバッチに加えて、同期が終わるまで待つ
+    private void enqueue(Request request) throws IOException {
+        List<Request> batch;
+        boolean interrupted = false;
+
+        synchronized (mLock) {
+            mPending.add(request);
+            // 他のリーダーが同期中であれば、終わるのを待つ
+            // その同期に含まれていなければ、次は自分がリーダーになる
+            while (mSyncing && !request.done) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    // 途中で抜けると、閉じたストリームを他のリーダーが同期してしまうので最後まで待つ
+                    interrupted = true;
+                }
+            }
+
+            if (!request.done) {
+                mSyncing = true;
+                batch = mPending;
+                mPending = new ArrayList<>();
+            } else {
+                batch = null;
+            }
+        }
+
+        if (batch != null) {
+            try {
+                syncBatch(batch);
+            } finally {
+                synchronized (mLock) {
+                    for (Request r : batch) {
+                        r.done = true;
+                    }
+                    mBatchCount++;
+                    mCommitCount += batch.size();
+                    mSyncing = false;
+                    mLock.notifyAll();
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (request.error != null) {
+            throw request.error;
+        }
+    }
+
+    // これまでに同期したバッチの数
+    public long getBatchCount() {
+        synchronized (mLock) {
+            return mBatchCount;
+        }
+    }
+
+    // これまでに同期した保存の数
+    public long getCommitCount() {
+        synchronized (mLock) {
+            return mCommitCount;
+        }
+    }
+
+    // バッチの保存を順に同期する
+    // ファイルはそれぞれfsyncし、ディレクトリの同期だけを共有する
+    private void syncBatch(List<Request> batch) {
+        // ファイルの内容を確定させてから閉じる
+        for (Request r : batch) {
+            try {
+                r.out.getFD().sync();
+            } catch (IOException e) {
+                r.error = e;
+            }
+            try {
+                r.out.close();
+            } catch (IOException e) {
+                if (r.error == null) {
+                    r.error = e;
+                }
+            }
+        }
+
+        // 内容が確定したものだけ置き換える
+        Set<File> dirs = new LinkedHashSet<>();
+        for (Request r : batch) {
+            if (r.tempFile == null) {
+                // 追記は置き換えるものが無い
+                continue;
+            }
+            if (r.error == null && !r.tempFile.renameTo(r.targetFile)) {
+                r.error = new IOException("failed to rename " + r.tempFile + " to " + r.targetFile);
+            }
+            if (r.error != null) {
+                r.tempFile.delete();
+            } else {
+                dirs.add(r.targetFile.getAbsoluteFile().getParentFile());
+            }
+        }
+
+        // 置き換えを確定させる
+        // 置き換え自体は済んでいるので、失敗しても保存は失敗にしない
+        for (File dir : dirs) {
+            try {
+                mDirectorySync.sync(dir);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,710 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Created by yukiishikawa on 2017/09/03.
+ * 大きなメモを、ベースとなるファイルと追記専用の編集ジャーナルで保存する
+ *
+ * ジャーナルの形式
+ *   ヘッダ: MAGIC(int) ベースファイルのバイト数(long) ベースファイルのCRC32(long)
+ *   レコード: 開始位置(int) 削除する文字数(int) 挿入する文字列のバイト数(int) 挿入する文字列(UTF-8)
+ *            レコードのCRC32(int)
+ * ヘッダがベースファイルと一致しない場合、そのジャーナルは圧縮済みの古いものなので捨てる
+ * CRC32が一致しないレコードと、それより後ろは書き込み途中で終わったものとして捨てる
+ * ベースファイルはMemoFileCodecの形式で圧縮されている場合がある。CRC32は圧縮後のバイト列で計算する
+ *
+ * 追記と新しいジャーナルの作成、圧縮は、すべてMemoGroupCommitで同期してから戻る。
+ * 最後に読み書きした内容はファイルごとに覚えておき、保存のたびにベースファイルを読み直さない。
+ */
+
+public class MemoJournal {
+    // ジャーナルファイルの拡張子
+    private static final String JOURNAL_SUFFIX = ".journal";
+    // 圧縮中の一時ファイルの拡張子
+    private static final String COMPACT_SUFFIX = ".compact";
+    // ジャーナルファイルの識別子
+    private static final int MAGIC = 0x4d4a5232;
+    // ヘッダのバイト数
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+    // レコードの固定部分のバイト数
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 4;
+    private static final int RECORD_CRC_SIZE = 4;
+    // ジャーナルを使い始めるファイルサイズ
+    // これより小さいメモは、書き直した方が安い
+    public static final long JOURNAL_MIN_FILE_SIZE = 64 * 1024;
+    // 圧縮を行うジャーナルの最小サイズ
+    private static final long COMPACT_MIN_JOURNAL_SIZE = 64 * 1024;
+    // ジャーナルがベースファイルのこの割合を超えたら圧縮する
+    private static final int COMPACT_RATIO_DIVISOR = 4;
+
+    // ベースファイルもジャーナルも、MemoFilesと同じUTF-8で読み書きする
+    // (ベースファイルのバイト数やCRC32も、この文字コードで求める)
+    private static final Charset BASE_CHARSET = MemoFiles.CHARSET;
+    private static final Charset JOURNAL_CHARSET = MemoFiles.CHARSET;
+
+    // ファイルごとのロック
+    // 追記と圧縮が同時に行われないようにする
+    private static final ConcurrentHashMap<String, Object> sLocks = new ConcurrentHashMap<>();
+
+    // ファイルごとの、最後に読み書きした状態
+    // ファイルのロックの中で読み書きする
+    private static final ConcurrentHashMap<String, State> sStates = new ConcurrentHashMap<>();
+
+    // 圧縮を行うExecutor
+    // 未設定の場合は、追記した呼び出し元のスレッドでそのまま圧縮する
+    private static volatile Executor sCompactionExecutor;
+
+    // インスタンスを作らせない
+    private MemoJournal() {}
+
+    // 圧縮を行うExecutorを設定する
+    // アプリではI/O用スレッドを設定して、保存の呼び出し元を待たせないようにする
+    public static void setCompactionExecutor(Executor executor) {
+        sCompactionExecutor = executor;
+    }
+
+    // ジャーナルファイルを取得する
+    public static File getJournalFile(File baseFile) {
+        return new File(baseFile.getPath() + JOURNAL_SUFFIX);
+    }
+
+    // ジャーナルが存在するかどうか
+    public static boolean hasJournal(File baseFile) {
+        return getJournalFile(baseFile).exists();
+    }
+
+    // ジャーナルで保存するべきかどうか
+    public static boolean shouldJournal(File baseFile) {
+        return hasJournal(baseFile) || baseFile.length() >= JOURNAL_MIN_FILE_SIZE;
+    }
+
+    // ファイルごとのロックを取得する
+    // ジャーナルを使わずにファイルを書き換える場合も、このロックの中で行う
+    public static Object getLock(File baseFile) {
+        String key = baseFile.getAbsolutePath();
+        Object lock = sLocks.get(key);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = sLocks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    // 覚えている内容を捨てる
+    // ジャーナルを使わずにファイルを書き換えたり、移したりした場合に呼ぶ
+    public static void invalidate(File baseFile) {
+        sStates.remove(baseFile.getAbsolutePath());
+    }
+
+    // ベースファイルにジャーナルを適用したメモを読み込む
+    public static String read(File baseFile, int encoding) throws IOException {
+        synchronized (getLock(baseFile)) {
+            return load(baseFile, encoding);
+        }
+    }
+
+    // メモの変更箇所だけをジャーナルに追記する
+    // 追記した内容をcommitで同期してから戻る
+    public static void write(File baseFile, final int encoding, String memo, final MemoGroupCommit commit)
+            throws IOException {
+        boolean needsCompaction;
+        synchronized (getLock(baseFile)) {
+            try {
+                String old = load(baseFile, encoding);
+                State current = sStates.get(baseFile.getAbsolutePath());
+
+                // 先頭と末尾の共通部分を除いた範囲を、変更箇所とする
+                int oldLength = old.length();
+                int newLength = memo.length();
+                int prefix = 0;
+                int maxPrefix = Math.min(oldLength, newLength);
+                while (prefix < maxPrefix && old.charAt(prefix) == memo.charAt(prefix)) {
+                    prefix++;
+                }
+                int suffix = 0;
+                int maxSuffix = maxPrefix - prefix;
+                while (suffix < maxSuffix
+                        && old.charAt(oldLength - 1 - suffix) == memo.charAt(newLength - 1 - suffix)) {
+                    suffix++;
+                }
+
+                int deleteCount = oldLength - prefix - suffix;
+                String inserted = memo.substring(prefix, newLength - suffix);
+                if (deleteCount == 0 && inserted.isEmpty()) {
+                    // 変更なし
+                    return;
+                }
+
+                byte[] record = encodeRecord(prefix, deleteCount, inserted.getBytes(JOURNAL_CHARSET));
+                File journalFile = getJournalFile(baseFile);
+                if (current.journalLength == 0) {
+                    // 新しいジャーナルは、ヘッダと最初のレコードを書いた一時ファイルを置き換えて作る
+                    File tempFile = File.createTempFile(journalFile.getName(), MemoFiles.TEMP_SUFFIX,
+                            journalFile.getAbsoluteFile().getParentFile());
+                    FileOutputStream out = new FileOutputStream(tempFile);
+                    boolean committing = false;
+                    try {
+                        out.write(encodeHeader(current.baseLength, current.baseCrc));
+                        out.write(record);
+                        committing = true;
+                        commit.commit(out, tempFile, journalFile);
+                    } finally {
+                        if (!committing) {
+                            out.close();
+                            tempFile.delete();
+                        }
+                    }
+                    current.journalLength = HEADER_SIZE + record.length;
+                } else {
+                    if (journalFile.length() != current.journalLength) {
+                        // 書き込み途中で終わっているレコードを切り捨ててから追記する
+                        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+                        try {
+                            file.setLength(current.journalLength);
+                        } finally {
+                            file.close();
+                        }
+                    }
+                    FileOutputStream out = new FileOutputStream(journalFile, true);
+                    boolean committing = false;
+                    try {
+                        out.write(record);
+                        committing = true;
+                        commit.commit(out);
+                    } finally {
+                        if (!committing) {
+                            out.close();
+                        }
+                    }
+                    current.journalLength += record.length;
+                }
+                current.setText(memo);
+
+                needsCompaction = current.journalLength
+                        > Math.max(COMPACT_MIN_JOURNAL_SIZE, current.baseLength / COMPACT_RATIO_DIVISOR);
+            } catch (IOException | RuntimeException e) {
+                // どこまで書けたか分からないので、次はファイルから読み直す
+                invalidate(baseFile);
+                throw e;
+            }
+        }
+
+        if (needsCompaction) {
+            // 圧縮はバックグラウンドで行う
+            final File target = baseFile;
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact(target, encoding, commit);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            Executor executor = sCompactionExecutor;
+            if (executor != null) {
+                executor.execute(task);
+            } else {
+                task.run();
+            }
+        }
+    }
+
+    // ジャーナルをベースファイルに反映し、新しいベースファイルを作る
+    // 新しいベースファイルをcommitで同期してから、ジャーナルを削除する
+    public static void compact(File baseFile, int encoding, MemoGroupCommit commit) throws IOException {
+        synchronized (getLock(baseFile)) {
+            if (!hasJournal(baseFile)) {
+                return;
+            }
+            try {
+                String text = load(baseFile, encoding);
+                compact(baseFile, encoding, text, sStates.get(baseFile.getAbsolutePath()), commit);
+            } catch (IOException | RuntimeException e) {
+                invalidate(baseFile);
+                throw e;
+            }
+        }
+    }
+
+    // ロックの中で、読み込み済みの内容をベースファイルに書き出す
+    private static void compact(File baseFile, int encoding, String text, State current,
+                                MemoGroupCommit commit) throws IOException {
+        // 一時ファイルに書き出してから置き換える
+        // 置き換えた後にジャーナルが残っても、ヘッダがベースファイルと一致しないので適用されない
+        File compactFile = new File(baseFile.getPath() + COMPACT_SUFFIX);
+        FileOutputStream out = new FileOutputStream(compactFile);
+        boolean committing = false;
+        CRC32 crc = new CRC32();
+        try {
+            // 新しいベースファイルのCRC32は、書き出しながら求める
+            Writer writer = new OutputStreamWriter(MemoFileCodec.encode(
+                    new CheckedOutputStream(new MemoFiles.UnclosableOutputStream(out), crc), encoding),
+                    BASE_CHARSET);
+            writer.append(text);
+            writer.close();
+
+            committing = true;
+            commit.commit(out, compactFile, baseFile);
+        } finally {
+            if (!committing) {
+                out.close();
+                compactFile.delete();
+            }
+        }
+        getJournalFile(baseFile).delete();
+
+        current.baseLength = baseFile.length();
+        current.baseModified = baseFile.lastModified();
+        current.baseCrc = crc.getValue();
+        current.journalLength = 0;
+    }
+
+    // 覚えている内容がファイルと一致していればそれを返し、そうでなければファイルから読み込む
+    // 呼び出した後は、sStatesにファイルの状態が入っている
+    private static String load(File baseFile, int encoding) throws IOException {
+        String key = baseFile.getAbsolutePath();
+        State state = sStates.get(key);
+        if (state != null && state.encoding == encoding && state.matches(baseFile)) {
+            String text = state.getText();
+            if (text != null) {
+                return text;
+            }
+        }
+
+        state = new State(encoding);
+        String text = materialize(baseFile, state);
+        sStates.put(key, state);
+        return text;
+    }
+
+    // ベースファイルを読み込み、有効なジャーナルがあれば適用する
+    private static String materialize(File baseFile, State state) throws IOException {
+        state.baseLength = baseFile.length();
+        state.baseModified = baseFile.lastModified();
+
+        // CRC32を計算しながらベースファイルを読み込む
+        CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(baseFile)), new CRC32());
+        Reader reader = new InputStreamReader(MemoFileCodec.decode(checked, state.encoding), BASE_CHARSET);
+        StringBuilder text;
+        try {
+            text = new StringBuilder((int) Math.min(state.baseLength, Integer.MAX_VALUE));
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, read);
+            }
+            // 展開が終わった後に残っているバイトも、CRC32に含める
+            byte[] rest = new byte[8192];
+            while (checked.read(rest) != -1) {
+                // 読み飛ばす
+            }
+            state.baseCrc = checked.getChecksum().getValue();
+        } finally {
+            reader.close();
+        }
+
+        File journalFile = getJournalFile(baseFile);
+        if (journalFile.exists() && !replay(journalFile, state, text)) {
+            // 古いジャーナルは削除しておく
+            journalFile.delete();
+            state.journalLength = 0;
+        }
+        String result = text.toString();
+        state.setText(result);
+        return result;
+    }
+
+    // ジャーナルのレコードを順に適用する
+    // ベースファイルに対応しないジャーナルであればfalseを返す
+    private static boolean replay(final File journalFile, State state, final StringBuilder text)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            Header header = readHeader(in);
+            if (header == null || !header.matches(state.baseLength, state.baseCrc)) {
+                return false;
+            }
+            state.journalLength = readRecords(in, header, journalFile.length(), new RecordHandler() {
+                @Override
+                public void apply(int start, int deleteCount, String inserted) throws IOException {
+                    if (start < 0 || deleteCount < 0 || start + deleteCount > text.length()) {
+                        throw new IOException("corrupted journal: " + journalFile);
+                    }
+                    text.replace(start, start + deleteCount, inserted);
+                }
+            });
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    // ジャーナルを適用したメモの、先頭からmaxLength文字までを読み込む
+    // 全体をメモリに読み込まないので、必要なメモリはmaxLengthとジャーナルの大きさ程度で済む
+    // サロゲートペアの途中では切らないので、maxLengthより1文字短くなる場合がある
+    public static String readPrefix(File baseFile, int encoding, int maxLength) throws IOException {
+        synchronized (getLock(baseFile)) {
+            State state = sStates.get(baseFile.getAbsolutePath());
+            if (state != null && state.encoding == encoding && state.matches(baseFile)) {
+                String text = state.getText();
+                if (text != null) {
+                    return MemoFiles.prefix(text, maxLength);
+                }
+            }
+
+            // ジャーナルは、ベースファイルの範囲と挿入した文字列の並びとして適用しておき、
+            // ベースファイルからは必要な範囲の文字だけを取り出す
+            Header header = null;
+            PieceList pieces = null;
+            File journalFile = getJournalFile(baseFile);
+            if (journalFile.exists()) {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(journalFile)));
+                try {
+                    header = readHeader(in);
+                    if (header != null) {
+                        pieces = new PieceList(journalFile);
+                        readRecords(in, header, journalFile.length(), pieces);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+
+            List<Piece> ranges = pieces != null ? pieces.head(maxLength) : new ArrayList<Piece>();
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(baseFile)), new CRC32());
+            Reader reader = new InputStreamReader(MemoFileCodec.decode(checked, encoding), BASE_CHARSET);
+            StringBuilder basePrefix = new StringBuilder();
+            try {
+                // ジャーナルを適用しない場合に使う先頭と、ジャーナルが参照する範囲を読む
+                char[] buffer = new char[8192];
+                long position = 0;
+                int rangeIndex = 0;
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    if (basePrefix.length() < maxLength) {
+                        basePrefix.append(buffer, 0, Math.min(read, maxLength - basePrefix.length()));
+                    }
+                    long bufferEnd = position + read;
+                    while (rangeIndex < ranges.size()) {
+                        Piece range = ranges.get(rangeIndex);
+                        long from = Math.max(range.baseStart + range.text.length(), position);
+                        long to = Math.min(range.baseStart + range.length, bufferEnd);
+                        if (from < to) {
+                            range.text.append(buffer, (int) (from - position), (int) (to - from));
+                        }
+                        if (range.baseStart + range.length > bufferEnd) {
+                            break;
+                        }
+                        rangeIndex++;
+                    }
+                    position = bufferEnd;
+                    if (header == null && basePrefix.length() >= maxLength) {
+                        // CRC32を確かめる必要が無ければ、残りは読まない
+                        break;
+                    }
+                }
+                if (header != null) {
+                    // 展開が終わった後に残っているバイトも、CRC32に含める
+                    byte[] rest = new byte[8192];
+                    while (checked.read(rest) != -1) {
+                        // 読み飛ばす
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            if (header == null || !header.matches(baseFile.length(), checked.getChecksum().getValue())) {
+                // 適用するジャーナルが無い
+                return MemoFiles.prefix(basePrefix, maxLength);
+            }
+            return MemoFiles.prefix(pieces.build(maxLength), maxLength);
+        }
+    }
+
+    // ヘッダを読み込む
+    // ジャーナルではないか、途中で切れている場合はnullを返す
+    private static Header readHeader(DataInputStream in) throws IOException {
+        try {
+            int magic = in.readInt();
+            if (magic != MAGIC) {
+                return null;
+            }
+            return new Header(in.readLong(), in.readLong());
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // ヘッダに続くレコードを、順にhandlerに渡す
+    // 完全に書き込まれているレコードまでのジャーナルのバイト数を返す
+    private static long readRecords(DataInputStream in, Header header, long fileLength, RecordHandler handler)
+            throws IOException {
+        long journalLength = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (true) {
+            int start;
+            int deleteCount;
+            byte[] bytes;
+            try {
+                start = in.readInt();
+                deleteCount = in.readInt();
+                int byteCount = in.readInt();
+                if (byteCount < 0 || byteCount > fileLength - journalLength) {
+                    // 長さが壊れている
+                    break;
+                }
+                bytes = new byte[byteCount];
+                in.readFully(bytes);
+                crc.reset();
+                crc.update(encodeRecordHeader(start, deleteCount, byteCount));
+                crc.update(bytes);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+            } catch (EOFException e) {
+                // 書き込み途中で終わっているレコードは無視する
+                break;
+            }
+
+            handler.apply(start, deleteCount, new String(bytes, JOURNAL_CHARSET));
+            journalLength += RECORD_HEADER_SIZE + bytes.length + RECORD_CRC_SIZE;
+        }
+        return journalLength;
+    }
+
+    private static byte[] encodeHeader(long baseLength, long baseCrc) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(baseLength);
+        out.writeLong(baseCrc);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeRecordHeader(int start, int deleteCount, int byteCount) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_HEADER_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(start);
+        out.writeInt(deleteCount);
+        out.writeInt(byteCount);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    // 1件のレコードを、CRC32まで含めて1つのバイト列にする
+    private static byte[] encodeRecord(int start, int deleteCount, byte[] inserted) throws IOException {
+        byte[] header = encodeRecordHeader(start, deleteCount, inserted.length);
+        CRC32 crc = new CRC32();
+        crc.update(header);
+        crc.update(inserted);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                RECORD_HEADER_SIZE + inserted.length + RECORD_CRC_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(header);
+        out.write(inserted);
+        out.writeInt((int) crc.getValue());
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    // ジャーナルのヘッダ
+    private static class Header {
+        final long baseLength;
+        final long baseCrc;
+
+        Header(long baseLength, long baseCrc) {
+            this.baseLength = baseLength;
+            this.baseCrc = baseCrc;
+        }
+
+        // 指定したベースファイルに対するジャーナルかどうか
+        boolean matches(long baseLength, long baseCrc) {
+            return this.baseLength == baseLength && this.baseCrc == baseCrc;
+        }
+    }
+
+    // ジャーナルのレコードを受け取る
+    private interface RecordHandler {
+        void apply(int start, int deleteCount, String inserted) throws IOException;
+    }
+
+    // 挿入した文字列か、ベースファイルの範囲(文字単位)
+    private static class Piece {
+        final String inserted;
+        final long baseStart;
+        final long length;
+        // ベースファイルから読み込んだ範囲の文字
+        final StringBuilder text = new StringBuilder();
+
+        Piece(String inserted) {
+            this.inserted = inserted;
+            this.baseStart = -1;
+            this.length = inserted.length();
+        }
+
+        Piece(long baseStart, long length) {
+            this.inserted = null;
+            this.baseStart = baseStart;
+            this.length = length;
+        }
+    }
+
+    // ジャーナルを、ベースファイルを読まずに適用した結果
+    // ベースファイルの文字数は分からないので、ベースファイル全体は長さの上限の範囲として扱う
+    private static class PieceList implements RecordHandler {
+        private final File mJournalFile;
+        private final List<Piece> mPieces = new ArrayList<>();
+
+        PieceList(File journalFile) {
+            mJournalFile = journalFile;
+            mPieces.add(new Piece(0, Integer.MAX_VALUE));
+        }
+
+        @Override
+        public void apply(int start, int deleteCount, String inserted) throws IOException {
+            if (start < 0 || deleteCount < 0) {
+                throw new IOException("corrupted journal: " + mJournalFile);
+            }
+            int from = split(start);
+            int to = split((long) start + deleteCount);
+            mPieces.subList(from, to).clear();
+            if (!inserted.isEmpty()) {
+                mPieces.add(from, new Piece(inserted));
+            }
+        }
+
+        // positionの位置でピースを分け、positionから始まるピースの番号を返す
+        private int split(long position) throws IOException {
+            long offset = 0;
+            for (int i = 0; i < mPieces.size(); i++) {
+                if (offset == position) {
+                    return i;
+                }
+                Piece piece = mPieces.get(i);
+                if (position < offset + piece.length) {
+                    long head = position - offset;
+                    if (piece.inserted != null) {
+                        mPieces.set(i, new Piece(piece.inserted.substring(0, (int) head)));
+                        mPieces.add(i + 1, new Piece(piece.inserted.substring((int) head)));
+                    } else {
+                        mPieces.set(i, new Piece(piece.baseStart, head));
+                        mPieces.add(i + 1, new Piece(piece.baseStart + head, piece.length - head));
+                    }
+                    return i + 1;
+                }
+                offset += piece.length;
+            }
+            if (offset == position) {
+                return mPieces.size();
+            }
+            throw new IOException("corrupted journal: " + mJournalFile);
+        }
+
+        // 先頭からmaxLength文字までに含まれる、ベースファイルの範囲を返す
+        // 範囲はベースファイルの先頭から順に並んでいる
+        List<Piece> head(int maxLength) {
+            List<Piece> ranges = new ArrayList<>();
+            long offset = 0;
+            for (int i = 0; i < mPieces.size() && offset < maxLength; i++) {
+                Piece piece = mPieces.get(i);
+                if (piece.inserted == null) {
+                    if (offset + piece.length > maxLength) {
+                        piece = new Piece(piece.baseStart, maxLength - offset);
+                        mPieces.set(i, piece);
+                    }
+                    ranges.add(piece);
+                }
+                offset += piece.length;
+            }
+            return ranges;
+        }
+
+        // head()の範囲をベースファイルから読み込んだ後で、先頭からmaxLength文字までを組み立てる
+        String build(int maxLength) throws IOException {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < mPieces.size() && builder.length() < maxLength; i++) {
+                Piece piece = mPieces.get(i);
+                if (piece.inserted != null) {
+                    builder.append(piece.inserted);
+                } else {
+                    builder.append(piece.text);
+                    if (piece.text.length() < piece.length) {
+                        // ベースファイルはここで終わっている
+                        if (i != mPieces.size() - 1) {
+                            throw new IOException("corrupted journal: " + mJournalFile);
+                        }
+                        break;
+                    }
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    // ファイルごとの、最後に読み書きした状態
+    private static class State {
+        final int encoding;
+        // ベースファイルのバイト数と更新日時とCRC32
+        long baseLength;
+        long baseModified;
+        long baseCrc;
+        // 完全に書き込まれているレコードまでのジャーナルのバイト数 (ジャーナルが無い場合は0)
+        long journalLength;
+        // ジャーナルを適用した内容
+        // 大きなメモを持ち続けないよう、メモリが足りなくなれば捨てて読み直す
+        private SoftReference<String> mText;
+
+        State(int encoding) {
+            this.encoding = encoding;
+        }
+
+        String getText() {
+            return mText == null ? null : mText.get();
+        }
+
+        void setText(String text) {
+            mText = new SoftReference<>(text);
+        }
+
+        // 最後に読み書きした後で、他から書き換えられていないかどうか
+        boolean matches(File baseFile) {
+            File journalFile = getJournalFile(baseFile);
+            return baseFile.length() == baseLength && baseFile.lastModified() == baseModified
+                    && (journalLength == 0 ? !journalFile.exists() : journalFile.length() == journalLength);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created by yukiishikawa on 2017/11/26.
+ * 処理時間(ナノ秒)の分布を記録するヒストグラム
+ *
+ * 記録はロックを使わず、カウンタを数回加算するだけにして、計測される処理の邪魔をしない。
+ * 値は2の累乗ごとの区間をさらに8つに分けたバケツに数えるので、
+ * パーセンタイルの誤差は12.5%以内になる。
+ */
+
+public class MemoLatencyHistogram {
+    // 2の累乗ごとの区間を分ける数 (2^SUB_BUCKET_BITS)
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // long(正の値)をすべて数えられるバケツの数
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * ある時点のヒストグラムの内容
+     */
+    public static class Snapshot {
+        private final long[] mBuckets;
+        // 記録した回数
+        public final long count;
+        // 合計 (ナノ秒)
+        public final long sum;
+        // 最大値 (ナノ秒)
+        public final long max;
+
+        Snapshot(long[] buckets, long count, long sum, long max) {
+            mBuckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        // 平均 (ナノ秒)
+        public long mean() {
+            return count > 0 ? sum / count : 0;
+        }
+
+        // パーセンタイル (ナノ秒)
+        // 該当するバケツの上限を返すので、実際の値より少し大きく出る
+        public long percentile(double percent) {
+            long total = 0;
+            for (long n : mBuckets) {
+                total += n;
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(total * percent / 100.0);
+            rank = Math.max(1, Math.min(rank, total));
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    // 1回分の処理時間を記録する
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mBuckets.incrementAndGet(bucketIndex(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+
+        long max = mMax.get();
+        while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+            max = mMax.get();
+        }
+    }
+
+    // 現在の内容を取得する
+    // 記録と同時に呼ばれた場合、回数とバケツの合計が少しずれることがある
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return new Snapshot(buckets, mCount.get(), mSum.get(), mMax.get());
+    }
+
+    // 記録をすべて消す
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    // 値を数えるバケツ
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + sub;
+    }
+
+    // バケツに数える値の上限
+    static long upperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lower = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Created by yukiishikawa on 2017/10/15.
+ * メモファイルの各行の先頭のバイト位置
+ *
+ * 大きなメモを一部分だけ読み込むために使う。
+ * 改行(0x0A)はマルチバイト文字の途中に現れないので、バイト列のまま走査できる。
+ */
+
+public class MemoLineIndex {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // 行の先頭位置 (0行目は常に0)
+    private long[] mLineStarts;
+    private int mLineCount;
+    // ファイルのバイト数
+    private long mLength;
+
+    private MemoLineIndex(long[] lineStarts, int lineCount, long length) {
+        mLineStarts = lineStarts;
+        mLineCount = lineCount;
+        mLength = length;
+    }
+
+    // ファイルを走査して索引を作る
+    public static MemoLineIndex build(File file) throws IOException {
+        long[] lineStarts = new long[INITIAL_CAPACITY];
+        int lineCount = 1;
+        long position = 0;
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        if (lineCount == lineStarts.length) {
+                            lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                        }
+                        lineStarts[lineCount++] = position + i + 1;
+                    }
+                }
+                position += read;
+            }
+        } finally {
+            in.close();
+        }
+
+        return new MemoLineIndex(lineStarts, lineCount, position);
+    }
+
+    // 行数 (最後の改行の後も1行と数える)
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    // ファイルのバイト数
+    public long getLength() {
+        return mLength;
+    }
+
+    // 行の先頭位置
+    public long getLineStart(int line) {
+        return mLineStarts[line];
+    }
+
+    // 行の終わりの位置 (次の行の先頭、最後の行ではファイルの末尾)
+    public long getLineEnd(int line) {
+        return line + 1 < mLineCount ? mLineStarts[line + 1] : mLength;
+    }
+
+    // 位置を含む行を求める
+    public int getLineForOffset(long offset) {
+        int index = Arrays.binarySearch(mLineStarts, 0, mLineCount, offset);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    // ファイルのstart〜endのバイトを、replacementに置き換えた後の索引にする
+    public void applyPatch(long start, long end, byte[] replacement) {
+        long delta = replacement.length - (end - start);
+
+        // 置き換える範囲の中にある改行の次の行(start < 先頭 <= end)を取り除く
+        int first = getLineForOffset(start) + 1;
+        int last = first;
+        while (last < mLineCount && mLineStarts[last] <= end) {
+            last++;
+        }
+
+        // 置き換え後の改行の次の行を求める
+        int added = 0;
+        for (byte b : replacement) {
+            if (b == '\n') {
+                added++;
+            }
+        }
+
+        int newLineCount = mLineCount - (last - first) + added;
+        long[] lineStarts = mLineStarts;
+        if (newLineCount > lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, Math.max(newLineCount, lineStarts.length * 2));
+        }
+
+        // 後ろの行をずらしてから、位置を置き換え後に合わせる
+        System.arraycopy(mLineStarts, last, lineStarts, first + added, mLineCount - last);
+        for (int i = first + added; i < newLineCount; i++) {
+            lineStarts[i] += delta;
+        }
+
+        int line = first;
+        for (int i = 0; i < replacement.length; i++) {
+            if (replacement[i] == '\n') {
+                lineStarts[line++] = start + i + 1;
+            }
+        }
+
+        mLineStarts = lineStarts;
+        mLineCount = newLineCount;
+        mLength += delta;
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+/**
+ * Created by yukiishikawa on 2017/10/08.
+ * 一覧表示用のメモの情報
+ *
+ * メモを保存するときに本文を1回だけ走査して求め、memoテーブルに保存しておく。
+ * 一覧や概要の表示ではファイルを開かずに、この値だけを使う。
+ */
+
+public class MemoMetadata {
+    // 抜粋の最大文字数
+    public static final int PREVIEW_LENGTH = 100;
+
+    // FNV-1a(64bit)の初期値と素数
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // タイトル (先頭のMemoFiles.TITLE_LENGTH文字)
+    public final String title;
+    // 抜粋 (改行は空白に置き換える)
+    public final String preview;
+    // 文字数 (サロゲートペアは1文字と数える)
+    public final int charCount;
+    // 行数
+    public final int lineCount;
+    // 単語数 (空白で区切られた語の数)
+    public final int wordCount;
+    // 内容のハッシュ値 (FNV-1a 64bit)
+    public final long contentHash;
+
+    private MemoMetadata(String title, String preview, int charCount, int lineCount, int wordCount, long contentHash) {
+        this.title = title;
+        this.preview = preview;
+        this.charCount = charCount;
+        this.lineCount = lineCount;
+        this.wordCount = wordCount;
+        this.contentHash = contentHash;
+    }
+
+    // 本文から情報を求める
+    public static MemoMetadata of(String memo) {
+        return new Builder().append(memo, 0, memo.length()).build();
+    }
+
+    /**
+     * 本文を少しずつ渡して情報を求める
+     * ファイル全体を読み込まずに、ストリームから求める場合に使う
+     */
+    public static class Builder {
+        private final StringBuilder mTitle = new StringBuilder(MemoFiles.TITLE_LENGTH);
+        private final StringBuilder mPreview = new StringBuilder(PREVIEW_LENGTH);
+        private int mCharCount;
+        private int mLineCount;
+        private int mWordCount;
+        private boolean mInWord;
+        private long mHash = FNV_OFFSET_BASIS;
+
+        public Builder append(CharSequence text, int start, int end) {
+            if (start < end && mLineCount == 0) {
+                mLineCount = 1;
+            }
+
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+
+                // ハッシュは1文字(16bit)を2バイトとして計算する
+                mHash = (mHash ^ (c & 0xff)) * FNV_PRIME;
+                mHash = (mHash ^ (c >>> 8)) * FNV_PRIME;
+
+                if (!Character.isLowSurrogate(c)) {
+                    mCharCount++;
+                }
+
+                if (c == '\n') {
+                    mLineCount++;
+                }
+
+                boolean isSpace = Character.isWhitespace(c) || Character.isSpaceChar(c);
+                if (!isSpace && !mInWord) {
+                    mWordCount++;
+                }
+                mInWord = !isSpace;
+
+                if (mTitle.length() < MemoFiles.TITLE_LENGTH) {
+                    mTitle.append(c);
+                }
+                if (mPreview.length() < PREVIEW_LENGTH) {
+                    mPreview.append(c == '\n' || c == '\r' ? ' ' : c);
+                }
+            }
+            return this;
+        }
+
+        public MemoMetadata build() {
+            // 抜粋の最後がサロゲートペアの途中で切れないようにする
+            String preview = mPreview.toString();
+            int previewLength = preview.length();
+            if (previewLength > 0 && Character.isHighSurrogate(preview.charAt(previewLength - 1))) {
+                preview = preview.substring(0, previewLength - 1);
+            }
+
+            return new MemoMetadata(mTitle.toString(), preview, mCharCount, mLineCount, mWordCount, mHash);
+        }
+    }
+}
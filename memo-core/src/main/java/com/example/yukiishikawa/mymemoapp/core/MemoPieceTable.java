@@ -0,0 +1,372 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+import java.util.Random;
+
+/**
+ * Created by yukiishikawa on 2017/10/22.
+ * ピーステーブルで保持する文字列
+ *
+ * 元の文字列と追記専用のバッファを書き換えずに持ち、本文はその断片(ピース)の並びで表す。
+ * ピースは文字数を重みにしたtreapに並べるので、離れた位置の挿入と削除もO(log n)で済む。
+ *
+ * treapのノードは変更せずに作り直すので、snapshot()はルートを覚えるだけで作れる。
+ * スナップショットは変更されないので、別スレッドで文字列にしてもよい。
+ * MemoEditableの本文として使う。
+ */
+
+public class MemoPieceTable implements CharSequence {
+    private static final int INITIAL_ADD_CAPACITY = 256;
+
+    // 読み込んだ時点の本文 (変更しない)
+    private final char[] mOriginal;
+    // 入力した文字を追記するバッファ (追記した部分は変更しない)
+    private char[] mAdded;
+    private int mAddedLength;
+
+    // ピースのtreapのルート
+    private Piece mRoot;
+    private final Random mRandom = new Random();
+
+    // 連続した入力を1つのピースにまとめるため、最後に挿入した位置の直後を覚えておく
+    private int mLastInsertEnd = -1;
+
+    // charAt()で最後に参照したピース
+    // 前から順に読む場合に、毎回treapをたどらずに済むようにする
+    private int mCacheStart;
+    private int mCacheLength;
+    private char[] mCacheBuffer;
+    private int mCacheOffset;
+
+    // 本文の断片 (treapのノード)
+    private static final class Piece {
+        // 追記用バッファの断片かどうか
+        final boolean added;
+        final int start;
+        final int length;
+        final int priority;
+        final Piece left;
+        final Piece right;
+        // 部分木の文字数
+        final int size;
+
+        Piece(boolean added, int start, int length, int priority, Piece left, Piece right) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = size(left) + length + size(right);
+        }
+
+        Piece withChildren(Piece left, Piece right) {
+            return new Piece(added, start, length, priority, left, right);
+        }
+
+        static int size(Piece piece) {
+            return piece != null ? piece.size : 0;
+        }
+    }
+
+    /**
+     * ある時点の本文
+     * 元のMemoPieceTableを変更しても、内容は変わらない
+     */
+    public static final class Snapshot implements CharSequence {
+        private final Piece mRoot;
+        private final char[] mOriginal;
+        private final char[] mAdded;
+
+        private Snapshot(Piece root, char[] original, char[] added) {
+            mRoot = root;
+            mOriginal = original;
+            mAdded = added;
+        }
+
+        @Override
+        public int length() {
+            return Piece.size(mRoot);
+        }
+
+        @Override
+        public char charAt(int index) {
+            checkIndex(index, length());
+            return MemoPieceTable.charAt(mRoot, index, mOriginal, mAdded);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            checkRange("subSequence", start, end, length());
+            char[] chars = new char[end - start];
+            MemoPieceTable.getChars(mRoot, 0, start, end, chars, 0, mOriginal, mAdded);
+            return new String(chars);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+
+    public MemoPieceTable(CharSequence source) {
+        this(source, 0, source.length());
+    }
+
+    public MemoPieceTable(CharSequence source, int start, int end) {
+        checkRange("MemoPieceTable", start, end, source.length());
+        mOriginal = new char[end - start];
+        getChars(source, start, end, mOriginal, 0);
+        mAdded = new char[INITIAL_ADD_CAPACITY];
+        mRoot = mOriginal.length > 0 ? new Piece(false, 0, mOriginal.length, mRandom.nextInt(), null, null) : null;
+    }
+
+    // 現在の本文のスナップショットを取得する
+    // ピースの並びを共有するので、本文の大きさによらずすぐに作れる
+    public Snapshot snapshot() {
+        return new Snapshot(mRoot, mOriginal, mAdded);
+    }
+
+    @Override
+    public int length() {
+        return Piece.size(mRoot);
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= mCacheStart && index < mCacheStart + mCacheLength) {
+            return mCacheBuffer[mCacheOffset + index - mCacheStart];
+        }
+
+        checkIndex(index, length());
+
+        // ピースを探して、次からはそのピースの中を直接参照する
+        Piece piece = mRoot;
+        int base = 0;
+        while (true) {
+            int leftSize = Piece.size(piece.left);
+            if (index < base + leftSize) {
+                piece = piece.left;
+            } else if (index < base + leftSize + piece.length) {
+                mCacheStart = base + leftSize;
+                mCacheLength = piece.length;
+                mCacheBuffer = piece.added ? mAdded : mOriginal;
+                mCacheOffset = piece.start;
+                return mCacheBuffer[mCacheOffset + index - mCacheStart];
+            } else {
+                base += leftSize + piece.length;
+                piece = piece.right;
+            }
+        }
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        checkRange("subSequence", start, end, length());
+        char[] chars = new char[end - start];
+        getChars(mRoot, 0, start, end, chars, 0, mOriginal, mAdded);
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+
+    // start〜endの文字をdestのdestoffの位置にコピーする
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        checkRange("getChars", start, end, length());
+        getChars(mRoot, 0, start, end, dest, destoff, mOriginal, mAdded);
+    }
+
+    // st〜enをsourceのstart〜endで置き換える
+    public void replace(int st, int en, CharSequence source, int start, int end) {
+        checkRange("replace", st, en, length());
+        checkRange("replace source", start, end, source.length());
+        if (en > st) {
+            delete(st, en);
+        }
+        if (end > start) {
+            insert(st, source, start, end);
+        }
+    }
+
+    // st〜enの文字を削除する
+    public void delete(int st, int en) {
+        checkRange("delete", st, en, length());
+        Piece[] head = split(mRoot, st);
+        Piece[] tail = split(head[1], en - st);
+        mRoot = merge(head[0], tail[1]);
+        mLastInsertEnd = -1;
+        invalidateCache();
+    }
+
+    // whereにsourceのstart〜endを挿入する
+    public void insert(int where, CharSequence source, int start, int end) {
+        checkRange("insert", where, where, length());
+        checkRange("insert source", start, end, source.length());
+        int length = end - start;
+        if (length == 0) {
+            return;
+        }
+        int addedStart = mAddedLength;
+        ensureAddedCapacity(mAddedLength + length);
+        getChars(source, start, end, mAdded, mAddedLength);
+        mAddedLength += length;
+
+        Piece[] parts = split(mRoot, where);
+        if (where == mLastInsertEnd && endsWithAddedTail(parts[0], addedStart)) {
+            // 直前の入力の続きは、直前のピースを伸ばす
+            mRoot = merge(extendLast(parts[0], length), parts[1]);
+        } else {
+            Piece piece = new Piece(true, addedStart, length, mRandom.nextInt(), null, null);
+            mRoot = merge(merge(parts[0], piece), parts[1]);
+        }
+        mLastInsertEnd = where + length;
+        invalidateCache();
+    }
+
+    // sourceのstart〜endをdestにコピーする
+    // 一括でコピーできる型はそのメソッドを使い、それ以外は1文字ずつ読む
+    static void getChars(CharSequence source, int start, int end, char[] dest, int destoff) {
+        if (source instanceof String) {
+            ((String) source).getChars(start, end, dest, destoff);
+        } else if (source instanceof StringBuilder) {
+            ((StringBuilder) source).getChars(start, end, dest, destoff);
+        } else if (source instanceof StringBuffer) {
+            ((StringBuffer) source).getChars(start, end, dest, destoff);
+        } else if (source instanceof MemoPieceTable) {
+            ((MemoPieceTable) source).getChars(start, end, dest, destoff);
+        } else if (source instanceof Snapshot) {
+            Snapshot snapshot = (Snapshot) source;
+            getChars(snapshot.mRoot, 0, start, end, dest, destoff, snapshot.mOriginal, snapshot.mAdded);
+        } else {
+            for (int i = start; i < end; i++) {
+                dest[destoff++] = source.charAt(i);
+            }
+        }
+    }
+
+    private void ensureAddedCapacity(int capacity) {
+        if (capacity > mAdded.length) {
+            // 追記した部分は書き換えないので、スナップショットは古い配列をそのまま参照できる
+            char[] added = new char[Math.max(capacity, mAdded.length * 2)];
+            System.arraycopy(mAdded, 0, added, 0, mAddedLength);
+            mAdded = added;
+        }
+    }
+
+    // 最後のピースが、追記用バッファのaddedEndまでの断片かどうか
+    private static boolean endsWithAddedTail(Piece root, int addedEnd) {
+        if (root == null) {
+            return false;
+        }
+        Piece piece = root;
+        while (piece.right != null) {
+            piece = piece.right;
+        }
+        return piece.added && piece.start + piece.length == addedEnd;
+    }
+
+    // 最後のピースをlength文字伸ばした木を作る
+    private static Piece extendLast(Piece piece, int length) {
+        if (piece.right == null) {
+            return new Piece(piece.added, piece.start, piece.length + length, piece.priority, piece.left, null);
+        }
+        return piece.withChildren(piece.left, extendLast(piece.right, length));
+    }
+
+    // 先頭からposition文字の位置で、2つの木に分ける
+    private static Piece[] split(Piece piece, int position) {
+        if (piece == null) {
+            return new Piece[]{null, null};
+        }
+
+        int leftSize = Piece.size(piece.left);
+        if (position <= leftSize) {
+            Piece[] parts = split(piece.left, position);
+            return new Piece[]{parts[0], piece.withChildren(parts[1], piece.right)};
+        }
+        if (position >= leftSize + piece.length) {
+            Piece[] parts = split(piece.right, position - leftSize - piece.length);
+            return new Piece[]{piece.withChildren(piece.left, parts[0]), parts[1]};
+        }
+
+        // ピースの途中で分ける
+        int offset = position - leftSize;
+        Piece left = new Piece(piece.added, piece.start, offset, piece.priority, piece.left, null);
+        Piece right = new Piece(piece.added, piece.start + offset, piece.length - offset, piece.priority, null, piece.right);
+        return new Piece[]{left, right};
+    }
+
+    // 2つの木をつなげる
+    private static Piece merge(Piece left, Piece right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            return left.withChildren(left.left, merge(left.right, right));
+        }
+        return right.withChildren(merge(left, right.left), right.right);
+    }
+
+    private static char charAt(Piece piece, int index, char[] original, char[] added) {
+        while (true) {
+            int leftSize = Piece.size(piece.left);
+            if (index < leftSize) {
+                piece = piece.left;
+            } else if (index < leftSize + piece.length) {
+                return (piece.added ? added : original)[piece.start + index - leftSize];
+            } else {
+                index -= leftSize + piece.length;
+                piece = piece.right;
+            }
+        }
+    }
+
+    // baseから始まる部分木のうち、start〜endの文字をdestにコピーする
+    private static void getChars(Piece piece, int base, int start, int end, char[] dest, int destoff,
+                                 char[] original, char[] added) {
+        if (piece == null || start >= end) {
+            return;
+        }
+
+        int leftSize = Piece.size(piece.left);
+        int pieceStart = base + leftSize;
+        int pieceEnd = pieceStart + piece.length;
+
+        if (start < pieceStart) {
+            getChars(piece.left, base, start, Math.min(end, pieceStart), dest, destoff, original, added);
+        }
+        if (start < pieceEnd && end > pieceStart) {
+            int from = Math.max(start, pieceStart);
+            int to = Math.min(end, pieceEnd);
+            System.arraycopy(piece.added ? added : original, piece.start + from - pieceStart,
+                    dest, destoff + from - start, to - from);
+        }
+        if (end > pieceEnd) {
+            int from = Math.max(start, pieceEnd);
+            getChars(piece.right, pieceEnd, from, end, dest, destoff + from - start, original, added);
+        }
+    }
+
+    private void invalidateCache() {
+        mCacheLength = 0;
+        mCacheBuffer = null;
+    }
+
+    private static void checkIndex(int index, int length) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+    }
+
+    private static void checkRange(String operation, int start, int end, int length) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end
+                    + ") has invalid range, length " + length);
+        }
+    }
+}
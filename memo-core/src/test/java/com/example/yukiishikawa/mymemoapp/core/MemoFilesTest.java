@@ -0,0 +1,175 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Created by yukiishikawa on 2017/12/17.
+ * 大きなメモの一部の置き換え(replaceRange)と、先頭だけの読み込みのテスト
+ *
+ * 置き換えと読み込みは、ファイル全体をメモリに読み込まずに行えることを確かめる。
+ */
+
+public class MemoFilesTest {
+    // 大きなメモの行数 (1行40バイト程度で、8MB程度になる)
+    private static final int LINES = 200 * 1000;
+    // 置き換えの間に確保してよいメモリ
+    // ファイル全体を読み込めば、この何十倍にもなる
+    private static final long MAX_ALLOCATED_BYTES = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MemoGroupCommit mCommit;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        // テストではディレクトリの同期は行わない
+        mCommit = new MemoGroupCommit(new MemoGroupCommit.DirectorySync() {
+            @Override
+            public void sync(File dir) {
+            }
+        });
+
+        mFile = mFolder.newFile("large.txt");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(mFile));
+        try {
+            for (int i = 0; i < LINES; i++) {
+                out.write(line(i).getBytes(UTF_8));
+            }
+        } finally {
+            out.close();
+        }
+        MemoJournal.invalidate(mFile);
+    }
+
+    @Test
+    public void replaceRangeInLargeFile() throws IOException {
+        long length = mFile.length();
+        assertTrue(length > 4 * 1024 * 1024);
+
+        // 真ん中の1行を置き換える
+        int target = LINES / 2;
+        long start = offsetOfLine(target);
+        long end = start + line(target).getBytes(UTF_8).length;
+        byte[] replacement = "置き換えた行\n".getBytes(UTF_8);
+
+        long allocated = allocatedBytes();
+        MemoFiles.replaceRange(mFile, start, end, replacement, mCommit);
+        long used = allocatedBytes() - allocated;
+
+        assertEquals(length - (end - start) + replacement.length, mFile.length());
+        assertFalse(new File(mFile.getPath() + ".patch").exists());
+        assertEquals(1, mCommit.getCommitCount());
+        assertRegion(0, line(0).getBytes(UTF_8));
+        assertRegion(start, replacement);
+        assertRegion(start + replacement.length, line(target + 1).getBytes(UTF_8));
+        assertRegion(mFile.length() - line(LINES - 1).getBytes(UTF_8).length, line(LINES - 1).getBytes(UTF_8));
+
+        if (used >= 0) {
+            assertTrue("allocated " + used + " bytes", used < MAX_ALLOCATED_BYTES);
+        }
+    }
+
+    @Test
+    public void readPrefixOfLargeFile() throws IOException {
+        long allocated = allocatedBytes();
+        String prefix = MemoFiles.readPrefix(mFile, MemoFileCodec.ENCODING_PLAIN, 100);
+        long used = allocatedBytes() - allocated;
+
+        StringBuilder head = new StringBuilder();
+        for (int i = 0; head.length() < 100; i++) {
+            head.append(line(i));
+        }
+        assertEquals(head.substring(0, 100), prefix);
+        if (used >= 0) {
+            assertTrue("allocated " + used + " bytes", used < MAX_ALLOCATED_BYTES);
+        }
+    }
+
+    @Test
+    public void readMetadataOfLargeFile() throws IOException {
+        long allocated = allocatedBytes();
+        MemoMetadata metadata = MemoFiles.readMetadata(mFile, MemoFileCodec.ENCODING_PLAIN);
+        long used = allocatedBytes() - allocated;
+
+        // 最後の改行の後ろの空の行も1行と数える
+        assertEquals(LINES + 1, metadata.lineCount);
+        assertEquals(MemoFiles.title(line(0)), metadata.title);
+        if (used >= 0) {
+            assertTrue("allocated " + used + " bytes", used < MAX_ALLOCATED_BYTES);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void replaceRangeRejectsInvalidRange() throws IOException {
+        MemoFiles.replaceRange(mFile, 10, mFile.length() + 1, new byte[0], mCommit);
+    }
+
+    private static String line(int i) {
+        return "line " + i + " 大きなメモの本文です\n";
+    }
+
+    private static long offsetOfLine(int target) {
+        long offset = 0;
+        for (int i = 0; i < target; i++) {
+            offset += line(i).getBytes(UTF_8).length;
+        }
+        return offset;
+    }
+
+    // ファイルのoffsetの位置がexpectedと一致することを確かめる
+    private void assertRegion(long offset, byte[] expected) throws IOException {
+        byte[] actual = new byte[expected.length];
+        InputStream in = new FileInputStream(mFile);
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                skipped += in.skip(offset - skipped);
+            }
+            int read = 0;
+            while (read < actual.length) {
+                int n = in.read(actual, read, actual.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        assertArrayEquals(expected, actual);
+    }
+
+    // このスレッドがこれまでに確保したメモリのバイト数
+    // 測れないJVMではテストを飛ばす
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled());
+        return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Created by yukiishikawa on 2017/12/17.
+ * MemoGroupCommitで、同時に来た保存が1つのバッチで同期され、
+ * すべての呼び出し元に成功か失敗が返ることのテスト
+ */
+
+public class MemoGroupCommitTest {
+    // 待つ保存の数
+    private static final int WAITERS = 7;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // 最初のバッチのディレクトリの同期を止めておく
+    private final CountDownLatch mFirstSyncStarted = new CountDownLatch(1);
+    private final CountDownLatch mReleaseFirstSync = new CountDownLatch(1);
+    private final AtomicInteger mDirectorySyncCount = new AtomicInteger();
+
+    private MemoGroupCommit mCommit;
+
+    @Before
+    public void setUp() {
+        mCommit = new MemoGroupCommit(new MemoGroupCommit.DirectorySync() {
+            @Override
+            public void sync(File dir) throws IOException {
+                if (mDirectorySyncCount.getAndIncrement() == 0) {
+                    mFirstSyncStarted.countDown();
+                    try {
+                        mReleaseFirstSync.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+        });
+    }
+
+    @Test
+    public void concurrentCommitsAreBatched() throws Exception {
+        // 1件目の同期中に来た保存は、次の1つのバッチにまとめられる
+        Saver leader = new Saver(mFolder.newFile("leader.txt"));
+        leader.start();
+        assertTrue(mFirstSyncStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        List<Saver> waiters = new ArrayList<>();
+        for (int i = 0; i < WAITERS; i++) {
+            Saver saver = new Saver(mFolder.newFile("memo" + i + ".txt"));
+            waiters.add(saver);
+            saver.start();
+        }
+        awaitWaiting(waiters);
+        mReleaseFirstSync.countDown();
+
+        leader.finish();
+        for (Saver saver : waiters) {
+            saver.finish();
+        }
+
+        assertNull(leader.error);
+        leader.assertSaved();
+        for (Saver saver : waiters) {
+            assertNull(saver.error);
+            saver.assertSaved();
+        }
+        assertEquals(2, mCommit.getBatchCount());
+        assertEquals(WAITERS + 1, mCommit.getCommitCount());
+    }
+
+    @Test
+    public void failureIsReportedOnlyToFailedCaller() throws Exception {
+        Saver leader = new Saver(mFolder.newFile("leader.txt"));
+        leader.start();
+        assertTrue(mFirstSyncStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // 空でないディレクトリには置き換えられない
+        File directory = mFolder.newFolder("directory");
+        new File(directory, "child").createNewFile();
+        Saver failing = new Saver(directory);
+        Saver succeeding = new Saver(mFolder.newFile("memo.txt"));
+        List<Saver> waiters = new ArrayList<>();
+        waiters.add(failing);
+        waiters.add(succeeding);
+        failing.start();
+        succeeding.start();
+        awaitWaiting(waiters);
+        mReleaseFirstSync.countDown();
+
+        leader.finish();
+        failing.finish();
+        succeeding.finish();
+
+        assertNull(leader.error);
+        assertNull(succeeding.error);
+        succeeding.assertSaved();
+        assertTrue(failing.error instanceof IOException);
+        // 失敗した一時ファイルは残らない
+        assertFalse(failing.tempFile.exists());
+        // 失敗した保存も、同じバッチで処理されている
+        assertEquals(2, mCommit.getBatchCount());
+        assertEquals(3, mCommit.getCommitCount());
+    }
+
+    @Test
+    public void appendIsSyncedAndClosed() throws Exception {
+        mReleaseFirstSync.countDown();
+        File file = mFolder.newFile("journal");
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{1, 2, 3});
+        mCommit.commit(out);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(file.toPath()));
+        // 追記はファイルを置き換えないので、ディレクトリの同期も行わない
+        assertEquals(0, mDirectorySyncCount.get());
+        try {
+            out.write(4);
+            fail("stream is not closed");
+        } catch (IOException e) {
+            // 閉じられている
+        }
+    }
+
+    // 全員がリーダーの同期が終わるのを待つまで待つ
+    private static void awaitWaiting(List<Saver> savers) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        for (Saver saver : savers) {
+            while (saver.getState() != Thread.State.WAITING) {
+                if (System.nanoTime() > deadline) {
+                    fail("saver did not wait for the leader: " + saver.getState());
+                }
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    // 1件の保存を別のスレッドで行う
+    private class Saver extends Thread {
+        final File target;
+        final byte[] content;
+        File tempFile;
+        volatile Exception error;
+
+        Saver(File target) {
+            this.target = target;
+            this.content = target.getName().getBytes();
+        }
+
+        @Override
+        public void run() {
+            try {
+                tempFile = File.createTempFile(target.getName(), MemoFiles.TEMP_SUFFIX, mFolder.getRoot());
+                FileOutputStream out = new FileOutputStream(tempFile);
+                out.write(content);
+                mCommit.commit(out, tempFile, target);
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+
+        void finish() throws InterruptedException {
+            join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            assertFalse("commit did not return", isAlive());
+        }
+
+        void assertSaved() throws IOException {
+            assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        }
+    }
+}
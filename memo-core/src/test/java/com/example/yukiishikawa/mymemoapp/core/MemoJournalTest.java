@@ -0,0 +1,240 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by yukiishikawa on 2017/12/17.
+ * MemoJournalの読み書き、途中で切れたジャーナルの復旧、圧縮のテスト
+ */
+
+public class MemoJournalTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MemoGroupCommit mCommit;
+    private File mFile;
+    private String mBase;
+
+    @Before
+    public void setUp() throws IOException {
+        // テストではディレクトリの同期は行わない
+        mCommit = new MemoGroupCommit(new MemoGroupCommit.DirectorySync() {
+            @Override
+            public void sync(File dir) {
+            }
+        });
+
+        StringBuilder base = new StringBuilder();
+        for (int i = 0; base.length() < MemoJournal.JOURNAL_MIN_FILE_SIZE; i++) {
+            base.append("line ").append(i).append(" メモの本文\n");
+        }
+        mBase = base.toString();
+        mFile = mFolder.newFile("memo.txt");
+        MemoFiles.write(mFile, mBase, MemoFileCodec.ENCODING_PLAIN);
+        MemoJournal.invalidate(mFile);
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        String first = edit(mBase, 100, 5, "挿入した文字列");
+        String second = edit(first, 0, 0, "先頭");
+        String third = edit(second, second.length() - 10, 10, "");
+
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, first, mCommit);
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, second, mCommit);
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, third, mCommit);
+
+        assertTrue(MemoJournal.hasJournal(mFile));
+        // ベースファイルは書き換えず、ジャーナルへの追記だけで保存する
+        assertEquals(mBase, readBase());
+        assertEquals(third, MemoJournal.read(mFile, MemoFileCodec.ENCODING_PLAIN));
+
+        // 覚えている内容を捨てても、ファイルから同じ内容を読み込める
+        MemoJournal.invalidate(mFile);
+        assertEquals(third, MemoJournal.read(mFile, MemoFileCodec.ENCODING_PLAIN));
+    }
+
+    @Test
+    public void everyWriteIsCommitted() throws IOException {
+        long commits = mCommit.getCommitCount();
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, edit(mBase, 10, 1, "a"), mCommit);
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, edit(mBase, 10, 1, "b"), mCommit);
+
+        // ジャーナルの作成と追記の両方が同期される
+        assertEquals(commits + 2, mCommit.getCommitCount());
+    }
+
+    @Test
+    public void unchangedMemoIsNotWritten() throws IOException {
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, mBase, mCommit);
+
+        assertFalse(MemoJournal.hasJournal(mFile));
+    }
+
+    @Test
+    public void tornTailIsDiscarded() throws IOException {
+        String first = edit(mBase, 100, 5, "first");
+        String second = edit(first, 200, 0, "second");
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, first, mCommit);
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, second, mCommit);
+
+        // 最後のレコードの書き込み中に落ちた状態にする
+        File journal = MemoJournal.getJournalFile(mFile);
+        truncate(journal, journal.length() - 3);
+        MemoJournal.invalidate(mFile);
+        assertEquals(first, MemoJournal.read(mFile, MemoFileCodec.ENCODING_PLAIN));
+
+        // 切れたレコードの後ろに追記しても読み込める
+        String third = edit(first, 0, 4, "third");
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, third, mCommit);
+        MemoJournal.invalidate(mFile);
+        assertEquals(third, MemoJournal.read(mFile, MemoFileCodec.ENCODING_PLAIN));
+    }
+
+    @Test
+    public void recordWithCrcMismatchIsDiscarded() throws IOException {
+        String first = edit(mBase, 100, 5, "first");
+        String second = edit(first, 200, 0, "second");
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, first, mCommit);
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, second, mCommit);
+
+        // 最後のレコードの挿入する文字列を壊す
+        File journal = MemoJournal.getJournalFile(mFile);
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try {
+            file.seek(journal.length() - 4 - 1);
+            file.write('X');
+        } finally {
+            file.close();
+        }
+        MemoJournal.invalidate(mFile);
+
+        assertEquals(first, MemoJournal.read(mFile, MemoFileCodec.ENCODING_PLAIN));
+    }
+
+    @Test
+    public void journalForOtherBaseIsDiscarded() throws IOException {
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, edit(mBase, 100, 5, "first"), mCommit);
+
+        // ジャーナルを残したまま、ベースファイルを書き換える
+        String replaced = edit(mBase, 0, 1, "Z");
+        MemoFiles.write(mFile, replaced, MemoFileCodec.ENCODING_PLAIN);
+        MemoJournal.invalidate(mFile);
+
+        assertEquals(replaced, MemoJournal.read(mFile, MemoFileCodec.ENCODING_PLAIN));
+        assertFalse(MemoJournal.hasJournal(mFile));
+    }
+
+    @Test
+    public void compact() throws IOException {
+        String first = edit(mBase, 100, 5, "first");
+        String second = edit(first, 200, 0, "second");
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, first, mCommit);
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, second, mCommit);
+
+        long commits = mCommit.getCommitCount();
+        MemoJournal.compact(mFile, MemoFileCodec.ENCODING_PLAIN, mCommit);
+
+        // 新しいベースファイルはグループコミットで同期される
+        assertEquals(commits + 1, mCommit.getCommitCount());
+        assertFalse(MemoJournal.hasJournal(mFile));
+        assertEquals(second, readBase());
+
+        // 圧縮した後も、新しいベースファイルに対して追記できる
+        String third = edit(second, 0, 0, "third");
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, third, mCommit);
+        MemoJournal.invalidate(mFile);
+        assertEquals(third, MemoJournal.read(mFile, MemoFileCodec.ENCODING_PLAIN));
+    }
+
+    @Test
+    public void compactDeflatedFile() throws IOException {
+        MemoFiles.write(mFile, mBase, MemoFileCodec.ENCODING_DEFLATE);
+        MemoJournal.invalidate(mFile);
+
+        String first = edit(mBase, 100, 5, "first");
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_DEFLATE, first, mCommit);
+        MemoJournal.compact(mFile, MemoFileCodec.ENCODING_DEFLATE, mCommit);
+
+        // 圧縮後に書き出しながら求めたCRC32で、次のジャーナルを作れている
+        String second = edit(first, 0, 0, "second");
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_DEFLATE, second, mCommit);
+        MemoJournal.invalidate(mFile);
+        assertEquals(second, MemoJournal.read(mFile, MemoFileCodec.ENCODING_DEFLATE));
+    }
+
+    @Test
+    public void readPrefixWithoutJournal() throws IOException {
+        assertEquals(mBase.substring(0, 100), MemoJournal.readPrefix(mFile, MemoFileCodec.ENCODING_PLAIN, 100));
+        assertEquals(mBase, MemoJournal.readPrefix(mFile, MemoFileCodec.ENCODING_PLAIN, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void readPrefixAppliesJournal() throws IOException {
+        // 先頭付近の編集、末尾への追記、先頭の範囲をまたぐ削除を混ぜる
+        Random random = new Random(1);
+        String text = mBase;
+        for (int i = 0; i < 200; i++) {
+            int start = i % 10 == 0 ? text.length() : random.nextInt(Math.min(text.length(), 3000));
+            int deleteCount = start == text.length() ? 0 : random.nextInt(Math.min(text.length() - start, 500));
+            text = edit(text, start, deleteCount, i % 3 == 0 ? "" : "編集" + i);
+            MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, text, mCommit);
+        }
+        assertTrue(MemoJournal.hasJournal(mFile));
+
+        for (int maxLength : new int[]{0, 1, 100, 2500, text.length(), Integer.MAX_VALUE}) {
+            // 覚えている内容を使わず、ファイルから読み込む
+            MemoJournal.invalidate(mFile);
+            assertEquals(MemoFiles.prefix(text, maxLength),
+                    MemoJournal.readPrefix(mFile, MemoFileCodec.ENCODING_PLAIN, maxLength));
+        }
+        assertEquals(MemoFiles.prefix(text, 2500), MemoJournal.readPrefix(mFile, MemoFileCodec.ENCODING_PLAIN, 2500));
+    }
+
+    @Test
+    public void readPrefixIgnoresJournalForOtherBase() throws IOException {
+        MemoJournal.write(mFile, MemoFileCodec.ENCODING_PLAIN, edit(mBase, 0, 5, "first"), mCommit);
+        String replaced = edit(mBase, 0, 1, "Z");
+        MemoFiles.write(mFile, replaced, MemoFileCodec.ENCODING_PLAIN);
+        MemoJournal.invalidate(mFile);
+
+        assertEquals(replaced.substring(0, 100), MemoJournal.readPrefix(mFile, MemoFileCodec.ENCODING_PLAIN, 100));
+    }
+
+    @Test
+    public void prefixDoesNotSplitSurrogatePair() {
+        assertEquals("a", MemoFiles.prefix("a\uD83D\uDE00b", 2));
+        assertEquals("a\uD83D\uDE00", MemoFiles.prefix("a\uD83D\uDE00b", 3));
+    }
+
+    private static String edit(String text, int start, int deleteCount, String inserted) {
+        return text.substring(0, start) + inserted + text.substring(start + deleteCount);
+    }
+
+    // ジャーナルを適用しないベースファイルの内容
+    private String readBase() throws IOException {
+        return new String(Files.readAllBytes(mFile.toPath()), MemoFiles.CHARSET);
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created by yukiishikawa on 2017/12/17.
+ * MemoLatencyHistogramのバケツの境界と、パーセンタイルのテスト
+ */
+
+public class MemoLatencyHistogramTest {
+    // 1つのバケツの幅は、下限の1/8以下になる
+    private static final double MAX_RELATIVE_ERROR = 0.125;
+
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for (long value = 0; value < 8; value++) {
+            int index = MemoLatencyHistogram.bucketIndex(value);
+            assertEquals(value, index);
+            assertEquals(value, MemoLatencyHistogram.upperBound(index));
+        }
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        // 2の累乗とその前後は、区間の境目になる
+        List<Long> values = new ArrayList<>();
+        for (int exponent = 3; exponent < 63; exponent++) {
+            long power = 1L << exponent;
+            values.add(power - 1);
+            values.add(power);
+            values.add(power + 1);
+            values.add(power + (power >>> 3) - 1);
+            values.add(power + (power >>> 3));
+        }
+        values.add(Long.MAX_VALUE);
+
+        for (long value : values) {
+            int index = MemoLatencyHistogram.bucketIndex(value);
+            long upper = MemoLatencyHistogram.upperBound(index);
+            long lower = MemoLatencyHistogram.upperBound(index - 1) + 1;
+            assertTrue(value + " > " + upper, value <= upper);
+            assertTrue(value + " < " + lower, value >= lower);
+            assertTrue("bucket of " + value + " is too wide",
+                    upper - lower <= lower * MAX_RELATIVE_ERROR);
+        }
+        assertEquals(Long.MAX_VALUE, MemoLatencyHistogram.upperBound(
+                MemoLatencyHistogram.bucketIndex(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        // 隣り合うバケツの間に、どこにも数えられない値は無い
+        int last = MemoLatencyHistogram.bucketIndex(Long.MAX_VALUE);
+        for (int index = 1; index <= last; index++) {
+            long lower = MemoLatencyHistogram.upperBound(index - 1) + 1;
+            assertEquals(index, MemoLatencyHistogram.bucketIndex(lower));
+            assertEquals(index, MemoLatencyHistogram.bucketIndex(MemoLatencyHistogram.upperBound(index)));
+        }
+    }
+
+    @Test
+    public void percentileOfUniformValues() {
+        // 1マイクロ秒から1ミリ秒まで、1マイクロ秒ずつ
+        MemoLatencyHistogram histogram = new MemoLatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+
+        MemoLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.count);
+        assertEquals(500500, snapshot.mean());
+        assertEquals(1000 * 1000, snapshot.max);
+        assertPercentile(500 * 1000, snapshot.percentile(50));
+        assertPercentile(900 * 1000, snapshot.percentile(90));
+        assertPercentile(990 * 1000, snapshot.percentile(99));
+        // 最大値を超えることは無い
+        assertEquals(snapshot.max, snapshot.percentile(100));
+        assertPercentile(1000, snapshot.percentile(0));
+    }
+
+    @Test
+    public void percentileOfRandomValues() {
+        Random random = new Random(1);
+        MemoLatencyHistogram histogram = new MemoLatencyHistogram();
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            // 対数で一様に、1ナノ秒から1秒程度まで
+            values[i] = (long) Math.pow(10, random.nextDouble() * 9);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        MemoLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        for (double percent : new double[]{1, 25, 50, 75, 95, 99, 99.9}) {
+            long expected = values[(int) Math.ceil(values.length * percent / 100.0) - 1];
+            assertPercentile(expected, snapshot.percentile(percent));
+        }
+    }
+
+    @Test
+    public void emptyAndReset() {
+        MemoLatencyHistogram histogram = new MemoLatencyHistogram();
+        assertEquals(0, histogram.snapshot().percentile(99));
+        assertEquals(0, histogram.snapshot().mean());
+
+        histogram.record(12345);
+        // 負の値は0として数える
+        histogram.record(-1);
+        MemoLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.count);
+        assertEquals(0, snapshot.percentile(50));
+        assertEquals(12345, snapshot.percentile(100));
+
+        histogram.reset();
+        snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.sum);
+        assertEquals(0, snapshot.max);
+        assertEquals(0, snapshot.percentile(50));
+    }
+
+    @Test
+    public void concurrentRecordsAreCounted() throws InterruptedException {
+        final MemoLatencyHistogram histogram = new MemoLatencyHistogram();
+        final int perThread = 10000;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final long value = (i + 1) * 1000;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        histogram.record(value);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        MemoLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(threads.length * perThread, snapshot.count);
+        assertEquals((1000 + 2000 + 3000 + 4000) * (long) perThread, snapshot.sum);
+        assertEquals(4000, snapshot.max);
+    }
+
+    // パーセンタイルはバケツの上限なので、実際の値以上で、誤差の範囲に収まる
+    private static void assertPercentile(long expected, long actual) {
+        assertTrue(actual + " < " + expected, actual >= expected);
+        assertTrue(actual + " is too far from " + expected, actual <= expected + expected * MAX_RELATIVE_ERROR);
+    }
+}
@@ -0,0 +1,232 @@
+package com.example.yukiishikawa.mymemoapp.core;
+
+import org.junit.Test;
+
+import java.nio.CharBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Created by yukiishikawa on 2017/12/17.
+ * MemoPieceTableの編集結果を、StringBuilderで同じ編集をした結果と比べるテスト
+ */
+
+public class MemoPieceTableTest {
+    private static final String TEXT = "今日の買い物\n牛乳\nパン\nmemo 📝 TODO\n";
+    private static final int OPERATIONS = 2000;
+
+    @Test
+    public void emptyTable() {
+        MemoPieceTable table = new MemoPieceTable("");
+        assertEquals(0, table.length());
+        assertEquals("", table.toString());
+
+        table.insert(0, "abc", 0, 3);
+        table.delete(0, 3);
+        assertEquals("", table.toString());
+        assertEquals("", table.snapshot().toString());
+    }
+
+    @Test
+    public void randomEditsMatchStringBuilder() {
+        Random random = new Random(1);
+        StringBuilder oracle = new StringBuilder(TEXT);
+        MemoPieceTable table = new MemoPieceTable(TEXT);
+
+        for (int i = 0; i < OPERATIONS; i++) {
+            int length = oracle.length();
+            int st = random.nextInt(length + 1);
+            int en = st + random.nextInt(Math.min(8, length - st) + 1);
+            String text = randomText(random);
+            switch (random.nextInt(3)) {
+                case 0:
+                    table.insert(st, text, 0, text.length());
+                    oracle.insert(st, text);
+                    break;
+                case 1:
+                    table.delete(st, en);
+                    oracle.delete(st, en);
+                    break;
+                default:
+                    // sourceの一部だけを使う
+                    int start = random.nextInt(text.length() + 1);
+                    table.replace(st, en, text, start, text.length());
+                    oracle.replace(st, en, text.substring(start));
+                    break;
+            }
+            assertContent(oracle, table);
+        }
+    }
+
+    @Test
+    public void consecutiveTypingAndBackspace() {
+        // 1文字ずつの入力と削除 (直前のピースを伸ばす場合と、伸ばさない場合)
+        StringBuilder oracle = new StringBuilder(TEXT);
+        MemoPieceTable table = new MemoPieceTable(TEXT);
+        int position = 7;
+        String typed = "卵とバター\n";
+        for (int i = 0; i < typed.length(); i++) {
+            table.insert(position, typed, i, i + 1);
+            oracle.insert(position, typed.charAt(i));
+            position++;
+            assertContent(oracle, table);
+        }
+        for (int i = 0; i < 3; i++) {
+            position--;
+            table.delete(position, position + 1);
+            oracle.deleteCharAt(position);
+            assertContent(oracle, table);
+        }
+        // 削除の後の入力は、削除前に追記した文字を伸ばさない
+        table.insert(position, "ター", 0, 2);
+        oracle.insert(position, "ター");
+        assertContent(oracle, table);
+    }
+
+    @Test
+    public void getCharsAcrossPieceBoundaries() {
+        // 1文字おきに挿入して、ピースが細かく分かれた状態を作る
+        StringBuilder oracle = new StringBuilder("0123456789abcdef");
+        MemoPieceTable table = new MemoPieceTable(oracle);
+        for (int i = oracle.length(); i > 0; i -= 2) {
+            String text = String.valueOf((char) ('A' + i));
+            table.insert(i, text, 0, 1);
+            oracle.insert(i, text);
+        }
+        table.delete(3, 5);
+        oracle.delete(3, 5);
+
+        int length = oracle.length();
+        for (int start = 0; start <= length; start++) {
+            for (int end = start; end <= length; end++) {
+                String expected = oracle.substring(start, end);
+                assertEquals(expected, table.subSequence(start, end).toString());
+                assertEquals(expected, table.snapshot().subSequence(start, end).toString());
+
+                // コピー先の途中に書き込み、前後は変えない
+                char[] dest = new char[end - start + 2];
+                dest[0] = '[';
+                dest[dest.length - 1] = ']';
+                table.getChars(start, end, dest, 1);
+                assertEquals("[" + expected + "]", new String(dest));
+            }
+        }
+    }
+
+    @Test
+    public void charAtCacheFollowsEdits() {
+        MemoPieceTable table = new MemoPieceTable("abcdef");
+        // 先頭のピースをキャッシュさせてから、その範囲を編集する
+        assertEquals('c', table.charAt(2));
+        table.replace(1, 4, "XY", 0, 2);
+        assertEquals('Y', table.charAt(2));
+        assertEquals('e', table.charAt(3));
+        table.delete(0, 1);
+        assertEquals('X', table.charAt(0));
+        assertEquals("XYef", table.toString());
+    }
+
+    @Test
+    public void snapshotIsNotChangedByLaterEdits() {
+        Random random = new Random(2);
+        StringBuilder oracle = new StringBuilder(TEXT);
+        MemoPieceTable table = new MemoPieceTable(TEXT);
+        MemoPieceTable.Snapshot snapshot = table.snapshot();
+        String expected = oracle.toString();
+
+        // 追記用バッファが何度か大きくなるまで編集する
+        for (int i = 0; i < OPERATIONS; i++) {
+            String text = randomText(random);
+            int position = random.nextInt(oracle.length() + 1);
+            table.insert(position, text, 0, text.length());
+            oracle.insert(position, text);
+            if (i % 100 == 0) {
+                assertEquals(expected, snapshot.toString());
+                snapshot = table.snapshot();
+                expected = oracle.toString();
+            }
+        }
+        assertEquals(expected, snapshot.toString());
+        assertEquals(expected.length(), snapshot.length());
+        assertEquals(expected.charAt(expected.length() - 1), snapshot.charAt(expected.length() - 1));
+    }
+
+    @Test
+    public void copiesFromAnyCharSequence() {
+        MemoPieceTable source = new MemoPieceTable("0123");
+        source.insert(2, "xy", 0, 2);
+        CharSequence[] sources = {
+                "01xy23",
+                new StringBuilder("01xy23"),
+                new StringBuffer("01xy23"),
+                source,
+                source.snapshot(),
+                CharBuffer.wrap("01xy23")
+        };
+        for (CharSequence text : sources) {
+            MemoPieceTable table = new MemoPieceTable(text, 1, 5);
+            assertEquals("1xy2", table.toString());
+            table.insert(4, text, 0, 2);
+            assertEquals("1xy201", table.toString());
+        }
+    }
+
+    @Test
+    public void invalidRangesAreRejected() {
+        MemoPieceTable table = new MemoPieceTable("abc");
+        assertInvalid(table, -1, 0);
+        assertInvalid(table, 2, 1);
+        assertInvalid(table, 0, 4);
+        try {
+            table.insert(4, "x", 0, 1);
+            fail("insert after end");
+        } catch (IndexOutOfBoundsException e) {
+            // 範囲外
+        }
+        try {
+            table.insert(0, "x", 0, 2);
+            fail("source range after end");
+        } catch (IndexOutOfBoundsException e) {
+            // 範囲外
+        }
+        try {
+            table.charAt(3);
+            fail("charAt after end");
+        } catch (IndexOutOfBoundsException e) {
+            // 範囲外
+        }
+        assertEquals("abc", table.toString());
+    }
+
+    private static void assertInvalid(MemoPieceTable table, int start, int end) {
+        try {
+            table.delete(start, end);
+            fail("delete " + start + " ... " + end);
+        } catch (IndexOutOfBoundsException e) {
+            // 範囲外
+        }
+        try {
+            table.subSequence(start, end);
+            fail("subSequence " + start + " ... " + end);
+        } catch (IndexOutOfBoundsException e) {
+            // 範囲外
+        }
+    }
+
+    private static String randomText(Random random) {
+        String[] words = {"", "a", "牛乳", "📝", "\n", "memo ", "打ち合わせ\n"};
+        return words[random.nextInt(words.length)];
+    }
+
+    private static void assertContent(CharSequence expected, MemoPieceTable table) {
+        String text = expected.toString();
+        assertEquals(text.length(), table.length());
+        assertEquals(text, table.toString());
+        // 前から1文字ずつ読む (charAtのキャッシュを使う)
+        for (int i = 0; i < text.length(); i++) {
+            assertEquals(text.charAt(i), table.charAt(i));
+        }
+    }
+}